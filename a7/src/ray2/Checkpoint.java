@@ -0,0 +1,226 @@
+package ray2;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * A sidecar file that records the finished blocks of a render, so that a
+ * render that was stopped can be started again without redoing them.
+ *
+ * The file starts with a header holding a key, a hash of the scene file and
+ * of the render settings, and the size of the image. After it comes one
+ * record per finished block: the block's position and size, the number of
+ * camera rays it took, and its pixels as doubles in scanline order. Records
+ * are appended as blocks finish and are never rewritten, so a render killed
+ * at any point leaves at worst an incomplete last record, which is dropped
+ * when the file is opened again. A file whose key or size does not match the
+ * render is started over.
+ *
+ * Blocks that are restored have the same pixels they would have if they were
+ * rendered again, since every sample of a pixel is drawn from the scene's
+ * sampler, which depends only on the pixel and the sample.
+ */
+public class Checkpoint {
+
+	private static final byte[] MAGIC = "RAY2CKPT".getBytes(StandardCharsets.US_ASCII);
+	private static final int VERSION = 1;
+	private static final int KEY_SIZE = 32;
+	private static final int HEADER_SIZE = MAGIC.length + 4 + KEY_SIZE + 8;
+
+	/** Position, size and camera rays of a block, ahead of its pixels. */
+	private static final int RECORD_HEADER_SIZE = 4 * 4 + 8;
+
+	private final Path path;
+	private final FileChannel channel;
+	private final int width;
+
+	/** The file position of the record of each finished block, by its position. */
+	private final HashMap<Long, Long> records = new HashMap<>();
+
+	/** Set once the file cannot be written; no more blocks are recorded then. */
+	private volatile boolean failed = false;
+
+	/**
+	 * Open the checkpoint at fileName for a width by height render with the
+	 * given key, keeping the blocks it already has if it was written for the
+	 * same render, or starting it over otherwise.
+	 */
+	public Checkpoint(String fileName, byte[] key, int width, int height) throws IOException {
+		this.path = Paths.get(fileName);
+		this.width = width;
+		channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(MAGIC).putInt(VERSION).put(Arrays.copyOf(key, KEY_SIZE)).putInt(width).putInt(height);
+		header.flip();
+
+		ByteBuffer existing = ByteBuffer.allocate(HEADER_SIZE);
+		readFully(existing, 0);
+		if (existing.position() == HEADER_SIZE && existing.flip().equals(header)) {
+			long end = readRecords();
+			if (end < channel.size())
+				channel.truncate(end);
+			if (!records.isEmpty())
+				System.out.println("Checkpoint " + fileName + " has " + records.size() + " finished blocks");
+		} else {
+			if (channel.size() > 0)
+				System.out.println("Checkpoint " + fileName + " is for a different render; starting over");
+			channel.truncate(0);
+			writeFully(header, 0);
+		}
+	}
+
+	/**
+	 * Index the complete records of the file.
+	 *
+	 * @return the end of the last complete record
+	 */
+	private long readRecords() throws IOException {
+		long position = HEADER_SIZE;
+		long size = channel.size();
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+		while (position + RECORD_HEADER_SIZE <= size) {
+			recordHeader.clear();
+			readFully(recordHeader, position);
+			recordHeader.flip();
+			int offsetX = recordHeader.getInt(), offsetY = recordHeader.getInt();
+			int sizeX = recordHeader.getInt(), sizeY = recordHeader.getInt();
+			long end = position + RECORD_HEADER_SIZE + 24L * sizeX * sizeY;
+			if (sizeX <= 0 || sizeY <= 0 || end > size)
+				break;
+			records.put(blockKey(offsetX, offsetY), position);
+			position = end;
+		}
+		return position;
+	}
+
+	/**
+	 * @return true if the block at (offsetX, offsetY) is finished
+	 */
+	public boolean isDone(int offsetX, int offsetY) {
+		synchronized (records) {
+			return records.containsKey(blockKey(offsetX, offsetY));
+		}
+	}
+
+	/**
+	 * Copy the pixels of the finished block at (offsetX, offsetY) into image.
+	 *
+	 * @return the number of camera rays the block took, or -1 if it could not
+	 *         be read and needs to be rendered again
+	 */
+	public long restore(Image image, int offsetX, int offsetY) {
+		Long position;
+		synchronized (records) {
+			position = records.get(blockKey(offsetX, offsetY));
+		}
+		if (position == null)
+			return -1;
+		try {
+			ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(recordHeader, position);
+			recordHeader.flip();
+			recordHeader.position(8);
+			int sizeX = recordHeader.getInt(), sizeY = recordHeader.getInt();
+			long cameraRays = recordHeader.getLong();
+
+			ByteBuffer pixels = ByteBuffer.allocate(24 * sizeX * sizeY).order(ByteOrder.LITTLE_ENDIAN);
+			readFully(pixels, position + RECORD_HEADER_SIZE);
+			pixels.flip();
+			double[] rgb = new double[3 * sizeX * sizeY];
+			pixels.asDoubleBuffer().get(rgb);
+			image.setPixels(offsetX, offsetY, sizeX, sizeY, rgb, 0);
+			return cameraRays;
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to read checkpoint: " + path);
+			System.err.println(e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Append the finished block of image at (offsetX, offsetY) to the file.
+	 * If the file cannot be written, an error is printed and the render goes
+	 * on without recording any more blocks.
+	 */
+	public void save(Image image, int offsetX, int offsetY, int sizeX, int sizeY, long cameraRays) {
+		if (failed)
+			return;
+		double[] rgb = new double[3 * sizeX * sizeY];
+		image.getPixels(offsetX, offsetY, sizeX, sizeY, rgb, 0);
+		ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + 8 * rgb.length).order(ByteOrder.LITTLE_ENDIAN);
+		record.putInt(offsetX).putInt(offsetY).putInt(sizeX).putInt(sizeY).putLong(cameraRays);
+		record.asDoubleBuffer().put(rgb);
+		record.position(record.capacity());
+		record.flip();
+		try {
+			synchronized (records) {
+				long position = channel.size();
+				writeFully(record, position);
+				records.put(blockKey(offsetX, offsetY), position);
+			}
+		} catch (IOException e) {
+			failed = true;
+			System.out.println("Error occured while attempting to write checkpoint: " + path);
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * Close the file, and delete it if the render it records is finished.
+	 */
+	public void close(boolean finished) {
+		try {
+			channel.close();
+			if (finished)
+				Files.deleteIfExists(path);
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to close checkpoint: " + path);
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * The key of a render: a SHA-256 hash of the scene file and a string
+	 * describing any other settings that change the rendered pixels.
+	 */
+	public static byte[] key(String sceneFile, String settings) throws IOException {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			digest.update(Files.readAllBytes(Paths.get(sceneFile)));
+			digest.update(settings.getBytes(StandardCharsets.UTF_8));
+			return digest.digest();
+		} catch (NoSuchAlgorithmException e) {
+			throw new Error(e);
+		}
+	}
+
+	private long blockKey(int offsetX, int offsetY) {
+		return (long) offsetY * width + offsetX;
+	}
+
+	private void readFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				break;
+			position += n;
+		}
+	}
+
+	private void writeFully(ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining())
+			position += channel.write(buffer, position);
+	}
+}
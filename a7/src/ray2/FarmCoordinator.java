@@ -0,0 +1,336 @@
+package ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ray2.viewer.QuickViewer;
+
+/**
+ * Renders the blocks of an image on FarmWorker processes. The coordinator
+ * listens on a local socket, starts the workers as separate JVMs (or waits
+ * for workers started by hand), and hands out the blocks of the spiral one
+ * at a time to whichever worker is free, assembling their pixels into the
+ * image. If a worker dies, the block it had is put back at the front of the
+ * queue for another worker. A worker that sends nothing for workerTimeout
+ * seconds, as one stuck in garbage collection or on a hung file read would,
+ * counts as dead too, and its process is killed if the coordinator started
+ * it; a worker started by hand only loses its connection. Blocks still left
+ * when no worker is alive are handed back to the caller to render itself.
+ * The workers stay connected between images, so a scene that is rendered
+ * again needs no loading on their side.
+ *
+ * After each image the coordinator reports the blocks each worker rendered
+ * and its throughput in camera rays per second of its own render time.
+ */
+public class FarmCoordinator {
+
+	/** How long to wait for the workers to connect, in milliseconds. */
+	private static final int CONNECT_TIMEOUT = 60000;
+
+	/** The number of workers to wait for. */
+	protected int numWorkers = 1;
+	public void setNumWorkers(int numWorkers) { this.numWorkers = Math.max(1, numWorkers); }
+
+	/** The port to listen on; 0 picks a free one. */
+	protected int port = 0;
+	public void setPort(int port) { this.port = port; }
+
+	/**
+	 * How long to wait for a worker's answer, in seconds, before taking it
+	 * for dead. It must cover the worker loading the scene as well as
+	 * rendering one block.
+	 */
+	protected int workerTimeout = 600;
+	public void setWorkerTimeout(int workerTimeout) { this.workerTimeout = Math.max(1, workerTimeout); }
+
+	/** If set, the workers are started as child processes of this JVM. */
+	protected boolean spawnWorkers = true;
+	public void setSpawnWorkers(boolean spawnWorkers) { this.spawnWorkers = spawnWorkers; }
+
+	private ServerSocket server;
+	private final ArrayList<Connection> connections = new ArrayList<>();
+	private final ArrayList<Process> processes = new ArrayList<>();
+
+	/**
+	 * Listen for workers, start them if spawnWorkers is set, and wait until
+	 * numWorkers have connected.
+	 */
+	public void start() throws IOException {
+		server = new ServerSocket(port, numWorkers, InetAddress.getLoopbackAddress());
+		int localPort = server.getLocalPort();
+		if (spawnWorkers) {
+			String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+			for (int i = 0; i < numWorkers; i++) {
+				ProcessBuilder builder = new ProcessBuilder(java, "-Djava.awt.headless=true", "-cp",
+						System.getProperty("java.class.path"), FarmWorker.class.getName(), "127.0.0.1",
+						Integer.toString(localPort));
+				builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+				builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+				processes.add(builder.start());
+			}
+		} else {
+			System.out.println("Waiting for " + numWorkers + " workers on port " + localPort);
+		}
+
+		server.setSoTimeout(CONNECT_TIMEOUT);
+		try {
+			while (connections.size() < numWorkers) {
+				Connection connection = new Connection(server.accept(), workerTimeout);
+				// Only a worker this coordinator started may be killed; the pid it sends is not trusted further
+				for (Process process : processes) {
+					if (process.pid() == connection.pid)
+						connection.process = process;
+				}
+				connections.add(connection);
+			}
+		} catch (SocketTimeoutException e) {
+			if (connections.isEmpty())
+				throw new IOException("No worker connected to port " + localPort);
+			System.out.println("Only " + connections.size() + " of " + numWorkers + " workers connected");
+		}
+		System.out.println("Rendering on " + connections.size() + " worker processes");
+	}
+
+	/**
+	 * Render the blocks of the spiral on the workers into image. Blocks the
+	 * checkpoint has are restored from it and not sent; blocks that come back
+	 * are added to it. If every worker dies, the blocks no worker finished
+	 * are added to leftover, as { offsetX, offsetY, sizeX, sizeY }, for the
+	 * caller to render.
+	 *
+	 * @param path The scene's file, which the workers load.
+	 * @param wavefront If true, the workers use the wavefront engine.
+	 * @param checkpoint The render's checkpoint, or null.
+	 * @param viewer The viewer to show finished blocks in, or null.
+	 * @param leftover Receives the blocks that were not rendered.
+	 * @return the number of camera rays traced
+	 */
+	public long render(Scene scene, RayTracer.ScenePath path, boolean wavefront, Image image, BlockSpiral spiral,
+			Checkpoint checkpoint, QuickViewer viewer, List<int[]> leftover) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		AtomicLong cameraRays = new AtomicLong();
+		LinkedBlockingDeque<int[]> blocks = new LinkedBlockingDeque<>();
+		for (int i = 0; i < spiral.totalSubblocks; i++) {
+			spiral.incrementSublockSpiral();
+			int offsetX = spiral.curSubX * RayTracer.SUB_WIDTH;
+			int offsetY = spiral.curSubY * RayTracer.SUB_HEIGHT;
+			int sizeX = Math.min(width - offsetX, RayTracer.SUB_WIDTH);
+			int sizeY = Math.min(height - offsetY, RayTracer.SUB_HEIGHT);
+			long restored = checkpoint != null ? checkpoint.restore(image, offsetX, offsetY) : -1;
+			if (restored >= 0)
+				cameraRays.addAndGet(restored);
+			else
+				blocks.add(new int[] { offsetX, offsetY, sizeX, sizeY });
+		}
+
+		AtomicInteger remaining = new AtomicInteger(blocks.size());
+		AtomicInteger finished = new AtomicInteger(spiral.totalSubblocks - blocks.size());
+		ArrayList<Thread> threads = new ArrayList<>();
+		for (Connection connection : connections) {
+			if (connection.dead)
+				continue;
+			connection.resetCounters();
+			Thread thread = new Thread(() -> connection.render(path, wavefront, image, blocks, remaining, finished,
+					spiral.totalSubblocks, cameraRays, checkpoint, viewer), "farm worker " + connection.pid);
+			threads.add(thread);
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		if (remaining.get() > 0) {
+			System.out.println("Error: all workers died with " + remaining.get() + " blocks left to render");
+			blocks.drainTo(leftover);
+		}
+
+		for (Connection connection : connections) {
+			System.out.println("Worker " + connection.pid + ": " + connection.blocks + " blocks, "
+					+ String.format("%.3f", connection.cameraRays * 1e3 / Math.max(1, connection.renderTime))
+					+ " Mrays/s" + (connection.dead ? " (died)" : ""));
+		}
+		return cameraRays.get();
+	}
+
+	/**
+	 * Tell the workers to quit and stop listening.
+	 */
+	public void close() {
+		for (Connection connection : connections)
+			connection.quit();
+		for (Process process : processes) {
+			try {
+				if (!process.waitFor(5, TimeUnit.SECONDS))
+					process.destroy();
+			} catch (InterruptedException e) {
+				process.destroy();
+			}
+		}
+		try {
+			if (server != null)
+				server.close();
+		} catch (IOException e) {
+			System.err.println(e);
+		}
+	}
+
+	/**
+	 * The coordinator's end of the connection to one worker.
+	 */
+	private static class Connection {
+		final Socket socket;
+		final DataInputStream in;
+		final DataOutputStream out;
+		final long pid;
+
+		/** The worker's process if this coordinator started it, or null. */
+		Process process = null;
+
+		/** The scene the worker has loaded, or null. */
+		String sceneFile = null;
+		boolean sceneWavefront;
+
+		/** Set once the connection has failed; the worker gets no more blocks. */
+		volatile boolean dead = false;
+
+		/** Blocks and camera rays of the current image, and the worker's time rendering them. */
+		int blocks;
+		long cameraRays, renderTime;
+
+		/**
+		 * @param timeout the seconds to wait for any message from the worker
+		 */
+		Connection(Socket socket, int timeout) throws IOException {
+			this.socket = socket;
+			socket.setTcpNoDelay(true);
+			socket.setSoTimeout(1000 * timeout);
+			in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			if (in.readInt() != FarmWorker.HELLO)
+				throw new IOException("Unexpected message from worker");
+			pid = in.readLong();
+		}
+
+		/**
+		 * Get ready for the next image. The scene is sent again even if it is
+		 * the same file, so the worker starts the image afresh.
+		 */
+		void resetCounters() {
+			sceneFile = null;
+			blocks = 0;
+			cameraRays = 0;
+			renderTime = 0;
+		}
+
+		/**
+		 * Take blocks from the queue and have the worker render them until no
+		 * blocks remain or the worker dies, in which case the block it had
+		 * goes back to the front of the queue.
+		 */
+		void render(RayTracer.ScenePath path, boolean wavefront, Image image, LinkedBlockingDeque<int[]> queue,
+				AtomicInteger remaining, AtomicInteger finished, int total, AtomicLong totalRays,
+				Checkpoint checkpoint, QuickViewer viewer) {
+			double[] rgb = new double[3 * RayTracer.SUB_WIDTH * RayTracer.SUB_HEIGHT];
+			while (remaining.get() > 0) {
+				int[] block;
+				try {
+					block = queue.poll(100, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					return;
+				}
+				if (block == null)
+					continue; // the last blocks are out, but one may come back
+
+				try {
+					String file = path.getFile();
+					if (!file.equals(sceneFile) || wavefront != sceneWavefront) {
+						out.writeInt(FarmWorker.SCENE);
+						out.writeUTF(path.getRoot() == null ? "" : path.getRoot());
+						out.writeUTF(file);
+						out.writeBoolean(wavefront);
+						sceneFile = file;
+						sceneWavefront = wavefront;
+					}
+					out.writeInt(FarmWorker.BLOCK);
+					for (int b : block)
+						out.writeInt(b);
+					out.flush();
+
+					if (in.readInt() != FarmWorker.RESULT)
+						throw new IOException("Unexpected message from worker");
+					long rays = in.readLong();
+					long time = in.readLong();
+					for (int i = 0; i < 3 * block[2] * block[3]; i++)
+						rgb[i] = in.readDouble();
+					image.setPixels(block[0], block[1], block[2], block[3], rgb, 0);
+					if (checkpoint != null)
+						checkpoint.save(image, block[0], block[1], block[2], block[3], rays);
+
+					blocks++;
+					cameraRays += rays;
+					renderTime += time;
+					totalRays.addAndGet(rays);
+					remaining.decrementAndGet();
+				} catch (IOException e) {
+					// Including a SocketTimeoutException from a worker that stopped answering
+					dead = true;
+					queue.addFirst(block);
+					System.out.println("Worker " + pid + " died (" + e + "); its block goes back in the queue");
+					try {
+						socket.close();
+					} catch (IOException e2) {
+						// already gone
+					}
+					// A worker that timed out may still be running; it gets no more work, so stop it
+					if (process != null)
+						process.destroyForcibly();
+					return;
+				}
+
+				//Update display
+				if (viewer != null)
+					viewer.setImage(image, block[0], block[1], block[0] + block[2], block[1] + block[3]);
+
+				System.out.println("finished " + finished.incrementAndGet() + "/" + total + " blocks");
+			}
+		}
+
+		/**
+		 * Tell the worker to quit, if it is still there.
+		 */
+		void quit() {
+			if (!dead) {
+				try {
+					out.writeInt(FarmWorker.QUIT);
+					out.flush();
+				} catch (IOException e) {
+					// the worker is gone already
+				}
+			}
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing to do
+			}
+		}
+	}
+}
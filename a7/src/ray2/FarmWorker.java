@@ -0,0 +1,137 @@
+package ray2;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.Socket;
+
+/**
+ * A render worker process for FarmCoordinator. It connects to the
+ * coordinator, then renders the blocks it is sent, one at a time, and sends
+ * their pixels back. The worker keeps the scene it was last sent, parsed
+ * and initialized, so the acceleration structure of a scene is built once
+ * however many blocks and frames of it the worker renders; it is loaded
+ * again if its file has changed since. The coordinator sends the scene at
+ * the start of every image, and the scene's irradiance cache, if any, is
+ * emptied then.
+ *
+ * The worker exits when the coordinator tells it to or its connection
+ * closes. Workers are normally started by the coordinator, but can also be
+ * started by hand with the coordinator's host and port:
+ *
+ * <pre>
+ * java ray2.FarmWorker host port
+ * </pre>
+ */
+public class FarmWorker {
+
+	/** Messages from the coordinator to a worker, and from a worker back. */
+	static final int HELLO = 1, SCENE = 2, BLOCK = 3, QUIT = 4, RESULT = 5;
+
+	/** The scene loaded last, its file, and the file's time and size when it was read. */
+	private Scene scene;
+	private String sceneFile;
+	private long sceneModified, sceneSize;
+
+	public static void main(String[] args) {
+		if (args.length < 2) {
+			System.err.println("Usage: java ray2.FarmWorker host port");
+			System.exit(1);
+		}
+		try {
+			new FarmWorker().serve(args[0], Integer.parseInt(args[1]));
+		} catch (IOException e) {
+			System.err.println("Worker lost its coordinator: " + e);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Connect to the coordinator at host and port and render what it asks
+	 * for until it says to quit.
+	 */
+	public void serve(String host, int port) throws IOException {
+		try (Socket socket = new Socket(host, port)) {
+			socket.setTcpNoDelay(true);
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			out.writeInt(HELLO);
+			out.writeLong(ProcessHandle.current().pid());
+			out.flush();
+
+			RayTracer rayTracer = new RayTracer();
+			ImageBand band = null;
+			double[] rgb = new double[3 * RayTracer.SUB_WIDTH * RayTracer.SUB_HEIGHT];
+			while (true) {
+				int message;
+				try {
+					message = in.readInt();
+				} catch (EOFException e) {
+					return;
+				}
+				switch (message) {
+				case SCENE: {
+					String root = in.readUTF();
+					String file = in.readUTF();
+					boolean wavefront = in.readBoolean();
+					loadScene(root.isEmpty() ? null : root, file);
+					rayTracer.setWavefront(wavefront);
+					Image image = scene.getImage();
+					band = new ImageBand(image.getWidth(), image.getHeight(), RayTracer.SUB_HEIGHT);
+					break;
+				}
+				case BLOCK: {
+					int offsetX = in.readInt(), offsetY = in.readInt();
+					int sizeX = in.readInt(), sizeY = in.readInt();
+					band.setBand(offsetY);
+					long start = System.nanoTime();
+					long cameraRays = rayTracer.renderBlockWithEngine(scene, band, offsetX, offsetY, sizeX, sizeY);
+					long time = System.nanoTime() - start;
+					band.getPixels(offsetX, offsetY, sizeX, sizeY, rgb, 0);
+
+					out.writeInt(RESULT);
+					out.writeLong(cameraRays);
+					out.writeLong(time);
+					for (int i = 0; i < 3 * sizeX * sizeY; i++)
+						out.writeDouble(rgb[i]);
+					out.flush();
+					break;
+				}
+				case QUIT:
+					return;
+				default:
+					throw new IOException("Unknown message " + message);
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return the scene in file, parsed and initialized unless it is the
+	 *         scene loaded last and its file is unchanged
+	 */
+	private Scene loadScene(String root, String file) {
+		RayTracer.ScenePath path = new RayTracer.ScenePath(root, file);
+		File f = new File(path.getFile());
+		long modified = f.lastModified(), size = f.length();
+		if (scene == null || !file.equals(sceneFile) || modified != sceneModified || size != sceneSize) {
+			// Let the old scene go before loading the next
+			scene = null;
+			RayTracer.sceneWorkspace = path;
+			Scene loaded = (Scene) new Parser().parse(path.getFile(), Scene.class);
+			loaded.init();
+			scene = loaded;
+			sceneFile = file;
+			sceneModified = modified;
+			sceneSize = size;
+		} else if (scene.getIrradianceCache() != null) {
+			// Each image starts with an empty cache, as it does when rendered in one process
+			scene.getIrradianceCache().init(scene);
+		}
+		return scene;
+	}
+}
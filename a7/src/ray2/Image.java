@@ -2,24 +2,26 @@ package ray2;
 
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 
-import edu.cornell.graphics.exr.Channel;
-import edu.cornell.graphics.exr.ChannelList;
-import edu.cornell.graphics.exr.EXROutputFile;
-import edu.cornell.graphics.exr.FrameBuffer;
-import edu.cornell.graphics.exr.Header;
-import edu.cornell.graphics.exr.PixelType;
-import edu.cornell.graphics.exr.Slice;
 import egl.math.Color;
 import egl.math.Colord;
+import ray2.output.EXRTileWriter;
+import ray2.output.PFMTileWriter;
+import ray2.output.TileWriter;
 
 /**
- * Basic image class, containing a 2D array of Colords. Simple functionality for
- * setting pixel colors and writing to a PNG file is provided.
+ * Basic image class, containing a flat array of pixel colors. Simple
+ * functionality for setting pixel colors and writing to a PNG file is provided.
+ *
+ * The pixels are stored in scanline order, three doubles (red, green, blue) per
+ * pixel, so that pixel (x, y) starts at index 3 * (y * width + x) of the data
+ * array. Blocks of pixels can be copied in and out with setPixels and
+ * getPixels. The array is only allocated once the pixels are first used, so
+ * an image that only gives the size of a render, like one that is streamed
+ * to disk in bands, takes no memory for its pixels.
  *
  * @author eschweic, nsavva
  */
@@ -31,8 +33,8 @@ public class Image {
 	/** Image height * */
 	protected int height;
 	
-	/** Data array* */
-	protected Colord[][] data;
+	/** Data array, red, green and blue of each pixel in scanline order; null until first used * */
+	protected double[] data;
 	
 	/**
 	 * Create an empty image
@@ -50,23 +52,17 @@ public class Image {
 	 * @param oldImage oldImage
 	 */
 	public Image(Image oldImage) {
-		setSize(oldImage.getWidth(), oldImage.getHeight());
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j].set(oldImage.data[i][j]);
-			}
-		}
+		width = oldImage.getWidth();
+		height = oldImage.getHeight();
+		data = oldImage.data == null ? null : oldImage.data.clone();
 	}
 	
 	/**
 	 * Set the image to black
 	 */
 	public void clear() {
-		for (int i = 0; i < width; i++) {
-			for (int j = 0; j < height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		if (data != null)
+			Arrays.fill(data, 0);
 	}
 	
 	/**
@@ -91,12 +87,31 @@ public class Image {
 	public void setSize(int newWidth, int newHeight) {
 		width = newWidth;
 		height = newHeight;
-		data = new Colord[width][height];
-		for (int i=0; i<width; i++) {
-			for (int j=0; j<height; j++) {
-				data[i][j] = new Colord();
-			}
-		}
+		if (data != null && data.length == 3 * width * height)
+			clear();
+		else
+			data = null;
+	}
+	
+	/**
+	 * The pixel data itself, not a copy: red, green and blue of pixel (x, y)
+	 * are at index 3 * (y * width + x).
+	 *
+	 * @return the data array
+	 */
+	public double[] getData() {
+		double[] d = data;
+		return d != null ? d : allocate();
+	}
+	
+	/**
+	 * Allocate the data array, once, however many rendering threads get here
+	 * at the same time.
+	 */
+	private synchronized double[] allocate() {
+		if (data == null)
+			data = new double[3 * width * height];
+		return data;
 	}
 	
 	/**
@@ -107,9 +122,9 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Color outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		double[] data = getData();
+		outPixel.set(toByte(data[i]), toByte(data[i + 1]), toByte(data[i + 2]));
 	}
 	
 	/**
@@ -120,9 +135,9 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void getPixelColor(Colord outPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		outPixel.set(data[inX][inY]);
+		int i = index(inX, inY);
+		double[] data = getData();
+		outPixel.set(data[i], data[i + 1], data[i + 2]);
 	}
 	
 	/**
@@ -132,9 +147,11 @@ public class Image {
 	 * @param inY inY Coordinate
 	 */
 	public void setPixelColor(Color inPixel, int inX, int inY) {
-		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
-			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		int i = index(inX, inY);
+		double[] data = getData();
+		data[i] = inPixel.r() / 255.0;
+		data[i + 1] = inPixel.g() / 255.0;
+		data[i + 2] = inPixel.b() / 255.0;
 	}
 	
 	/**
@@ -144,9 +161,79 @@ public class Image {
 	 * @param inY inY coordinate
 	 */
 	public void setPixelColor(Colord inPixel, int inX, int inY) {
+		int i = index(inX, inY);
+		double[] data = getData();
+		data[i] = inPixel.x;
+		data[i + 1] = inPixel.y;
+		data[i + 2] = inPixel.z;
+	}
+	
+	/**
+	 * Copy a block of pixels into the image. The block is sizeX by sizeY
+	 * pixels with its lower left corner at (offsetX, offsetY), and its colors
+	 * are read from rgb, starting at index offset, in scanline order within the
+	 * block.
+	 */
+	public void setPixels(int offsetX, int offsetY, int sizeX, int sizeY, double[] rgb, int offset) {
+		checkBlock(offsetX, offsetY, sizeX, sizeY);
+		double[] data = getData();
+		for (int y = 0; y < sizeY; y++)
+			System.arraycopy(rgb, offset + 3 * y * sizeX, data, index(offsetX, offsetY + y), 3 * sizeX);
+	}
+	
+	/**
+	 * Copy a block of pixels out of the image into rgb, starting at index
+	 * offset; the layout is the same as for setPixels.
+	 */
+	public void getPixels(int offsetX, int offsetY, int sizeX, int sizeY, double[] rgb, int offset) {
+		checkBlock(offsetX, offsetY, sizeX, sizeY);
+		double[] data = getData();
+		for (int y = 0; y < sizeY; y++)
+			System.arraycopy(data, index(offsetX, offsetY + y), rgb, offset + 3 * y * sizeX, 3 * sizeX);
+	}
+	
+	/**
+	 * The color of a pixel as it is displayed and written to PNG files: gamma
+	 * corrected, clamped and packed into an int as by Color.toIntRGB.
+	 *
+	 * @return the packed 8-bit color of pixel (inX, inY)
+	 */
+	public int getRGB(int inX, int inY) {
+		int i = index(inX, inY);
+		double[] data = getData();
+		return (gammaByte(data[i]) & 0xFF) << 16 | (gammaByte(data[i + 1]) & 0xFF) << 8
+				| (gammaByte(data[i + 2]) & 0xFF);
+	}
+	
+	/**
+	 * @return the index in data of the red component of pixel (inX, inY)
+	 */
+	protected int index(int inX, int inY) {
 		if (inX < 0 || inY < 0 || inX >= width || inY >= height)
 			throw new IndexOutOfBoundsException();
-		data[inX][inY].set(inPixel);
+		return 3 * (inY * width + inX);
+	}
+	
+	private void checkBlock(int offsetX, int offsetY, int sizeX, int sizeY) {
+		if (offsetX < 0 || offsetY < 0 || sizeX < 0 || sizeY < 0
+				|| offsetX + sizeX > width || offsetY + sizeY > height)
+			throw new IndexOutOfBoundsException();
+	}
+	
+	/**
+	 * Map a component to a byte as Colord.toColor does: clamp to [0, 1] and
+	 * round.
+	 */
+	private static byte toByte(double c) {
+		return (byte) (Math.max(Math.min(c, 1.0), 0.0) * 255d + 0.5);
+	}
+	
+	/**
+	 * Gamma correct a component as Colord.gammaCorrect(2.2) does, then map it
+	 * to a byte.
+	 */
+	private static byte gammaByte(double c) {
+		return toByte(Math.pow(c, 1.0 / 2.2));
 	}
 	
 	/**
@@ -157,14 +244,11 @@ public class Image {
 	public void write(String fileName) {
 		BufferedImage bufferedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		
-		Colord pixelColor= new Colord();
+		int[] row = new int[width];
 		for (int y = 0; y < height; y++) {
-			for (int x = 0; x < width; x++) {
-				this.getPixelColor(pixelColor, x, y);
-				pixelColor.gammaCorrect(2.2);
-				Color c = pixelColor.toColor();
-				bufferedImage.setRGB(x, (height - 1 - y), c.toIntRGB());
-			}
+			for (int x = 0; x < width; x++)
+				row[x] = getRGB(x, y);
+			bufferedImage.setRGB(0, height - 1 - y, width, 1, row, 0, width);
 		}
 		
 		try {
@@ -178,62 +262,17 @@ public class Image {
 	}
 	
 	/**
-	 * A quick openEXR-JNI write test
-	 * Write this image to the filename.  The output is always written as HDR regardless
-	 * of the extension on the filename given.
+	 * Write this image to the filename as floating point HDR data: a PFM file
+	 * if the filename ends in .pfm, and an RLE compressed OpenEXR file
+	 * otherwise. The rows are written out one at a time as they are read.
 	 * @param fileName the output filename
 	 */
 	public void writeHDR(String fileName) {
-		
-		File outFile = new File(fileName);
-
-        final PixelType pixelType = PixelType.FLOAT;
-        final int numChannels = 3;
-        final int elemSize    = pixelType.byteSize();
-        final int pixelSize   = elemSize * numChannels;
-        final int numPixels   = width * height;
-    
-		Header hdrHeader = new Header(width, height);
-		
-		ChannelList channels = hdrHeader.getChannels();
-        channels.insert("R", new Channel(pixelType));
-        channels.insert("G", new Channel(pixelType));
-        channels.insert("B", new Channel(pixelType));
-        
-		Colord pixelColor= new Colord();
-        ByteBuffer pixels = ByteBuffer.allocateDirect(pixelSize * numPixels);
-        pixels.order(ByteOrder.LITTLE_ENDIAN);
-        for(int h = height-1; h >= 0; --h) {
-            for (int w = 0; w < width; ++w) {
-            	this.getPixelColor(pixelColor, w, h);
-                pixels.putFloat((float) pixelColor.x);
-                pixels.putFloat((float) pixelColor.y);
-                pixels.putFloat((float) pixelColor.z);
-            }
-        }
-        pixels.flip();
-        
-     // Build the frame buffer
-        FrameBuffer frameBuffer = new FrameBuffer();
-        final int yStride = width * pixelSize;
-        frameBuffer.insert("R", Slice.build()
-                .baseOffset(0).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("G", Slice.build()
-                .baseOffset(elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        frameBuffer.insert("B", Slice.build()
-                .baseOffset(2*elemSize).buffer(pixels).pixelType(pixelType)
-                .xStride(pixelSize).yStride(yStride).get());
-        
-        try (EXROutputFile out = new EXROutputFile(outFile.toPath(), hdrHeader)){
-             out.setFrameBuffer(frameBuffer);
-             out.writePixels(height);
-             System.out.printf("  Wrote RGB32F file %s%n", outFile);
-             
-             //System.out.printf("  File size: %d%n", Files.size(outFile.toPath()));
-             pixels.rewind();
-         }
+		try (TileWriter out = fileName.toLowerCase().endsWith(".pfm")
+				? new PFMTileWriter(fileName, width, height)
+				: new EXRTileWriter(fileName, width, height, EXRTileWriter.RLE_COMPRESSION)) {
+			out.writeBlock(this, 0, 0, width, height);
+		}
 		catch (Exception e) {
 			System.out.println("Error occured while attempting to write file: "+fileName);
 			System.err.println(e);
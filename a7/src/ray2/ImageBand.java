@@ -0,0 +1,70 @@
+package ray2;
+
+/**
+ * A horizontal band of rows of a larger image. The band reports the size of
+ * the whole image, so that renderBlock and the other renderers place their
+ * camera rays as they would in the whole image, but it only holds the pixels
+ * of rows [bandY, bandY + bandRows) and may only be used there. Moving the
+ * band with setBand lets a render of any size go through a fixed amount of
+ * memory, one band at a time.
+ *
+ * Pixel (x, y) of the band is at index 3 * ((y - bandY) * width + x) of the
+ * data array.
+ */
+public class ImageBand extends Image {
+
+	/** The first row of the band and the number of rows it holds. */
+	protected int bandY;
+	protected int bandRows;
+
+	/**
+	 * Create a band of the given number of rows of a width by height image,
+	 * starting at row 0.
+	 */
+	public ImageBand(int width, int height, int rows) {
+		super(width, height);
+		bandRows = Math.max(1, Math.min(rows, height));
+		data = new double[3 * width * bandRows];
+	}
+
+	/**
+	 * Move the band to start at row y and set it to black. Rows past the top
+	 * of the image are left unused.
+	 */
+	public void setBand(int y) {
+		if (y < 0 || y >= height)
+			throw new IndexOutOfBoundsException();
+		bandY = y;
+		clear();
+	}
+
+	/**
+	 * @return the first row of the band
+	 */
+	public int getBandY() {
+		return bandY;
+	}
+
+	/**
+	 * @return the number of rows of the image the band covers at its current
+	 *         position
+	 */
+	public int getBandRows() {
+		return Math.min(bandRows, height - bandY);
+	}
+
+	@Override
+	public void setSize(int newWidth, int newHeight) {
+		super.setSize(newWidth, newHeight);
+		bandY = 0;
+		if (bandRows > 0)
+			data = new double[3 * width * Math.min(bandRows, height)];
+	}
+
+	@Override
+	protected int index(int inX, int inY) {
+		if (inX < 0 || inY < bandY || inX >= width || inY >= bandY + getBandRows())
+			throw new IndexOutOfBoundsException();
+		return 3 * ((inY - bandY) * width + inX);
+	}
+}
@@ -26,6 +26,23 @@ public class IntersectionRecord {
 
   /** The t value along the ray at which the intersection occurred. */
   public double t = 0;  
+
+  /**
+   * Where on the surface the hit is, in whatever form the surface needs to
+   * fill in the rest of the record later (see Surface.fillRecord); for a
+   * triangle these are the barycentric coordinates beta and gamma.
+   */
+  public double u = 0, v = 0;
+
+  /** The index of the primitive that was hit within the surface, if it has several. */
+  public int primitive = -1;
+
+  /**
+   * How fast the texture coordinates change around the hit, in texture
+   * coordinate units per unit of distance along the surface; 0 if the surface
+   * does not say. Textures use it to pick a mip level.
+   */
+  public double texScale = 0;
   
   /**
    * Set this intersection record to the value of inRecord
@@ -38,5 +55,9 @@ public class IntersectionRecord {
     texCoords.set(inRecord.texCoords);
     surface = inRecord.surface;   
     t = inRecord.t;
+    u = inRecord.u;
+    v = inRecord.v;
+    primitive = inRecord.primitive;
+    texScale = inRecord.texScale;
   }
 }
\ No newline at end of file
@@ -108,8 +108,8 @@ public class Parser {
 	/** Java document builder used to parse XML * */
 	private DocumentBuilder db;
 
-	/** Map of references to their names **/
-	public static HashMap<String, Object> references = new HashMap<String, Object>();
+	/** Map of references to their names (one per parser, so parsers do not share state) **/
+	protected final HashMap<String, Object> references = new HashMap<String, Object>();
 
 	/** Creates a new Parser. */
 	public Parser() {
@@ -182,6 +182,10 @@ public class Parser {
 			return new Double(text);
 		}
 
+		else if (c == Boolean.class) {
+			return Boolean.valueOf(text.trim());
+		}
+
 		else if ((c.isArray() && c.getComponentType().isPrimitive())) {
 			ArrayList tempArray = parseArray(c.getComponentType(), text);
 			Object result = Array.newInstance(c.getComponentType(), tempArray
@@ -361,6 +365,7 @@ public class Parser {
 		// Check for certain special classes of the current node
 		else if ((c.isArray() && c.getComponentType().isPrimitive())
 				|| c == String.class || c == Integer.class || c == Double.class
+				|| c == Boolean.class
 				|| c == Colord.class || Vector3d.class.isAssignableFrom(c)
 				|| Image.class.isAssignableFrom(c)) {
 
@@ -433,6 +438,8 @@ public class Parser {
 						parameterType = Float.class;
 					} else if (parameterType == Double.TYPE) {
 						parameterType = Double.class;
+					} else if (parameterType == Boolean.TYPE) {
+						parameterType = Boolean.class;
 					} else {
 						throw new Error("Cannot parse primitives of type "
 								+ parameterType);
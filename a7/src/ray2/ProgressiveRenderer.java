@@ -0,0 +1,216 @@
+package ray2;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.camera.Camera;
+import ray2.sampler.Sampler;
+import ray2.viewer.QuickViewer;
+
+/**
+ * Renders an image in passes of one sample per pixel over the whole frame, so
+ * that a usable image exists after the first pass and improves with every
+ * pass after it. The colors of the samples are summed in an accumulation
+ * buffer, and after each pass the image is set to their average.
+ *
+ * Rendering stops after the scene's samples^2 passes (or the number set with
+ * setPasses), or earlier once the time budget would be exceeded by another
+ * pass or the noise of the image has dropped to the target noise. Only whole
+ * passes are ever used, and the samples of a pixel are always added in pass
+ * order, so the image after a given number of passes is the same however
+ * many threads render it and whatever stopped the render.
+ *
+ * Pass p takes sample stratumOrder[p] of every pixel, so that the samples of
+ * the first passes are spread over the pixel; after all passes a pixel has
+ * the samples renderBlock takes. Adaptive sampling and the wavefront engine
+ * are not used.
+ */
+public class ProgressiveRenderer {
+
+	/** The most passes to render; 0 renders the scene's samples^2. */
+	protected int passes = 0;
+	public void setPasses(int passes) { this.passes = Math.max(0, passes); }
+
+	/**
+	 * Stop before a pass that is expected to end more than this many seconds
+	 * after the render started, judging by the previous pass. The first pass
+	 * is always rendered. 0 sets no limit.
+	 */
+	protected double timeBudget = 0;
+	public void setTimeBudget(double timeBudget) { this.timeBudget = Math.max(0, timeBudget); }
+
+	/**
+	 * Stop once the noise of the image, the root mean square over all pixels
+	 * of the standard error of the pixel's luminance (after exposure, clamped
+	 * to 1), is at most this value. 0 sets no limit.
+	 */
+	protected double targetNoise = 0;
+	public void setTargetNoise(double targetNoise) { this.targetNoise = Math.max(0, targetNoise); }
+
+	/** The number of threads to render the blocks of each pass on. */
+	protected int numThreads = 1;
+	public void setNumThreads(int numThreads) { this.numThreads = Math.max(1, numThreads); }
+
+	/**
+	 * Sums of each pixel's samples: red, green and blue, then luminance and
+	 * squared luminance for the noise estimate.
+	 */
+	private double[] sums = new double[0];
+
+	/** The number of passes rendered and the noise after the last one. */
+	private int passesDone;
+	private double noise;
+	public int getPassesDone() { return passesDone; }
+	public double getNoise() { return noise; }
+
+	/**
+	 * Render the scene into image, pass after pass, until one of the limits is
+	 * reached. If viewer is not null it is shown the image after each pass.
+	 *
+	 * @return the number of camera rays traced
+	 */
+	public long render(Scene scene, Image image, QuickViewer viewer) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int samples = scene.getSamples();
+		int total = passes > 0 ? passes : samples * samples;
+		int[] order = total == samples * samples ? RayTracer.stratumOrder(samples) : null;
+
+		if (sums.length < 5 * width * height)
+			sums = new double[5 * width * height];
+		Arrays.fill(sums, 0, 5 * width * height, 0);
+
+		ArrayList<int[]> blocks = new ArrayList<>();
+		for (int y = 0; y < height; y += RayTracer.SUB_HEIGHT) {
+			for (int x = 0; x < width; x += RayTracer.SUB_WIDTH)
+				blocks.add(new int[] { x, y, Math.min(width - x, RayTracer.SUB_WIDTH), Math.min(height - y, RayTracer.SUB_HEIGHT) });
+		}
+
+		ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		long start = System.nanoTime();
+		passesDone = 0;
+		noise = Double.POSITIVE_INFINITY;
+		try {
+			while (passesDone < total) {
+				long passStart = System.nanoTime();
+				int index = order != null ? order[passesDone] : passesDone;
+				if (pool != null) {
+					ArrayList<PassTask> tasks = new ArrayList<>(blocks.size());
+					for (int[] b : blocks)
+						tasks.add(new PassTask(scene, image, b, index, total, passesDone + 1));
+					for (PassTask task : tasks)
+						pool.execute(task);
+					for (PassTask task : tasks)
+						task.join();
+				} else {
+					for (int[] b : blocks)
+						renderPass(scene, image, b[0], b[1], b[2], b[3], index, total, passesDone + 1);
+				}
+				passesDone++;
+				noise = estimateNoise(width * height, passesDone);
+
+				long now = System.nanoTime();
+				double elapsed = (now - start) / 1e9;
+				double passTime = (now - passStart) / 1e9;
+				System.out.println("pass " + passesDone + "/" + total + ": " + String.format("%.2f", passTime)
+						+ " s, noise " + String.format("%.4g", noise));
+				if (viewer != null)
+					viewer.showPass(image, passesDone, total);
+
+				if (targetNoise > 0 && noise <= targetNoise)
+					break;
+				if (timeBudget > 0 && elapsed + passTime > timeBudget)
+					break;
+			}
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+		return (long) passesDone * width * height;
+	}
+
+	/**
+	 * Add sample index of total to every pixel of one block, and set those
+	 * pixels of image to the average of their n samples.
+	 */
+	private void renderPass(Scene scene, Image image, int offsetX, int offsetY, int sizeX, int sizeY,
+			int index, int total, int n) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+		ShadingContext context = ShadingContext.get();
+		context.frame(1).throughput = 1;
+		Sampler sampler = context.sampler(scene);
+		Ray ray = new Ray();
+		Colord rayColor = new Colord();
+		Colord pixelColor = new Colord();
+		Vector2d pixelSample = new Vector2d();
+
+		for (int x = offsetX; x < offsetX + sizeX; x++) {
+			for (int y = offsetY; y < offsetY + sizeY; y++) {
+				sampler.startSample(x, y, index, total);
+				sampler.next2D(pixelSample);
+				cam.getRay(ray, (x + pixelSample.x) / width, (y + pixelSample.y) / height);
+				RayTracer.shadeRay(rayColor, scene, ray, 1, context);
+
+				int s = 5 * (y * width + x);
+				sums[s] += rayColor.x;
+				sums[s + 1] += rayColor.y;
+				sums[s + 2] += rayColor.z;
+				double lum = Math.min(1, exposure * (0.2126 * rayColor.x + 0.7152 * rayColor.y + 0.0722 * rayColor.z));
+				sums[s + 3] += lum;
+				sums[s + 4] += lum * lum;
+
+				pixelColor.set(sums[s], sums[s + 1], sums[s + 2]);
+				pixelColor.mul(exposure / n);
+				image.setPixelColor(pixelColor, x, y);
+			}
+		}
+	}
+
+	/**
+	 * @return the root mean square of the pixels' standard errors after n
+	 *         samples, or infinity if n is too small to tell
+	 */
+	private double estimateNoise(int pixels, int n) {
+		if (n < 2)
+			return Double.POSITIVE_INFINITY;
+		double sumVariance = 0;
+		for (int p = 0; p < pixels; p++) {
+			double sum = sums[5 * p + 3], sumSqr = sums[5 * p + 4];
+			sumVariance += Math.max(0, (sumSqr - sum * sum / n) / (n - 1)) / n;
+		}
+		return Math.sqrt(sumVariance / pixels);
+	}
+
+	/**
+	 * One block of one pass, rendered by one of the pool's worker threads.
+	 */
+	private class PassTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Scene scene;
+		private final Image image;
+		private final int[] block;
+		private final int index, total, n;
+
+		PassTask(Scene scene, Image image, int[] block, int index, int total, int n) {
+			this.scene = scene;
+			this.image = image;
+			this.block = block;
+			this.index = index;
+			this.total = total;
+			this.n = n;
+		}
+
+		@Override
+		protected void compute() {
+			renderPass(scene, image, block[0], block[1], block[2], block[3], index, total, n);
+		}
+	}
+}
@@ -21,6 +21,16 @@ public class Ray {
 
   /** The normalized direction in which the ray travels. */
   public final Vector3d direction = new Vector3d();
+
+  /**
+   * The componentwise reciprocal of direction, and sign bits that are 1 where
+   * a component of direction is negative. Box tests read these instead of
+   * dividing at every node. They are recomputed by updateInverseDirection(),
+   * which the setters below and makeOffsetRay/makeOffsetSegment call, so code
+   * that writes direction directly must finish with one of those.
+   */
+  public final Vector3d invDirection = new Vector3d();
+  public int signX, signY, signZ;
   
   /**
   * It is convenient to have a ray have a start and end t values.
@@ -51,11 +61,24 @@ public class Ray {
 
     origin.set(newOrigin);
     direction.set(newDirection);
+    updateInverseDirection();
   }
 
   public Ray(Ray r) {
+	  set(r);
+  }
+
+  /**
+   * Sets this ray to a copy of r, including its cached inverse direction.
+   * @param r the ray to copy
+   */
+  public void set(Ray r) {
 	  origin.set(r.origin);
 	  direction.set(r.direction);
+	  invDirection.set(r.invDirection);
+	  signX = r.signX;
+	  signY = r.signY;
+	  signZ = r.signZ;
 	  start = r.start;
 	  end = r.end;
   }
@@ -69,6 +92,17 @@ public class Ray {
 
 	  origin.set(newOrigin);
 	  direction.set(newDirection);
+	  updateInverseDirection();
+  }
+
+  /**
+   * Recompute invDirection and the sign bits from direction.
+   */
+  public void updateInverseDirection() {
+	  invDirection.set(1 / direction.x, 1 / direction.y, 1 / direction.z);
+	  signX = invDirection.x < 0 ? 1 : 0;
+	  signY = invDirection.y < 0 ? 1 : 0;
+	  signZ = invDirection.z < 0 ? 1 : 0;
   }
 
   
@@ -92,6 +126,7 @@ public class Ray {
 
     start = EPSILON;
     end = Double.POSITIVE_INFINITY;
+    updateInverseDirection();
 
   }
 
@@ -103,6 +138,7 @@ public class Ray {
 
     start = EPSILON;
     end = newEnd;
+    updateInverseDirection();
 
 
   }
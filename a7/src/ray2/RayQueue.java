@@ -0,0 +1,239 @@
+package ray2;
+
+import java.util.Arrays;
+
+import egl.math.Colord;
+
+/**
+ * A queue of rays waiting to be traced by the WavefrontRenderer, stored as
+ * parallel arrays rather than Ray objects. Besides its geometry every ray
+ * carries the pixel it contributes to, its recursion depth, and a weight, the
+ * factor its color is multiplied by before it is added to the pixel. Rays may
+ * also be given a group, such as the light a shadow ray is aimed at, so that
+ * sorting brings rays that are likely to travel together next to each other.
+ * Finally each ray records the sample of its pixel it belongs to, the
+ * sampler dimension its shading continues from, and the length of the path
+ * from the camera to its origin.
+ */
+public class RayQueue {
+
+	/** The number of rays in the queue. */
+	int size;
+
+	double[] origin;
+	double[] direction;
+	double[] start;
+	double[] end;
+	double[] weight;
+	int[] pixel;
+	int[] depth;
+	int[] group;
+	int[] sample;
+	int[] dimension;
+	double[] pathLength;
+
+	/** The start of each group and octant while sorting. */
+	private int[] offsets = new int[9];
+
+	public RayQueue(int capacity) {
+		allocate(Math.max(1, capacity));
+	}
+
+	private void allocate(int capacity) {
+		origin = new double[3 * capacity];
+		direction = new double[3 * capacity];
+		start = new double[capacity];
+		end = new double[capacity];
+		weight = new double[3 * capacity];
+		pixel = new int[capacity];
+		depth = new int[capacity];
+		group = new int[capacity];
+		sample = new int[capacity];
+		dimension = new int[capacity];
+		pathLength = new double[capacity];
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Add a ray whose weight is weight scaled by scale. Rays of zero weight
+	 * cannot contribute and are dropped.
+	 */
+	public void add(Ray ray, Colord weight, double scale, int pixel, int depth) {
+		add(ray, weight, scale, pixel, depth, 0);
+	}
+
+	/**
+	 * Add a ray as above, in the given group, a small non-negative number.
+	 */
+	public void add(Ray ray, Colord weight, double scale, int pixel, int depth, int group) {
+		double wr = weight.x * scale, wg = weight.y * scale, wb = weight.z * scale;
+		if (wr == 0 && wg == 0 && wb == 0)
+			return;
+		if (size == this.pixel.length)
+			grow();
+		int i = size++;
+		origin[3 * i] = ray.origin.x;
+		origin[3 * i + 1] = ray.origin.y;
+		origin[3 * i + 2] = ray.origin.z;
+		direction[3 * i] = ray.direction.x;
+		direction[3 * i + 1] = ray.direction.y;
+		direction[3 * i + 2] = ray.direction.z;
+		start[i] = ray.start;
+		end[i] = ray.end;
+		this.weight[3 * i] = wr;
+		this.weight[3 * i + 1] = wg;
+		this.weight[3 * i + 2] = wb;
+		this.pixel[i] = pixel;
+		this.depth[i] = depth;
+		this.group[i] = group;
+		this.sample[i] = 0;
+		this.dimension[i] = -1;
+		this.pathLength[i] = 0;
+	}
+
+	/**
+	 * Record that the rays from index from on belong to the given sample of
+	 * their pixel, and that those not given a dimension of their own by
+	 * setDimension are shaded from the given sampler dimension on.
+	 */
+	public void setSample(int from, int sample, int dimension) {
+		for (int i = from; i < size; i++) {
+			this.sample[i] = sample;
+			if (this.dimension[i] < 0)
+				this.dimension[i] = dimension;
+		}
+	}
+
+	/**
+	 * Record that the rays from index from on are shaded from the given
+	 * sampler dimension on.
+	 */
+	public void setDimension(int from, int dimension) {
+		for (int i = from; i < size; i++)
+			this.dimension[i] = dimension;
+	}
+
+	/**
+	 * Record that the rays from index from on start where a path of the given
+	 * length from the camera ends.
+	 */
+	public void setPathLength(int from, double pathLength) {
+		for (int i = from; i < size; i++)
+			this.pathLength[i] = pathLength;
+	}
+
+	/**
+	 * Set outRay to ray i of the queue.
+	 */
+	public void get(int i, Ray outRay) {
+		outRay.origin.set(origin[3 * i], origin[3 * i + 1], origin[3 * i + 2]);
+		outRay.direction.set(direction[3 * i], direction[3 * i + 1], direction[3 * i + 2]);
+		outRay.start = start[i];
+		outRay.end = end[i];
+		outRay.updateInverseDirection();
+	}
+
+	/**
+	 * Set outWeight to the weight of ray i.
+	 */
+	public void getWeight(int i, Colord outWeight) {
+		outWeight.set(weight[3 * i], weight[3 * i + 1], weight[3 * i + 2]);
+	}
+
+	/**
+	 * Reorder the rays by group and, within a group, by the octant of their
+	 * direction, keeping the order within an octant, so that consecutive rays
+	 * visit the BVH in the same order. The rays are moved into scratch, whose
+	 * arrays are swapped with this queue's.
+	 */
+	public void sortByOctant(RayQueue scratch) {
+		int keys = 0;
+		for (int i = 0; i < size; i++)
+			keys = Math.max(keys, 8 * group[i] + 8);
+		if (offsets.length < keys + 1)
+			offsets = new int[keys + 1];
+		Arrays.fill(offsets, 0, keys + 1, 0);
+		for (int i = 0; i < size; i++)
+			offsets[key(i) + 1]++;
+		boolean sorted = true;
+		for (int k = 0; k < keys; k++) {
+			sorted &= offsets[k + 1] == 0 || offsets[k + 1] == size;
+			offsets[k + 1] += offsets[k];
+		}
+		if (sorted || scratch == this)
+			return;
+
+		if (scratch.pixel.length < size)
+			scratch.allocate(pixel.length);
+		for (int i = 0; i < size; i++) {
+			int j = offsets[key(i)]++;
+			System.arraycopy(origin, 3 * i, scratch.origin, 3 * j, 3);
+			System.arraycopy(direction, 3 * i, scratch.direction, 3 * j, 3);
+			System.arraycopy(weight, 3 * i, scratch.weight, 3 * j, 3);
+			scratch.start[j] = start[i];
+			scratch.end[j] = end[i];
+			scratch.pixel[j] = pixel[i];
+			scratch.depth[j] = depth[i];
+			scratch.group[j] = group[i];
+			scratch.sample[j] = sample[i];
+			scratch.dimension[j] = dimension[i];
+			scratch.pathLength[j] = pathLength[i];
+		}
+		scratch.size = size;
+		swap(scratch);
+		scratch.size = 0;
+	}
+
+	private int key(int i) {
+		return 8 * group[i] + octant(i);
+	}
+
+	private int octant(int i) {
+		return (direction[3 * i] < 0 ? 1 : 0) | (direction[3 * i + 1] < 0 ? 2 : 0) | (direction[3 * i + 2] < 0 ? 4 : 0);
+	}
+
+	/**
+	 * Exchange the contents of this queue and other.
+	 */
+	public void swap(RayQueue other) {
+		double[] d;
+		d = origin; origin = other.origin; other.origin = d;
+		d = direction; direction = other.direction; other.direction = d;
+		d = start; start = other.start; other.start = d;
+		d = end; end = other.end; other.end = d;
+		d = weight; weight = other.weight; other.weight = d;
+		d = pathLength; pathLength = other.pathLength; other.pathLength = d;
+		int[] n;
+		n = pixel; pixel = other.pixel; other.pixel = n;
+		n = depth; depth = other.depth; other.depth = n;
+		n = group; group = other.group; other.group = n;
+		n = sample; sample = other.sample; other.sample = n;
+		n = dimension; dimension = other.dimension; other.dimension = n;
+		int s = size; size = other.size; other.size = s;
+	}
+
+	private void grow() {
+		int capacity = 2 * pixel.length;
+		double[] o = origin, d = direction, s = start, e = end, w = weight, l = pathLength;
+		int[] p = pixel, k = depth, g = group, m = sample, n = dimension;
+		allocate(capacity);
+		System.arraycopy(o, 0, origin, 0, 3 * size);
+		System.arraycopy(d, 0, direction, 0, 3 * size);
+		System.arraycopy(s, 0, start, 0, size);
+		System.arraycopy(e, 0, end, 0, size);
+		System.arraycopy(w, 0, weight, 0, 3 * size);
+		System.arraycopy(p, 0, pixel, 0, size);
+		System.arraycopy(k, 0, depth, 0, size);
+		System.arraycopy(g, 0, group, 0, size);
+		System.arraycopy(m, 0, sample, 0, size);
+		System.arraycopy(n, 0, dimension, 0, size);
+		System.arraycopy(l, 0, pathLength, 0, size);
+	}
+}
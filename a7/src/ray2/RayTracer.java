@@ -1,14 +1,27 @@
 package ray2;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import ray2.camera.Camera;
+import ray2.output.EXRTileWriter;
+import ray2.output.PFMTileWriter;
+import ray2.output.PNGStreamWriter;
+import ray2.output.TileWriter;
+import ray2.sampler.Sampler;
+import ray2.shader.IrradianceCache;
 import ray2.shader.Shader;
 import ray2.viewer.QuickViewer;
 import egl.math.Colord;
+import egl.math.Vector2d;
 
 public class RayTracer {
 
@@ -17,11 +30,6 @@ public class RayTracer {
 	 */
 	public static final boolean DISPLAY = true;
 
-	/**
-	 * Output HDR image (using openEXR)
-	 */
-	public static final boolean writeHDR = false;
-
 	/**
 	 * The maximum number of recursive tracing calls allowed
 	 */
@@ -31,18 +39,79 @@ public class RayTracer {
 	protected static int SUB_WIDTH = 32;
 	protected static int SUB_HEIGHT = 32;
 
-	/**
-	 * Widget to draw the image spiral.
-	 */
-	private static final BlockSpiral spiral = new BlockSpiral();
-
 	/**
 	 * Useful little display window that shows rendering progress.
 	 * The window actually take a bit of time to render itself, so
 	 * you can turn it on or off by setting the DISPLAY flag at the
 	 * top of the file.
 	 */
-	private static QuickViewer viewer = null;
+	private QuickViewer viewer = null;
+
+	/**
+	 * The number of threads used to render image blocks. With a single
+	 * thread the blocks are rendered in spiral order on the calling thread.
+	 */
+	protected int numThreads = 1;
+	public void setNumThreads(int numThreads) { this.numThreads = Math.max(1, numThreads); }
+	public int getNumThreads() { return numThreads; }
+
+	/**
+	 * If set, blocks are rendered breadth-first by this WavefrontRenderer
+	 * instead of by renderBlock.
+	 */
+	protected WavefrontRenderer wavefront = null;
+	public void setWavefront(boolean wavefront) { this.wavefront = wavefront ? new WavefrontRenderer() : null; }
+
+	/**
+	 * If set, images are rendered in whole-frame passes of one sample per
+	 * pixel by this ProgressiveRenderer, which decides when to stop.
+	 */
+	protected ProgressiveRenderer progressive = null;
+	public void setProgressive(ProgressiveRenderer progressive) { this.progressive = progressive; }
+
+	/**
+	 * If positive, images are rendered in bands of this many rows, rounded up
+	 * to whole blocks, from the top of the image down, and every band is
+	 * written to the output files as soon as it is done. Only one band is in
+	 * memory at a time, however large the image. 0 renders the whole image
+	 * and writes it at the end.
+	 */
+	protected int streamRows = 0;
+	public void setStreamRows(int streamRows) { this.streamRows = Math.max(0, streamRows); }
+
+	/**
+	 * When streaming, also write the image as floating point to a PFM file.
+	 */
+	protected boolean streamPFM = false;
+	public void setStreamPFM(boolean streamPFM) { this.streamPFM = streamPFM; }
+
+	/**
+	 * Also write the image as floating point to an OpenEXR file, streamed
+	 * like the PNG file when streaming.
+	 */
+	protected boolean writeEXR = false;
+	public void setWriteEXR(boolean writeEXR) { this.writeEXR = writeEXR; }
+
+	/**
+	 * If set, every finished block is recorded in a Checkpoint file next to
+	 * the scene file, and a render of the same scene with the same settings
+	 * restores the blocks it finds there instead of rendering them again. The
+	 * file is deleted once the image is written.
+	 */
+	protected boolean useCheckpoints = false;
+	public void setCheckpoints(boolean useCheckpoints) { this.useCheckpoints = useCheckpoints; }
+
+	/**
+	 * If set, blocks are rendered on the worker processes of this
+	 * FarmCoordinator instead of in this JVM.
+	 */
+	protected FarmCoordinator farm = null;
+	public void setFarm(FarmCoordinator farm) { this.farm = farm; }
+
+	/**
+	 * The checkpoint of the render in progress, or null.
+	 */
+	private Checkpoint checkpoint = null;
 
 	public static class ScenePath {
 		/**
@@ -112,6 +181,14 @@ public class RayTracer {
 		ArrayList<ScenePath> pathArgs = new ArrayList<>();
 		ArrayList<ScenePath> scenesToRender = new ArrayList<>();
 		String currentRoot = directory;
+		int numThreads = 1;
+		boolean wavefront = false;
+		ProgressiveRenderer progressive = null;
+		int streamRows = 0;
+		boolean streamPFM = false;
+		boolean writeEXR = false;
+		boolean checkpoints = false;
+		FarmCoordinator farm = null;
 
 		// Use All The Arguments
 		for(int i = 0;i < args.length;i++) {
@@ -125,6 +202,76 @@ public class RayTracer {
 				// Use The CWD
 				currentRoot = null;
 				break;
+			case "-threads":
+				// Render Blocks In Parallel
+				i++;
+				if(i < args.length) numThreads = Integer.parseInt(args[i]);
+				break;
+			case "-wavefront":
+				// Render Blocks Breadth-First
+				wavefront = true;
+				break;
+			case "-progressive":
+				// Render In Passes Of One Sample Per Pixel
+				if(progressive == null) progressive = new ProgressiveRenderer();
+				break;
+			case "-passes":
+				i++;
+				if(progressive == null) progressive = new ProgressiveRenderer();
+				if(i < args.length) progressive.setPasses(Integer.parseInt(args[i]));
+				break;
+			case "-time-budget":
+				// Stop Passes When The Time Runs Out
+				i++;
+				if(progressive == null) progressive = new ProgressiveRenderer();
+				if(i < args.length) progressive.setTimeBudget(Double.parseDouble(args[i]));
+				break;
+			case "-target-noise":
+				// Stop Passes Once The Image Is Clean Enough
+				i++;
+				if(progressive == null) progressive = new ProgressiveRenderer();
+				if(i < args.length) progressive.setTargetNoise(Double.parseDouble(args[i]));
+				break;
+			case "-stream":
+				// Write Bands Of The Image As They Finish
+				if(streamRows == 0) streamRows = 4 * SUB_HEIGHT;
+				break;
+			case "-stream-rows":
+				i++;
+				if(i < args.length) streamRows = Integer.parseInt(args[i]);
+				break;
+			case "-stream-pfm":
+				// Write A Floating Point Copy As Well
+				if(streamRows == 0) streamRows = 4 * SUB_HEIGHT;
+				streamPFM = true;
+				break;
+			case "-exr":
+				// Write An OpenEXR Copy As Well
+				writeEXR = true;
+				break;
+			case "-checkpoint":
+				// Record Finished Blocks And Resume From Them
+				checkpoints = true;
+				break;
+			case "-workers":
+				// Render Blocks In Worker Processes
+				i++;
+				if(farm == null) farm = new FarmCoordinator();
+				if(i < args.length) farm.setNumWorkers(Integer.parseInt(args[i]));
+				break;
+			case "-farm-port":
+				// Wait For Workers Started By Hand
+				i++;
+				if(farm == null) farm = new FarmCoordinator();
+				farm.setSpawnWorkers(false);
+				if(i < args.length) farm.setPort(Integer.parseInt(args[i]));
+				break;
+			case "-worker-timeout":
+				// Give Up On Workers That Stop Answering
+				i++;
+				if(farm == null) farm = new FarmCoordinator();
+				if(i < args.length) farm.setWorkerTimeout(Integer.parseInt(args[i]));
+				break;
 			default:
 				// This Must Be A File
 				pathArgs.add(new ScenePath(currentRoot, args[i]));
@@ -164,17 +311,51 @@ public class RayTracer {
 
 		System.out.println("Attempting To Render " + scenesToRender.size() + " Scene(s)");
 		RayTracer rayTracer = new RayTracer();
+		rayTracer.setNumThreads(numThreads);
+		rayTracer.setWavefront(wavefront);
+		rayTracer.setProgressive(progressive);
+		rayTracer.setStreamRows(streamRows);
+		rayTracer.setStreamPFM(streamPFM);
+		rayTracer.setWriteEXR(writeEXR);
+		rayTracer.setCheckpoints(checkpoints);
+		// Streaming and progressive renders run here, so don't start workers that would sit idle
+		if (farm != null && (streamRows > 0 || progressive != null)) {
+			System.out.println("Workers are not used with -stream or -progressive; rendering here instead");
+			farm = null;
+		}
+		rayTracer.setFarm(farm);
 		rayTracer.run(scenesToRender);
 	}
 
 	public static void printUsage() {
-		System.out.println("Usage: java RayTracer [-p path] [directory1 directory2 ... | file1 file2 ...]");
+		System.out.println("Usage: java RayTracer [-p path] [-threads N] [-wavefront] [-progressive] [-passes N] [-time-budget S] [-target-noise X]");
+		System.out.println("                      [-stream] [-stream-rows N] [-stream-pfm] [-exr] [-checkpoint] [-workers N] [-farm-port P]");
+		System.out.println("                      [-worker-timeout S]");
+		System.out.println("                      [directory1 directory2 ... | file1 file2 ...]");
 		System.out.println("List each scene file you would like to render on the command line separated by spaces.");
 		System.out.println("You may also specify a directory, and all scene files in that directory will be rendered.");
 		System.out.println("By default, all files specified are prepended with a given path. Use the -p option to");
 		System.out.println("override this path. The path may be overriden multiple times or -pnull may be provided to set");
 		System.out.println("the path to the program's working directory. With no -p argument given, this path is: " + directory);
 		System.out.println("NB: the path is relative to the working directory of the application, which is normally the root of the CS4620 project.");
+		System.out.println("Use -threads N to render image blocks on N threads (default 1).");
+		System.out.println("Use -wavefront to trace the rays of each block in breadth-first waves.");
+		System.out.println("Use -progressive to render the whole image at one sample per pixel, then add passes of one more");
+		System.out.println("sample each. The passes stop after N passes (-passes N, default the scene's sample count), before");
+		System.out.println("running past S seconds (-time-budget S), or once the image noise is down to X (-target-noise X).");
+		System.out.println("Any of these three options implies -progressive.");
+		System.out.println("Use -stream to render the image in bands of rows from the top down and write each band to the");
+		System.out.println("PNG file as soon as it is done, so that only one band is held in memory. -stream-rows N sets the");
+		System.out.println("rows per band (default " + (4 * SUB_HEIGHT) + "), and -stream-pfm also writes a floating point <file>.pfm.");
+		System.out.println("Either option implies -stream. The display window and -progressive are not used when streaming.");
+		System.out.println("Use -exr to also write the image as floating point to <file>.exr (RLE compressed OpenEXR).");
+		System.out.println("Use -checkpoint to record finished blocks in <file>.checkpoint, so that a render that was stopped");
+		System.out.println("resumes where it left off when run again with the same settings. -progressive is not checkpointed.");
+		System.out.println("Use -workers N to render blocks in N worker JVMs started on this host. With -farm-port P the workers");
+		System.out.println("are not started; the renderer waits for N workers to connect to port P, each started with");
+		System.out.println("java ray2.FarmWorker host P. Workers are not used with -stream or -progressive. A worker that does");
+		System.out.println("not answer for S seconds (-worker-timeout S, default 600) is dropped, and killed if -workers started it;");
+		System.out.println("its block goes to another. Blocks left when every worker is gone are rendered in this process.");
 	}
 
 	/**
@@ -185,6 +366,28 @@ public class RayTracer {
 	 * @param args
 	 */
 	public void run(ArrayList<ScenePath> args) {
+		if (farm != null) {
+			try {
+				farm.start();
+			} catch (IOException e) {
+				System.out.println("Error occured while starting worker processes; rendering here instead");
+				System.err.println(e);
+				farm.close();
+				farm = null;
+			}
+		}
+		try {
+			renderScenes(args);
+		} finally {
+			if (farm != null)
+				farm.close();
+		}
+	}
+
+	/**
+	 * Render each of the scenes and write it out.
+	 */
+	protected void renderScenes(ArrayList<ScenePath> args) {
 		Parser parser = new Parser();
 		for (ScenePath p : args) {
 			// Set The Current Workspace For The Scene
@@ -195,16 +398,96 @@ public class RayTracer {
 
 			// Initialize the scene
 			scene.init();
+
+			// Pick up any blocks a previous run of the same render finished
+			checkpoint = null;
+			if (useCheckpoints && (progressive == null || streamRows > 0))
+				checkpoint = openCheckpoint(scene, sceneWorkspace.getFile());
+
+			IrradianceCache cache = scene.getIrradianceCache();
+			if (cache != null && cache.isCached() && (numThreads > 1 || checkpoint != null || farm != null))
+				System.out.println("Warning: the irradiance cache is filled in the order threads finish blocks, and"
+						+ " separately by each worker and by each resumed run, so the image depends on how the blocks"
+						+ " were scheduled");
+
+			if (streamRows > 0) {
+				// Render the scene, writing it out as it goes
+				boolean finished = renderStreaming(scene, sceneWorkspace.getFile());
+				if (checkpoint != null)
+					checkpoint.close(finished);
+				continue;
+			}
 			
 			// Render the scene
 			renderImage(scene);
 
 			// Write the image out
-			if (writeHDR)
+			scene.getImage().write(sceneWorkspace.getFile() + ".png");
+			if (writeEXR)
 				scene.getImage().writeHDR(sceneWorkspace.getFile() + ".exr");
-			else
-				scene.getImage().write(sceneWorkspace.getFile() + ".png");
+			if (checkpoint != null)
+				checkpoint.close(true);
+		}
+		checkpoint = null;
+	}
+
+	/**
+	 * Open the checkpoint of the scene at fileName, keyed by the scene file
+	 * and the settings that change the pixels: the engine, the block size and
+	 * the recursion limit. Files the scene loads, such as meshes and textures,
+	 * are not part of the key.
+	 *
+	 * @return the checkpoint, or null if it cannot be opened
+	 */
+	protected Checkpoint openCheckpoint(Scene scene, String fileName) {
+		Image image = scene.getImage();
+		String settings = "engine=" + (wavefront != null ? "wavefront" : "recursive") + " block=" + SUB_WIDTH + "x"
+				+ SUB_HEIGHT + " depth=" + MAX_DEPTH;
+		try {
+			byte[] key = Checkpoint.key(fileName, settings);
+			return new Checkpoint(fileName + ".checkpoint", key, image.getWidth(), image.getHeight());
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to open checkpoint: " + fileName + ".checkpoint");
+			System.err.println(e);
+			return null;
+		}
+	}
+
+	/**
+	 * Render the scene in bands of streamRows rows, streaming them to
+	 * fileName.png, to fileName.pfm if streamPFM is set and to fileName.exr if
+	 * writeEXR is set.
+	 *
+	 * @return true if the files were written in full
+	 */
+	protected boolean renderStreaming(Scene scene, String fileName) {
+		Image image = scene.getImage();
+		ArrayList<TileWriter> writers = new ArrayList<>();
+		try {
+			writers.add(new PNGStreamWriter(fileName + ".png", image.getWidth(), image.getHeight()));
+			if (streamPFM)
+				writers.add(new PFMTileWriter(fileName + ".pfm", image.getWidth(), image.getHeight()));
+			if (writeEXR)
+				writers.add(new EXRTileWriter(fileName + ".exr", image.getWidth(), image.getHeight(),
+						EXRTileWriter.RLE_COMPRESSION));
+			renderImage(scene, writers);
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to write file: " + fileName);
+			System.err.println(e);
+			e.printStackTrace();
+			return false;
+		} finally {
+			for (TileWriter writer : writers) {
+				try {
+					writer.close();
+				} catch (IOException e) {
+					System.out.println("Error occured while attempting to write file: " + fileName);
+					System.err.println(e);
+					return false;
+				}
+			}
 		}
+		return true;
 	}
 
 	/**
@@ -213,12 +496,30 @@ public class RayTracer {
 	 * @param scene The scene to be rendered
 	 */
 	public void renderImage(Scene scene) {
+		try {
+			renderImage(scene, null);
+		} catch (IOException e) {
+			throw new Error(e); // nothing is written without writers
+		}
+	}
+
+	/**
+	 * Render the entire scene. If writers is not null, the image is rendered
+	 * band by band and each band is handed to the writers once it is done, as
+	 * renderBlocksStreaming does; otherwise it is rendered into the scene's
+	 * image.
+	 *
+	 * @param scene The scene to be rendered
+	 * @param writers The files to stream the image to, or null
+	 */
+	public void renderImage(Scene scene, ArrayList<TileWriter> writers) throws IOException {
 
 		// Get the output image
 		Image image = scene.getImage();
 
-		// Setup viewer
-		if(DISPLAY)
+		// Setup viewer; it would need the whole image in memory, so there is none when streaming
+		viewer = null;
+		if(DISPLAY && writers == null)
 			viewer = QuickViewer.createImageViewer(image);
 
 		System.err.print("Starting render...");
@@ -228,10 +529,86 @@ public class RayTracer {
 		int height = image.getHeight();
 
 		//Setup the sub-block spiral
+		BlockSpiral spiral = new BlockSpiral();
 		spiral.initSubblockSpiral(width, height);
 
 		// Timing counters
 		long startTime = System.currentTimeMillis();
+		if (wavefront != null)
+			wavefront.resetCounters();
+		scene.resetShadowRays();
+
+		long cameraRays;
+		boolean localBlocks = false;
+		if (writers != null) {
+			localBlocks = true;
+			if (progressive != null)
+				System.out.println("Progressive rendering is not used when streaming");
+			cameraRays = renderBlocksStreaming(scene, image, writers);
+		}
+		else if (progressive != null) {
+			progressive.setNumThreads(numThreads);
+			cameraRays = progressive.render(scene, image, viewer);
+		}
+		else if (farm != null) {
+			ArrayList<int[]> leftover = new ArrayList<>();
+			cameraRays = farm.render(scene, sceneWorkspace, wavefront != null, image, spiral, checkpoint, viewer,
+					leftover);
+			// Without workers, finish the image here rather than write it out with holes
+			if (!leftover.isEmpty())
+				System.out.println("Rendering the " + leftover.size() + " blocks left here");
+			for (int[] block : leftover) {
+				cameraRays += renderBlockWithEngine(scene, image, block[0], block[1], block[2], block[3]);
+				if (viewer != null)
+					viewer.setImage(image, block[0], block[1], block[0] + block[2], block[1] + block[3]);
+			}
+		}
+		else if (numThreads > 1) {
+			localBlocks = true;
+			cameraRays = renderBlocksParallel(scene, image, spiral);
+		}
+		else {
+			localBlocks = true;
+			cameraRays = renderBlocksSerial(scene, image, spiral);
+		}
+
+		// Output time
+		long totalTime = (System.currentTimeMillis() - startTime);
+		System.out.println("Done.  Total rendering time: "
+				+ (totalTime / 1000.0) + " seconds");
+		int samples = scene.getSamples();
+		System.out.println("Average rays per pixel: " + String.format("%.2f", cameraRays / ((double) width * height))
+				+ " (at most " + (samples * samples) + ")");
+		// Workers count the shadow rays they trace in their own processes
+		if (farm == null)
+			System.out.println("Shadow rays per pixel: "
+					+ String.format("%.2f", scene.getShadowRays() / ((double) width * height)));
+		IrradianceCache cache = scene.getIrradianceCache();
+		if (cache != null && farm == null)
+			System.out.println("Irradiance cache: " + cache.getRecordCount() + " records, "
+					+ String.format("%.2f", cache.getGatherRays() / ((double) width * height))
+					+ " gather rays per pixel");
+		if (progressive != null && writers == null) {
+			System.out.println("Progressive: " + progressive.getPassesDone() + " passes, noise "
+					+ String.format("%.4g", progressive.getNoise()));
+		}
+		if (wavefront != null && localBlocks) {
+			long rays = wavefront.getTotalRays();
+			System.out.println("Wavefront: " + wavefront.getCameraRays() + " camera, " + wavefront.getSecondaryRays()
+					+ " secondary and " + wavefront.getShadowRays() + " shadow rays, "
+					+ String.format("%.2f", rays / (totalTime * 1000.0)) + " Mrays/s");
+		}
+	}
+
+	/**
+	 * Render every block of the spiral, one after the other, on the calling thread.
+	 *
+	 * @return the number of camera rays traced
+	 */
+	protected long renderBlocksSerial(Scene scene, Image image, BlockSpiral spiral) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		long cameraRays = 0;
 
 		//Loop over all blocks and render
 		int offsetX, offsetY, sizeX, sizeY;
@@ -244,20 +621,165 @@ public class RayTracer {
 			sizeX = Math.min(width-offsetX,SUB_WIDTH);
 			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
 
-			renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+			cameraRays += renderBlockWithEngine(scene, image, offsetX, offsetY, sizeX, sizeY);
 
 			//Update display
-			if(DISPLAY)
+			if(viewer != null)
 				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
 
 			System.out.println("finished " + (i+1) + "/" + spiral.totalSubblocks + " blocks");
 
 		}
+		return cameraRays;
+	}
 
-		// Output time
-		long totalTime = (System.currentTimeMillis() - startTime);
-		System.out.println("Done.  Total rendering time: "
-				+ (totalTime / 1000.0) + " seconds");
+	/**
+	 * Render the blocks of the spiral on a work-stealing pool of numThreads
+	 * threads. Blocks are handed to the pool in spiral order, so the image still
+	 * fills in from the center; each block writes a disjoint set of pixels.
+	 *
+	 * @return the number of camera rays traced
+	 */
+	protected long renderBlocksParallel(Scene scene, Image image, BlockSpiral spiral) {
+		int width = image.getWidth();
+		int height = image.getHeight();
+
+		AtomicInteger finished = new AtomicInteger();
+		AtomicLong cameraRays = new AtomicLong();
+		ArrayList<BlockTask> tasks = new ArrayList<>(spiral.totalSubblocks);
+		int offsetX, offsetY, sizeX, sizeY;
+		for(int i = 0; i < spiral.totalSubblocks; i++) {
+			spiral.incrementSublockSpiral();
+			offsetX = spiral.curSubX*SUB_WIDTH;
+			offsetY = spiral.curSubY*SUB_HEIGHT;
+			sizeX = Math.min(width-offsetX,SUB_WIDTH);
+			sizeY = Math.min(height-offsetY,SUB_HEIGHT);
+			tasks.add(new BlockTask(scene, image, offsetX, offsetY, sizeX, sizeY, finished, cameraRays, spiral.totalSubblocks));
+		}
+
+		ForkJoinPool pool = new ForkJoinPool(numThreads);
+		try {
+			for (BlockTask task : tasks)
+				pool.execute(task);
+			for (BlockTask task : tasks)
+				task.join();
+		} finally {
+			pool.shutdown();
+		}
+		return cameraRays.get();
+	}
+
+	/**
+	 * Render the image in bands of streamRows rows (rounded up to whole
+	 * blocks), from the top down, each into the same ImageBand, and hand
+	 * every finished band to the writers. The blocks of a band are rendered on
+	 * numThreads threads, as renderBlocksParallel does.
+	 *
+	 * @return the number of camera rays traced
+	 */
+	protected long renderBlocksStreaming(Scene scene, Image image, ArrayList<TileWriter> writers) throws IOException {
+		int width = image.getWidth();
+		int height = image.getHeight();
+		int rows = (Math.max(streamRows, 1) + SUB_HEIGHT - 1) / SUB_HEIGHT * SUB_HEIGHT;
+		int bands = (height + rows - 1) / rows;
+		int blocksX = (width + SUB_WIDTH - 1) / SUB_WIDTH;
+		int total = blocksX * ((height + SUB_HEIGHT - 1) / SUB_HEIGHT);
+		ImageBand band = new ImageBand(width, height, rows);
+
+		AtomicInteger finished = new AtomicInteger();
+		AtomicLong cameraRays = new AtomicLong();
+		ForkJoinPool pool = numThreads > 1 ? new ForkJoinPool(numThreads) : null;
+		try {
+			for (int b = bands - 1; b >= 0; b--) {
+				band.setBand(b * rows);
+				int bandRows = band.getBandRows();
+
+				ArrayList<BlockTask> tasks = new ArrayList<>();
+				for (int offsetY = band.getBandY(); offsetY < band.getBandY() + bandRows; offsetY += SUB_HEIGHT) {
+					for (int offsetX = 0; offsetX < width; offsetX += SUB_WIDTH) {
+						tasks.add(new BlockTask(scene, band, offsetX, offsetY, Math.min(width - offsetX, SUB_WIDTH),
+								Math.min(height - offsetY, SUB_HEIGHT), finished, cameraRays, total));
+					}
+				}
+				if (pool != null) {
+					for (BlockTask task : tasks)
+						pool.execute(task);
+					for (BlockTask task : tasks)
+						task.join();
+				} else {
+					for (BlockTask task : tasks)
+						task.compute();
+				}
+
+				for (TileWriter writer : writers)
+					writer.writeBlock(band, 0, band.getBandY(), width, bandRows);
+			}
+		} finally {
+			if (pool != null)
+				pool.shutdown();
+		}
+		return cameraRays.get();
+	}
+
+	/**
+	 * Render one block with the wavefront renderer, if one is set, or with
+	 * renderBlock. With a checkpoint, a block it has is restored from it
+	 * instead, and a block that is rendered is added to it.
+	 *
+	 * @return the number of camera rays traced
+	 */
+	protected long renderBlockWithEngine(Scene scene, Image image, int offsetX, int offsetY, int sizeX, int sizeY) {
+		if (checkpoint != null && checkpoint.isDone(offsetX, offsetY)) {
+			long cameraRays = checkpoint.restore(image, offsetX, offsetY);
+			if (cameraRays >= 0)
+				return cameraRays;
+		}
+		long cameraRays;
+		if (wavefront != null)
+			cameraRays = wavefront.renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		else
+			cameraRays = renderBlock(scene, image, offsetX, offsetY, sizeX, sizeY);
+		if (checkpoint != null)
+			checkpoint.save(image, offsetX, offsetY, sizeX, sizeY, cameraRays);
+		return cameraRays;
+	}
+
+	/**
+	 * A single image block, rendered by one of the pool's worker threads.
+	 */
+	private class BlockTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final Scene scene;
+		private final Image image;
+		private final int offsetX, offsetY, sizeX, sizeY;
+		private final AtomicInteger finished;
+		private final AtomicLong cameraRays;
+		private final int total;
+
+		BlockTask(Scene scene, Image image, int offsetX, int offsetY, int sizeX, int sizeY,
+				AtomicInteger finished, AtomicLong cameraRays, int total) {
+			this.scene = scene;
+			this.image = image;
+			this.offsetX = offsetX;
+			this.offsetY = offsetY;
+			this.sizeX = sizeX;
+			this.sizeY = sizeY;
+			this.finished = finished;
+			this.cameraRays = cameraRays;
+			this.total = total;
+		}
+
+		@Override
+		protected void compute() {
+			cameraRays.addAndGet(renderBlockWithEngine(scene, image, offsetX, offsetY, sizeX, sizeY));
+
+			//Update display
+			if(viewer != null)
+				viewer.setImage(image, offsetX, offsetY, offsetX+sizeX, offsetY+sizeY);
+
+			System.out.println("finished " + finished.incrementAndGet() + "/" + total + " blocks");
+		}
 	}
 
 
@@ -269,15 +791,31 @@ public class RayTracer {
 	 * @param ray the ray to shade
 	 */
 	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth) {
+		shadeRay(outColor, scene, ray, depth, ShadingContext.get());
+	}
+
+	/**
+	 * This method returns the color along a single ray in outColor, using the
+	 * scratch space of the given context.
+	 *
+	 * @param outColor output space
+	 * @param scene the scene
+	 * @param ray the ray to shade
+	 * @param context the calling thread's ShadingContext
+	 */
+	public static void shadeRay(Colord outColor, Scene scene, Ray ray, int depth, ShadingContext context) {
 
 		outColor.setZero();
 
 		if(depth > MAX_DEPTH)
 			return;
 
-		IntersectionRecord intersectionRecord = new IntersectionRecord();
+		IntersectionRecord intersectionRecord = context.frame(depth).record;
 
 		if (!scene.getFirstIntersection(intersectionRecord, ray)) {
+			// The background is not a light for the irradiance cache; see IrradianceCache
+			if (context.gathering)
+				return;
 			if(scene.cubeMap != null)
 				scene.cubeMap.evaluate(ray.direction, outColor);
 			else
@@ -286,13 +824,22 @@ public class RayTracer {
 			return;
 		}
 
+		// Ray directions are unit length, so t is the distance travelled
+		context.frame(depth).pathLength = (depth > 1 ? context.frame(depth - 1).pathLength : 0)
+				+ intersectionRecord.t;
+
 		Shader shader = intersectionRecord.surface.getShader();
-		shader.shade(outColor, scene, ray, intersectionRecord, depth);
+		shader.shade(outColor, scene, ray, intersectionRecord, depth, context);
 
 	}
 
 	/**
-	 * Render one block of the output image.
+	 * Render one block of the output image. Each pixel gets samples*samples
+	 * camera rays, placed by the scene's sampler; sample i*samples + j falls in
+	 * stratum (i, j) when the sampler is stratified. If the scene has an
+	 * adaptive threshold, the samples are instead taken in stratumOrder in
+	 * batches of the scene's adaptiveBatch, and a pixel stops
+	 * early once the standard error of its luminance drops to the threshold.
 	 *
 	 * @param scene The scene data
 	 * @param outImage the output image (write the output pixels here)
@@ -300,9 +847,13 @@ public class RayTracer {
 	 * @param offsetY the startingY value of the block
 	 * @param sizeX the width of the block
 	 * @param sizeY the height of the block
+	 * @return the number of camera rays traced
 	 */
-	public static void renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+	public static long renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
 
+		double threshold = scene.getAdaptiveThreshold();
+		if (threshold > 0 && scene.getSamples() > 1)
+			return renderBlockAdaptive(scene, outImage, offsetX, offsetY, sizeX, sizeY, threshold);
 
 		// Do some basic setup
 		Ray ray = new Ray();
@@ -315,27 +866,29 @@ public class RayTracer {
 
 		int samples = scene.getSamples();
 		double sInv = 1.0/samples;
-		double sInvD2 = sInv / 2;
 		double sInvSqr = sInv * sInv;
 		double exposure = scene.getExposure();
 
 		Camera cam = scene.getCamera();
+		ShadingContext context = ShadingContext.get();
+		context.frame(1).throughput = 1;
+		Sampler sampler = context.sampler(scene);
+		Vector2d pixelSample = new Vector2d();
 
 		for(int x = offsetX; x < (offsetX + sizeX); x++) {
 			for(int y = offsetY; y < (offsetY + sizeY); y++) {
 
 				pixelColor.setZero();
 
-				// TODO#A7 Implement supersampling for antialiasing.
-				// Each pixel should have (samples*samples) subpixels.
-				
 				for (int i = 0; i < samples; i++) {
 					for (int j = 0; j < samples; j++) {
 						rayColor.setZero();
-						double rx = (x + (i + 0.5) / samples) / width;
-						double ry = (y + (j + 0.5) / samples) / height;
+						sampler.startSample(x, y, i * samples + j, samples * samples);
+						sampler.next2D(pixelSample);
+						double rx = (x + pixelSample.x) / width;
+						double ry = (y + pixelSample.y) / height;
 						cam.getRay(ray, rx, ry);
-						shadeRay(rayColor, scene, ray, 1);
+						shadeRay(rayColor, scene, ray, 1, context);
 						pixelColor.add(rayColor);
 					}
 				}
@@ -344,5 +897,95 @@ public class RayTracer {
 
 			}
 		}
+		return (long) sizeX * sizeY * samples * samples;
+	}
+
+	/**
+	 * The adaptive half of renderBlock.
+	 */
+	private static long renderBlockAdaptive(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY,
+			double threshold) {
+		Ray ray = new Ray();
+		Colord pixelColor = new Colord();
+		Colord rayColor = new Colord();
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+
+		int samples = scene.getSamples();
+		int strata = samples * samples;
+		int batch = Math.min(scene.getAdaptiveBatch(), strata);
+		int[] order = stratumOrder(samples);
+		double exposure = scene.getExposure();
+		double thresholdSqr = threshold * threshold;
+
+		Camera cam = scene.getCamera();
+		ShadingContext context = ShadingContext.get();
+		context.frame(1).throughput = 1;
+		Sampler sampler = context.sampler(scene);
+		Vector2d pixelSample = new Vector2d();
+		long cameraRays = 0;
+
+		for(int x = offsetX; x < (offsetX + sizeX); x++) {
+			for(int y = offsetY; y < (offsetY + sizeY); y++) {
+
+				pixelColor.setZero();
+				double sum = 0, sumSqr = 0;
+				int n = 0;
+				while (n < strata) {
+					for (int end = Math.min(n + batch, strata); n < end; n++) {
+						rayColor.setZero();
+						sampler.startSample(x, y, order[n], strata);
+						sampler.next2D(pixelSample);
+						double rx = (x + pixelSample.x) / width;
+						double ry = (y + pixelSample.y) / height;
+						cam.getRay(ray, rx, ry);
+						shadeRay(rayColor, scene, ray, 1, context);
+						pixelColor.add(rayColor);
+
+						double lum = Math.min(1, exposure * (0.2126 * rayColor.x + 0.7152 * rayColor.y + 0.0722 * rayColor.z));
+						sum += lum;
+						sumSqr += lum * lum;
+					}
+
+					// Squared standard error of the mean luminance
+					double variance = Math.max(0, sumSqr - sum * sum / n) / (n - 1);
+					if (variance / n <= thresholdSqr)
+						break;
+				}
+				cameraRays += n;
+				pixelColor.mul(exposure / n);
+				outImage.setPixelColor(pixelColor, x, y);
+
+			}
+		}
+		return cameraRays;
+	}
+
+	/**
+	 * Order the strata of a samples*samples grid so that every prefix is spread
+	 * over the pixel: the strata are sorted by the bit-reversed Morton code of
+	 * their indices, so the first four are the corners of a 2x2 grid, the next
+	 * ones fill in a 4x4 grid, and so on.
+	 *
+	 * @return the strata, each as i*samples + j
+	 */
+	static int[] stratumOrder(int samples) {
+		int bits = 32 - Integer.numberOfLeadingZeros(Math.max(1, samples - 1));
+		long[] keys = new long[samples * samples];
+		for (int i = 0; i < samples; i++) {
+			for (int j = 0; j < samples; j++) {
+				long code = 0;
+				for (int b = 0; b < bits; b++)
+					code |= (long) (((i >> b) & 1) << 1 | ((j >> b) & 1)) << (2 * b);
+				long reversed = Long.reverse(code) >>> (64 - 2 * bits);
+				keys[i * samples + j] = reversed << 32 | (i * samples + j);
+			}
+		}
+		Arrays.sort(keys);
+		int[] order = new int[keys.length];
+		for (int k = 0; k < keys.length; k++)
+			order[k] = (int) keys[k];
+		return order;
 	}
 }
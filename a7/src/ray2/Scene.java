@@ -3,6 +3,7 @@ package ray2;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
 
 import ray2.accel.AccelStruct;
 import ray2.accel.Bvh;
@@ -10,7 +11,12 @@ import ray2.camera.Camera;
 import egl.math.Colord;
 import egl.math.Matrix4d;
 import ray2.light.Cubemap;
+import ray2.light.EnvironmentLight;
 import ray2.light.Light;
+import ray2.light.LightTree;
+import ray2.sampler.Sampler;
+import ray2.sampler.StratifiedSampler;
+import ray2.shader.IrradianceCache;
 import ray2.shader.Shader;
 import ray2.shader.Texture;
 import ray2.surface.Surface;
@@ -83,6 +89,86 @@ public class Scene {
 	public int getSamples() { return this.samples==0 ? 1 : this.samples; }
 	public void setSamples(int n) {	samples = (int)Math.round(Math.sqrt(n)); }
 
+	/**
+	 * Where the sample values come from: positions within pixels, points on
+	 * area lights and the like. Each rendering thread works with its own copy,
+	 * see ShadingContext.sampler. The default is the regular grid in pixels.
+	 */
+	protected Sampler sampler = new StratifiedSampler();
+	public void setSampler(Sampler sampler) { this.sampler = sampler; }
+	public Sampler getSampler() { return sampler; }
+
+	/**
+	 * If positive, pixels are sampled adaptively: the samples^2 strata of a pixel
+	 * are visited in batches, coarse grid first, and sampling stops once the
+	 * standard error of the pixel's luminance (after exposure, clamped to 1)
+	 * falls to this value. Zero samples every stratum of every pixel.
+	 */
+	protected double adaptiveThreshold = 0;
+	public void setAdaptiveThreshold(double adaptiveThreshold) { this.adaptiveThreshold = Math.max(0, adaptiveThreshold); }
+	public double getAdaptiveThreshold() { return adaptiveThreshold; }
+
+	/** The number of samples in each batch of adaptive sampling, including the first. */
+	protected int adaptiveBatch = 8;
+	public void setAdaptiveBatch(int adaptiveBatch) { this.adaptiveBatch = Math.max(2, adaptiveBatch); }
+	public int getAdaptiveBatch() { return adaptiveBatch; }
+
+	/**
+	 * Glass and Glazed surfaces split a ray into two branches weighted by the
+	 * Fresnel reflectance. Branches that carry less than this fraction of a
+	 * camera sample's light play Russian roulette: they are followed with
+	 * probability proportional to their throughput and weighted up to make
+	 * up for the ones dropped, which keeps the image unbiased. Zero follows
+	 * every branch down to RayTracer.MAX_DEPTH.
+	 */
+	protected double rouletteThreshold = 0;
+	public void setRouletteThreshold(double rouletteThreshold) { this.rouletteThreshold = Math.max(0, rouletteThreshold); }
+	public double getRouletteThreshold() { return rouletteThreshold; }
+
+	/**
+	 * If true, Glass and Glazed follow only one branch at each hit, chosen
+	 * with probability equal to its Fresnel weight, so a camera sample traces
+	 * a path rather than a tree. More samples per pixel are then needed for
+	 * the same noise.
+	 */
+	protected boolean singleBranch = false;
+	public void setSingleBranch(boolean singleBranch) { this.singleBranch = singleBranch; }
+	public boolean getSingleBranch() { return singleBranch; }
+
+	/**
+	 * How shaders choose the lights to sample at a shading point: "all"
+	 * samples every light, "tree" samples lightSamples lights picked from a
+	 * LightTree by how much they are likely to add there, which keeps the
+	 * cost of a shading point from growing with the number of lights. Lights
+	 * without a position are sampled every time in both modes.
+	 */
+	protected String lightSampling = "all";
+	public void setLightSampling(String lightSampling) { this.lightSampling = lightSampling; }
+	public String getLightSampling() { return lightSampling; }
+
+	/** The number of lights picked from the tree at each shading point. */
+	protected int lightSamples = 1;
+	public void setLightSamples(int lightSamples) { this.lightSamples = Math.max(1, lightSamples); }
+	public int getLightSamples() { return lightSamples; }
+
+	/** The light tree, if lightSampling is "tree"; built by init. */
+	protected LightTree lightTree;
+	public LightTree getLightTree() { return lightTree; }
+
+	/** The number of shadow rays traced, for reporting; see Shader.isShadowed. */
+	protected final LongAdder shadowRays = new LongAdder();
+	public void countShadowRays(long count) { shadowRays.add(count); }
+	public long getShadowRays() { return shadowRays.sum(); }
+	public void resetShadowRays() { shadowRays.reset(); }
+
+	/**
+	 * If set, BRDFShader adds diffuse light reflected once off other surfaces,
+	 * interpolated from the cache's irradiance records.
+	 */
+	protected IrradianceCache irradianceCache;
+	public void setIrradianceCache(IrradianceCache irradianceCache) { this.irradianceCache = irradianceCache; }
+	public IrradianceCache getIrradianceCache() { return irradianceCache; }
+
 	/** The acceleration structure **/
 	protected AccelStruct accelStruct = new Bvh();
 	public void setAccelStruct(AccelStruct accelStruct) { this.accelStruct = accelStruct; }
@@ -100,11 +186,13 @@ public class Scene {
 		}
 	}
 
-	public void init() {
-		// Propagate transformation matrix through the tree hierarchy
-		setTransform();
-
-		// Create the acceleration structure.
+	/**
+	 * Collect the renderable surfaces of the whole tree hierarchy. The transforms
+	 * must already have been propagated by setTransform().
+	 *
+	 * @return a new array holding every surface that the acceleration structure intersects
+	 */
+	public Surface[] getRenderableSurfaces() {
 		ArrayList<Surface> renderableSurfaces = new ArrayList<Surface>();
 		List<Surface> surfaces = getSurfaces();
 		for (Iterator<Surface> iter = surfaces.iterator(); iter.hasNext();) {
@@ -113,16 +201,41 @@ public class Scene {
 
 		Surface surfaceArray[] = new Surface[renderableSurfaces.size()];
 		renderableSurfaces.toArray(surfaceArray);
-		getAccelStruct().build(surfaceArray);
+		return surfaceArray;
+	}
+
+	public void init() {
+		// Propagate transformation matrix through the tree hierarchy
+		setTransform();
+
+		// Create the acceleration structure.
+		Surface[] renderableSurfaces = getRenderableSurfaces();
+		long buildStart = System.currentTimeMillis();
+		getAccelStruct().build(renderableSurfaces);
+		long buildTime = System.currentTimeMillis() - buildStart;
+		System.out.println("Built " + getAccelStruct().getClass().getSimpleName() + " over "
+				+ renderableSurfaces.length + " surfaces in " + (buildTime / 1000.0) + " seconds");
 
 		// initialize camera
 		getCamera().init();
 
-		// initialize lights
+		// initialize lights; environment lights without a map of their own light the scene with its cubemap
 		for (Light light : getLights()) {
+			if (light instanceof EnvironmentLight && ((EnvironmentLight) light).getCubemap() == null)
+				((EnvironmentLight) light).setCubemap(cubeMap);
 			light.init();
 		}
 
+		// build the light tree
+		lightTree = null;
+		if (lightSampling.equals("tree")) {
+			lightTree = new LightTree(getLights());
+			System.out.println("Built light tree over " + (getLights().size() - lightTree.getUnboundedCount())
+					+ " lights");
+		} else if (!lightSampling.equals("all")) {
+			System.err.println("Unknown light sampling \"" + lightSampling + "\"; sampling all lights");
+		}
+
 		// initialize surfaces
 		for ( Surface surface : getSurfaces()) {
 			surface.init();
@@ -132,6 +245,9 @@ public class Scene {
 		for (Shader shader : getShaders()) {
 			shader.init();
 		}
+
+		if (irradianceCache != null)
+			irradianceCache.init(this);
 	}
 
 	/**
@@ -156,7 +272,31 @@ public class Scene {
 	 * @return true if any intersection is found
 	 */
 	public boolean getAnyIntersection(Ray ray) {
-		return accelStruct.intersect(new IntersectionRecord(), ray, true);	
+		return accelStruct.intersect(null, ray, true);
+	}
+
+	/**
+	 * Set outRecords[i] to the first intersection of rays[i] for the first
+	 * count rays, tracing them together as a packet. hits[i] is set to whether
+	 * rays[i] hit anything; the records of rays that miss are unchanged.
+	 * @param outRecords the output IntersectionRecords
+	 * @param rays the rays to intersect
+	 * @param hits set to true for the rays that intersect a surface
+	 * @param count the number of rays
+	 */
+	public void getFirstIntersections(IntersectionRecord[] outRecords, Ray[] rays, boolean[] hits, int count) {
+		accelStruct.intersectPacket(outRecords, rays, hits, count, false);
+	}
+
+	/**
+	 * Test the first count rays for any intersection, tracing them together
+	 * as a packet, and set hits[i] to whether rays[i] is blocked.
+	 * @param rays the rays to intersect
+	 * @param hits set to true for the rays that intersect a surface
+	 * @param count the number of rays
+	 */
+	public void getAnyIntersections(Ray[] rays, boolean[] hits, int count) {
+		accelStruct.intersectPacket(null, rays, hits, count, true);
 	}
 	
 }
\ No newline at end of file
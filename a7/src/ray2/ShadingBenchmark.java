@@ -0,0 +1,63 @@
+package ray2;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+
+/**
+ * Measures how much the render loop allocates. Every scene is rendered with
+ * renderBlock on the calling thread; after warm-up renders, the bytes
+ * allocated by the thread during one more render are reported per camera ray,
+ * together with the time per camera ray. Camera rays include all the
+ * secondary and shadow rays they spawn.
+ *
+ * Usage: java ray2.ShadingBenchmark [-scale N] [scene1.xml scene2.xml ...]
+ * Images are shrunk by the scale (default 4) to keep runs short. With no
+ * scenes every scene in RayTracer.directory is measured.
+ */
+public class ShadingBenchmark {
+
+	/** Untimed renders before measuring, so the JIT has compiled the loop. */
+	static final int WARMUP = 2;
+
+	public static void main(String[] args) {
+		ArrayList<String> files = new ArrayList<>();
+		int scale = 4;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-scale") && i + 1 < args.length)
+				scale = Integer.parseInt(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			for (File f : new File(RayTracer.directory).listFiles()) {
+				if (f.getName().endsWith(".xml"))
+					files.add(f.getName());
+			}
+			files.sort(null);
+		}
+
+		com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+
+		System.out.printf("%-22s %10s %12s %12s%n", "scene", "rays", "bytes/ray", "ns/ray");
+		for (String file : files) {
+			RayTracer.sceneWorkspace = new RayTracer.ScenePath(RayTracer.directory, file);
+			Scene scene = (Scene) new Parser().parse(RayTracer.sceneWorkspace.getFile(), Scene.class);
+			Image image = scene.getImage();
+			image.setSize(Math.max(1, image.getWidth() / scale), Math.max(1, image.getHeight() / scale));
+			scene.init();
+
+			for (int i = 0; i < WARMUP; i++)
+				RayTracer.renderBlock(scene, image, 0, 0, image.getWidth(), image.getHeight());
+
+			long bytes = threads.getThreadAllocatedBytes(thread);
+			long start = System.nanoTime();
+			long rays = RayTracer.renderBlock(scene, image, 0, 0, image.getWidth(), image.getHeight());
+			long time = System.nanoTime() - start;
+			bytes = threads.getThreadAllocatedBytes(thread) - bytes;
+
+			System.out.printf("%-22s %10d %12.1f %12.1f%n", file, rays, bytes / (double) rays, time / (double) rays);
+		}
+	}
+}
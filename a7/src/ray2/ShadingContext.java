@@ -0,0 +1,119 @@
+package ray2;
+
+import egl.math.Colord;
+import egl.math.Vector3d;
+import ray2.light.LightSamplingRecord;
+import ray2.sampler.Sampler;
+
+/**
+ * The scratch space of one rendering thread, so that shading a ray does not
+ * allocate. It holds one Frame per recursion depth: shadeRay at depth d keeps
+ * its intersection in frame(d).record, and the shader invoked from there may
+ * use the rest of frame(d) freely while it recurses into deeper frames.
+ *
+ * A context must only be used by the thread that owns it; get() returns the
+ * calling thread's context.
+ */
+public class ShadingContext {
+
+	/** The context of each thread. */
+	private static final ThreadLocal<ShadingContext> current = new ThreadLocal<ShadingContext>() {
+		@Override
+		protected ShadingContext initialValue() {
+			return new ShadingContext();
+		}
+	};
+
+	/**
+	 * @return the calling thread's context
+	 */
+	public static ShadingContext get() {
+		return current.get();
+	}
+
+	/** This thread's copy of a scene's sampler, and the sampler it copies. */
+	private Sampler sampler;
+	private Sampler samplerSource;
+
+	/**
+	 * @return this thread's copy of the scene's sampler. The renderer starts
+	 *         each camera sample on it, and everything shaded for the sample
+	 *         draws its values from it.
+	 */
+	public Sampler sampler(Scene scene) {
+		Sampler source = scene.getSampler();
+		if (source != samplerSource) {
+			sampler = source.copy();
+			samplerSource = source;
+		}
+		return sampler;
+	}
+
+	/**
+	 * Set while an IrradianceCache traces rays to gather irradiance, so that
+	 * the surfaces they hit add only their direct light.
+	 */
+	public boolean gathering = false;
+
+	/** The frames created so far, by depth; more are added as needed. */
+	private Frame[] frames = new Frame[RayTracer.MAX_DEPTH + 2];
+
+	/**
+	 * @return the scratch space of the given recursion depth
+	 */
+	public Frame frame(int depth) {
+		if (depth >= frames.length) {
+			Frame[] grown = new Frame[Math.max(depth + 1, 2 * frames.length)];
+			System.arraycopy(frames, 0, grown, 0, frames.length);
+			frames = grown;
+		}
+		Frame frame = frames[depth];
+		if (frame == null)
+			frame = frames[depth] = new Frame();
+		return frame;
+	}
+
+	/**
+	 * The scratch space of one recursion depth. The fields have no meaning
+	 * between calls; each user sets what it reads.
+	 */
+	public static class Frame {
+		/** The closest hit of the ray being shaded at this depth. */
+		public final IntersectionRecord record = new IntersectionRecord();
+
+		/**
+		 * The fraction of its camera sample's light that the ray being shaded
+		 * at this depth carries. Set by whoever shades at this depth; camera
+		 * rays carry 1.
+		 */
+		public double throughput = 1;
+
+		/**
+		 * The length of the path from the camera to the hit being shaded at
+		 * this depth, over every segment, not just the last. Set by whoever
+		 * finds the hit, so that textures can tell how large an area one
+		 * sample covers there.
+		 */
+		public double pathLength;
+
+		/** A light sample and the shadow ray that tests it. */
+		public final LightSamplingRecord lightRecord = new LightSamplingRecord();
+		public final Ray shadowRay = new Ray();
+
+		/** Rays spawned by reflection and refraction. */
+		public final Ray reflectionRay = new Ray();
+		public final Ray refractionRay = new Ray();
+
+		public final Colord color1 = new Colord();
+		public final Colord color2 = new Colord();
+		public final Colord color3 = new Colord();
+
+		/** The color of shade when Shader.shadeDeferred falls back to it. */
+		public final Colord deferredColor = new Colord();
+
+		public final Vector3d vector1 = new Vector3d();
+		public final Vector3d vector2 = new Vector3d();
+		public final Vector3d vector3 = new Vector3d();
+		public final Vector3d vector4 = new Vector3d();
+	}
+}
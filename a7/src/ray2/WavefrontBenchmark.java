@@ -0,0 +1,119 @@
+package ray2;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import egl.math.Colord;
+
+/**
+ * Compares the WavefrontRenderer with the recursive RayTracer.renderBlock on
+ * the ray2 scenes. Both render the whole image on the calling thread, in
+ * blocks of the size RayTracer uses. For each, the time of the fastest of a
+ * few renders and the rays traced per second are reported, counting every
+ * camera, secondary and shadow ray the wavefront renderer traced, along with
+ * the largest difference between the two images. The wavefront renderer is
+ * timed with and without ray packets.
+ *
+ * Usage: java ray2.WavefrontBenchmark [-scale N] [scene1.xml scene2.xml ...]
+ * Images are shrunk by the scale (default 4) to keep runs short. With no
+ * scenes every scene in RayTracer.directory is measured.
+ */
+public class WavefrontBenchmark {
+
+	/** Timed repetitions; the fastest is reported. */
+	static final int REPEATS = 3;
+
+	public static void main(String[] args) {
+		ArrayList<String> files = new ArrayList<>();
+		int scale = 4;
+		for (int i = 0; i < args.length; i++) {
+			if (args[i].equals("-scale") && i + 1 < args.length)
+				scale = Integer.parseInt(args[++i]);
+			else
+				files.add(args[i]);
+		}
+		if (files.isEmpty()) {
+			for (File f : new File(RayTracer.directory).listFiles()) {
+				if (f.getName().endsWith(".xml"))
+					files.add(f.getName());
+			}
+			files.sort(null);
+		}
+
+		System.out.printf("%-22s %12s %14s %10s %14s %10s %14s %10s %12s%n", "scene", "rays",
+				"recursive ms", "Mrays/s", "wavefront ms", "Mrays/s", "no packets ms", "Mrays/s", "max diff");
+		for (String file : files) {
+			RayTracer.sceneWorkspace = new RayTracer.ScenePath(RayTracer.directory, file);
+			Scene scene = (Scene) new Parser().parse(RayTracer.sceneWorkspace.getFile(), Scene.class);
+			Image image = scene.getImage();
+			image.setSize(Math.max(1, image.getWidth() / scale), Math.max(1, image.getHeight() / scale));
+			scene.init();
+
+			WavefrontRenderer wavefront = new WavefrontRenderer();
+			WavefrontRenderer single = new WavefrontRenderer();
+			single.setPackets(false);
+			long recursiveTime = Long.MAX_VALUE, wavefrontTime = Long.MAX_VALUE, singleTime = Long.MAX_VALUE;
+			Image recursive = null;
+			for (int r = 0; r <= REPEATS; r++) {
+				long start = System.nanoTime();
+				render(scene, image, null);
+				long time = System.nanoTime() - start;
+				if (r > 0)
+					recursiveTime = Math.min(recursiveTime, time);
+				if (recursive == null)
+					recursive = new Image(image);
+
+				start = System.nanoTime();
+				render(scene, image, single);
+				time = System.nanoTime() - start;
+				if (r > 0)
+					singleTime = Math.min(singleTime, time);
+
+				wavefront.resetCounters();
+				start = System.nanoTime();
+				render(scene, image, wavefront);
+				time = System.nanoTime() - start;
+				if (r > 0)
+					wavefrontTime = Math.min(wavefrontTime, time);
+			}
+
+			long rays = wavefront.getTotalRays();
+			System.out.printf("%-22s %12d %14.1f %10.2f %14.1f %10.2f %14.1f %10.2f %12.3g%n", file, rays,
+					recursiveTime / 1e6, rays * 1e3 / recursiveTime,
+					wavefrontTime / 1e6, rays * 1e3 / wavefrontTime,
+					singleTime / 1e6, rays * 1e3 / singleTime,
+					maxDifference(recursive, image));
+		}
+	}
+
+	/**
+	 * Render the image in RayTracer's blocks, with the wavefront renderer if
+	 * it is not null.
+	 */
+	static void render(Scene scene, Image image, WavefrontRenderer wavefront) {
+		int width = image.getWidth(), height = image.getHeight();
+		for (int y = 0; y < height; y += RayTracer.SUB_HEIGHT) {
+			for (int x = 0; x < width; x += RayTracer.SUB_WIDTH) {
+				int sizeX = Math.min(width - x, RayTracer.SUB_WIDTH);
+				int sizeY = Math.min(height - y, RayTracer.SUB_HEIGHT);
+				if (wavefront != null)
+					wavefront.renderBlock(scene, image, x, y, sizeX, sizeY);
+				else
+					RayTracer.renderBlock(scene, image, x, y, sizeX, sizeY);
+			}
+		}
+	}
+
+	static double maxDifference(Image a, Image b) {
+		Colord ca = new Colord(), cb = new Colord();
+		double max = 0;
+		for (int y = 0; y < a.getHeight(); y++) {
+			for (int x = 0; x < a.getWidth(); x++) {
+				a.getPixelColor(ca, x, y);
+				b.getPixelColor(cb, x, y);
+				max = Math.max(max, Math.max(Math.abs(ca.x - cb.x), Math.max(Math.abs(ca.y - cb.y), Math.abs(ca.z - cb.z))));
+			}
+		}
+		return max;
+	}
+}
@@ -0,0 +1,316 @@
+package ray2;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import ray2.accel.Bvh;
+import ray2.camera.Camera;
+import ray2.sampler.Sampler;
+import ray2.shader.Shader;
+
+/**
+ * A breadth-first alternative to RayTracer.renderBlock. Rather than following
+ * each camera ray through shadeRay and the shaders' recursive calls, it works
+ * on a whole block at once in waves: all camera rays of the block are
+ * generated into a RayQueue, the queue is sorted by direction octant and
+ * intersected, and every hit is shaded with Shader.shadeDeferred, which queues
+ * reflected and refracted rays for the next wave and shadow rays for a shadow
+ * pass. Each ray carries the weight its color has in its pixel, so colors are
+ * accumulated into the pixels as they are found. Waves repeat until no rays
+ * remain.
+ *
+ * Camera rays are generated tile by tile, and each run of up to
+ * Bvh.MAX_PACKET of them with the same direction octant is intersected as a
+ * packet, as are the shadow rays they spawn toward each light. Later waves,
+ * made of rays scattered by the surfaces they hit, are traced one ray at a
+ * time since their rays no longer travel together.
+ *
+ * The result matches renderBlock up to rounding, except that adaptive
+ * sampling is not supported: every stratum of every pixel is sampled.
+ * Shaders without a wavefront form fall back to tracing recursively from the
+ * hit.
+ */
+public class WavefrontRenderer {
+
+	/** The most camera rays generated into one wave; larger blocks are split. */
+	protected int batchSize = 1 << 16;
+	public void setBatchSize(int batchSize) { this.batchSize = Math.max(1, batchSize); }
+
+	/** If true, every wave is sorted by ray direction before it is intersected. */
+	protected boolean sortRays = true;
+	public void setSortRays(boolean sortRays) { this.sortRays = sortRays; }
+
+	/** If true, camera rays and their shadow rays are intersected as packets. */
+	protected boolean packets = true;
+	public void setPackets(boolean packets) { this.packets = packets; }
+
+	/** Camera rays are generated in square tiles of this many pixels on a side. */
+	protected int tileSize = 8;
+	public void setTileSize(int tileSize) { this.tileSize = Math.max(1, tileSize); }
+
+	/** The number of rays traced so far, by kind. */
+	private final AtomicLong cameraRays = new AtomicLong();
+	private final AtomicLong secondaryRays = new AtomicLong();
+	private final AtomicLong shadowRays = new AtomicLong();
+	public long getCameraRays() { return cameraRays.get(); }
+	public long getSecondaryRays() { return secondaryRays.get(); }
+	public long getShadowRays() { return shadowRays.get(); }
+	public long getTotalRays() { return getCameraRays() + getSecondaryRays() + getShadowRays(); }
+
+	/** Set the ray counts back to zero, e.g. before rendering the next image. */
+	public void resetCounters() {
+		cameraRays.set(0);
+		secondaryRays.set(0);
+		shadowRays.set(0);
+	}
+
+	/** The queues and buffers of each thread, reused from block to block. */
+	private final ThreadLocal<Waves> waves = new ThreadLocal<Waves>() {
+		@Override
+		protected Waves initialValue() {
+			return new Waves();
+		}
+	};
+
+	/**
+	 * Render one block of the output image.
+	 *
+	 * @param scene The scene data
+	 * @param outImage the output image (write the output pixels here)
+	 * @param offsetX the startingX value of the block
+	 * @param offsetY the startingY value of the block
+	 * @param sizeX the width of the block
+	 * @param sizeY the height of the block
+	 * @return the number of camera rays traced
+	 */
+	public long renderBlock(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		int samples = scene.getSamples();
+		int rows = Math.max(1, Math.min(sizeY, batchSize / Math.max(1, sizeX * samples * samples)));
+		long traced = 0;
+		for (int y = offsetY; y < offsetY + sizeY; y += rows)
+			traced += renderRows(scene, outImage, offsetX, y, sizeX, Math.min(rows, offsetY + sizeY - y));
+		return traced;
+	}
+
+	/**
+	 * Render a block small enough to start as a single wave.
+	 */
+	private long renderRows(Scene scene, Image outImage, int offsetX, int offsetY, int sizeX, int sizeY) {
+		Waves w = waves.get();
+		ShadingContext context = ShadingContext.get();
+		Ray ray = w.ray;
+		Colord weight = w.weight;
+		Colord color = w.color;
+
+		int width = outImage.getWidth();
+		int height = outImage.getHeight();
+		int samples = scene.getSamples();
+		double sInv = 1.0/samples;
+		double sInvSqr = sInv * sInv;
+		double exposure = scene.getExposure();
+		Camera cam = scene.getCamera();
+		Sampler sampler = context.sampler(scene);
+		Vector2d pixelSample = w.pixelSample;
+		int strata = samples * samples;
+
+		int pixels = sizeX * sizeY;
+		if (w.pixels.length < 3 * pixels)
+			w.pixels = new double[3 * pixels];
+		Arrays.fill(w.pixels, 0, 3 * pixels, 0);
+
+		// Camera rays, tile by tile, with the samples of each pixel in the
+		// same order as renderBlock
+		RayQueue rays = w.rays;
+		rays.clear();
+		weight.set(1, 1, 1);
+		for (int tileY = offsetY; tileY < offsetY + sizeY; tileY += tileSize) {
+			for (int tileX = offsetX; tileX < offsetX + sizeX; tileX += tileSize) {
+				for (int y = tileY; y < Math.min(tileY + tileSize, offsetY + sizeY); y++) {
+					for (int x = tileX; x < Math.min(tileX + tileSize, offsetX + sizeX); x++) {
+						int pixel = (y - offsetY) * sizeX + (x - offsetX);
+						for (int i = 0; i < samples; i++) {
+							for (int j = 0; j < samples; j++) {
+								sampler.startSample(x, y, i * samples + j, strata);
+								sampler.next2D(pixelSample);
+								double rx = (x + pixelSample.x) / width;
+								double ry = (y + pixelSample.y) / height;
+								cam.getRay(ray, rx, ry);
+								rays.add(ray, weight, 1, pixel, 1);
+								rays.setSample(rays.size() - 1, i * samples + j, sampler.getDimension());
+							}
+						}
+					}
+				}
+			}
+		}
+		cameraRays.addAndGet(rays.size());
+
+		boolean first = true;
+		while (rays.size() > 0) {
+			boolean coherent = packets && first;
+			if (!first)
+				secondaryRays.addAndGet(rays.size());
+			first = false;
+			if (sortRays)
+				rays.sortByOctant(w.scratch);
+
+			// Intersect
+			int n = rays.size();
+			w.ensureRecords(n);
+			if (coherent) {
+				for (int i = 0; i < n; ) {
+					int count = w.gather(rays, i);
+					for (int k = 0; k < count; k++)
+						w.packetRecords[k] = w.records[i + k];
+					scene.getFirstIntersections(w.packetRecords, w.packet, w.packetHits, count);
+					for (int k = 0; k < count; k++)
+						w.hits[i + k] = rays.depth[i + k] <= RayTracer.MAX_DEPTH && w.packetHits[k];
+					i += count;
+				}
+			} else {
+				for (int i = 0; i < n; i++) {
+					rays.get(i, ray);
+					w.hits[i] = rays.depth[i] <= RayTracer.MAX_DEPTH && scene.getFirstIntersection(w.records[i], ray);
+				}
+			}
+
+			// Shade, queueing the next wave and the shadow rays
+			RayQueue next = w.next;
+			RayQueue shadows = w.shadows;
+			next.clear();
+			shadows.clear();
+			for (int i = 0; i < n; i++) {
+				int depth = rays.depth[i];
+				if (depth > RayTracer.MAX_DEPTH)
+					continue;
+				rays.get(i, ray);
+				rays.getWeight(i, weight);
+				int pixel = rays.pixel[i];
+				color.setZero();
+				if (!w.hits[i]) {
+					if (scene.cubeMap != null)
+						scene.cubeMap.evaluate(ray.direction, color);
+					else
+						color.set(scene.getBackColor());
+					color.mul(weight.x, weight.y, weight.z);
+				}
+				else {
+					// Continue the ray's sample where it left off
+					int sample = rays.sample[i];
+					sampler.startSample(offsetX + pixel % sizeX, offsetY + pixel / sizeX, sample, strata);
+					sampler.setDimension(rays.dimension[i]);
+					int queued = next.size();
+
+					IntersectionRecord record = w.records[i];
+					context.frame(depth).pathLength = rays.pathLength[i] + record.t;
+					Shader shader = record.surface.getShader();
+					shader.shadeDeferred(color, scene, ray, record, depth, weight, pixel, next, shadows, context);
+					// Branches queued by queueBranch keep the dimension they were given
+					next.setSample(queued, sample, sampler.getDimension());
+				}
+				w.pixels[3 * pixel] += color.x;
+				w.pixels[3 * pixel + 1] += color.y;
+				w.pixels[3 * pixel + 2] += color.z;
+			}
+
+			// Shadow rays add their light unless something blocks it
+			shadowRays.addAndGet(shadows.size());
+			scene.countShadowRays(shadows.size());
+			if (sortRays)
+				shadows.sortByOctant(w.scratch);
+			for (int i = 0; i < shadows.size(); ) {
+				int count;
+				if (coherent) {
+					count = w.gather(shadows, i);
+					scene.getAnyIntersections(w.packet, w.packetHits, count);
+				} else {
+					count = 1;
+					shadows.get(i, ray);
+					w.packetHits[0] = scene.getAnyIntersection(ray);
+				}
+				for (int k = 0; k < count; k++, i++) {
+					if (!w.packetHits[k]) {
+						int pixel = shadows.pixel[i];
+						w.pixels[3 * pixel] += shadows.weight[3 * i];
+						w.pixels[3 * pixel + 1] += shadows.weight[3 * i + 1];
+						w.pixels[3 * pixel + 2] += shadows.weight[3 * i + 2];
+					}
+				}
+			}
+
+			rays.swap(next);
+		}
+
+		for (int i = 0; i < 3 * pixels; i++)
+			w.pixels[i] = w.pixels[i] * sInvSqr * exposure;
+		outImage.setPixels(offsetX, offsetY, sizeX, sizeY, w.pixels, 0);
+		return (long) pixels * samples * samples;
+	}
+
+	/**
+	 * The queues and scratch objects of one thread.
+	 */
+	private static class Waves {
+		final RayQueue rays = new RayQueue(1024);
+		final RayQueue next = new RayQueue(1024);
+		final RayQueue shadows = new RayQueue(1024);
+		final RayQueue scratch = new RayQueue(1024);
+
+		/** The hit of each ray of the current wave. */
+		IntersectionRecord[] records = new IntersectionRecord[0];
+		boolean[] hits = new boolean[0];
+
+		/** The color sums of the pixels of the block, three per pixel. */
+		double[] pixels = new double[0];
+
+		final Ray ray = new Ray();
+		final Colord weight = new Colord();
+		final Colord color = new Colord();
+		final Vector2d pixelSample = new Vector2d();
+
+		/** The rays of the packet being intersected, with their records and hits. */
+		final Ray[] packet = new Ray[Bvh.MAX_PACKET];
+		final IntersectionRecord[] packetRecords = new IntersectionRecord[Bvh.MAX_PACKET];
+		final boolean[] packetHits = new boolean[Bvh.MAX_PACKET];
+
+		Waves() {
+			for (int k = 0; k < packet.length; k++)
+				packet[k] = new Ray();
+		}
+
+		/**
+		 * Load the packet with the rays of queue from index i on, up to a full
+		 * packet, the end of the queue, or the first ray of a different group
+		 * or direction octant.
+		 *
+		 * @return the number of rays loaded
+		 */
+		int gather(RayQueue queue, int i) {
+			int count = 0;
+			Ray lead = packet[0];
+			do {
+				Ray r = packet[count];
+				queue.get(i + count, r);
+				if (count > 0 && (queue.group[i + count] != queue.group[i]
+						|| r.signX != lead.signX || r.signY != lead.signY || r.signZ != lead.signZ))
+					break;
+				count++;
+			} while (count < packet.length && i + count < queue.size());
+			return count;
+		}
+
+		void ensureRecords(int n) {
+			if (records.length >= n)
+				return;
+			int old = records.length;
+			IntersectionRecord[] grown = new IntersectionRecord[Math.max(n, 2 * old)];
+			System.arraycopy(records, 0, grown, 0, old);
+			for (int i = old; i < grown.length; i++)
+				grown[i] = new IntersectionRecord();
+			records = grown;
+			hits = new boolean[grown.length];
+		}
+	}
+}
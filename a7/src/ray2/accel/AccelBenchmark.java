@@ -0,0 +1,150 @@
+package ray2.accel;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import ray2.IntersectionRecord;
+import ray2.Parser;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.camera.Camera;
+import ray2.surface.Surface;
+
+/**
+ * Compares acceleration structures on the ray2 scenes. For every scene the
+ * renderable surfaces are built into each structure, and the build time, the
+ * SAH cost of the resulting tree, and the time to trace one closest-hit camera
+ * ray per pixel (also given as millions of rays per second) are reported.
+ *
+ * Usage: java ray2.accel.AccelBenchmark [scene1.xml scene2.xml ...]
+ * With no arguments every scene in RayTracer.directory is measured.
+ */
+public class AccelBenchmark {
+
+	/** Build and trace repetitions; the fastest run is reported. */
+	static final int REPEATS = 3;
+
+	/**
+	 * Untimed passes over all structures before measuring, so that the JIT has
+	 * compiled the shared surface and traversal code for every structure alike.
+	 */
+	static final int WARMUP = 1;
+
+	/** Traversal and intersection costs used to score trees (as in SahBvh). */
+	static final double TRAVERSAL_COST = 0.125;
+	static final double INTERSECTION_COST = 1.0;
+
+	/**
+	 * @return the structures to compare, freshly constructed
+	 */
+	static AccelStruct[] createStructs() {
+		return new AccelStruct[] { new Bvh(), new SahBvh(), new Lbvh() };
+	}
+
+	public static void main(String[] args) {
+		ArrayList<String> files = new ArrayList<>();
+		if (args.length > 0) {
+			files.addAll(Arrays.asList(args));
+		} else {
+			for (File f : new File(RayTracer.directory).listFiles()) {
+				if (f.getName().endsWith(".xml"))
+					files.add(f.getName());
+			}
+			files.sort(null);
+		}
+
+		System.out.printf("%-22s %-14s %10s %10s %12s %10s %10s%n",
+				"scene", "accel", "surfaces", "build ms", "SAH cost", "ns/ray", "Mrays/s");
+		for (String file : files) {
+			try {
+				benchmarkScene(file);
+			} catch (Exception e) {
+				System.out.printf("%-22s skipped (%s)%n", file, e);
+			}
+		}
+	}
+
+	static void benchmarkScene(String file) {
+		RayTracer.sceneWorkspace = new RayTracer.ScenePath(RayTracer.directory, file);
+		Scene scene = (Scene) new Parser().parse(RayTracer.sceneWorkspace.getFile(), Scene.class);
+		scene.setTransform();
+		Surface[] surfaces = scene.getRenderableSurfaces();
+		Camera cam = scene.getCamera();
+		cam.init();
+		int width = scene.getImage().getWidth();
+		int height = scene.getImage().getHeight();
+
+		for (int w = 0; w < WARMUP; w++) {
+			for (AccelStruct accel : createStructs()) {
+				accel.build(Arrays.copyOf(surfaces, surfaces.length));
+				traceCameraRays(accel, cam, width, height);
+			}
+		}
+
+		for (AccelStruct accel : createStructs()) {
+			long bestBuild = Long.MAX_VALUE;
+			for (int r = 0; r < REPEATS; r++) {
+				Surface[] copy = Arrays.copyOf(surfaces, surfaces.length);
+				long t0 = System.nanoTime();
+				accel.build(copy);
+				bestBuild = Math.min(bestBuild, System.nanoTime() - t0);
+			}
+
+			long bestTrace = Long.MAX_VALUE;
+			for (int r = 0; r < REPEATS; r++) {
+				long t0 = System.nanoTime();
+				traceCameraRays(accel, cam, width, height);
+				bestTrace = Math.min(bestTrace, System.nanoTime() - t0);
+			}
+
+			double nsPerRay = bestTrace / (double) (width * height);
+			System.out.printf("%-22s %-14s %10d %10.2f %12.2f %10.1f %10.3f%n", file, accel.getClass().getSimpleName(),
+					surfaces.length, bestBuild / 1e6, sahCost(accel), nsPerRay, 1e3 / nsPerRay);
+		}
+	}
+
+	/**
+	 * Trace one closest-hit ray through the center of every pixel.
+	 *
+	 * @return the number of rays that hit something
+	 */
+	static int traceCameraRays(AccelStruct accel, Camera cam, int width, int height) {
+		Ray ray = new Ray();
+		IntersectionRecord record = new IntersectionRecord();
+		int hits = 0;
+		for (int y = 0; y < height; y++) {
+			for (int x = 0; x < width; x++) {
+				cam.getRay(ray, (x + 0.5) / width, (y + 0.5) / height);
+				if (accel.intersect(record, ray, false))
+					hits++;
+			}
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the SAH cost of a BVH, or NaN if the structure is not a Bvh
+	 */
+	static double sahCost(AccelStruct accel) {
+		if (!(accel instanceof Bvh) || ((Bvh) accel).root == null)
+			return Double.NaN;
+		BvhNode root = ((Bvh) accel).root;
+		double rootArea = halfArea(root);
+		return rootArea > 0 ? sahCost(root) / rootArea : Double.NaN;
+	}
+
+	private static double sahCost(BvhNode node) {
+		double area = halfArea(node);
+		if (node.isLeaf())
+			return area * INTERSECTION_COST * (node.surfaceIndexEnd - node.surfaceIndexStart);
+		return area * TRAVERSAL_COST + sahCost(node.child[0]) + sahCost(node.child[1]);
+	}
+
+	private static double halfArea(BvhNode node) {
+		double[] b = { node.minBound.x, node.minBound.y, node.minBound.z,
+				node.maxBound.x, node.maxBound.y, node.maxBound.z };
+		return Bvh.halfArea(b);
+	}
+}
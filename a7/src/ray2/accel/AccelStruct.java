@@ -29,4 +29,22 @@ public interface AccelStruct {
 	 * @return true if the ray intersects a surface in the scene; false otherwise.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection);
+
+	/**
+	 * Intersect a packet of rays, as intersect does for each of them: hits[i]
+	 * is set to whether rays[i] intersects a surface and, unless
+	 * anyIntersection is true, outRecords[i] to its first intersection.
+	 * Structures that can trace coherent rays together override this; by
+	 * default the rays are intersected one at a time.
+	 *
+	 * @param outRecords the output records, or null if anyIntersection is true
+	 * @param rays the rays to intersect
+	 * @param hits set to true for the rays that intersect a surface
+	 * @param count the number of rays, which start at index 0 of each array
+	 * @param anyIntersection as for intersect
+	 */
+	public default void intersectPacket(IntersectionRecord[] outRecords, Ray[] rays, boolean[] hits, int count, boolean anyIntersection) {
+		for (int i = 0; i < count; i++)
+			hits[i] = intersect(anyIntersection ? null : outRecords[i], rays[i], anyIntersection);
+	}
 }
@@ -2,7 +2,9 @@
 package ray2.accel;
 
 import java.util.Arrays;
-import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
 
 import egl.math.Vector3d;
 import ray2.IntersectionRecord;
@@ -19,13 +21,7 @@ public class Bvh implements AccelStruct {
 	/**
 	 * A shared surfaces array that will be used across every node in the tree.
 	 */
-	private Surface[] surfaces;
-
-	/**
-	 * A comparator class that can sort surfaces by x, y, or z coordinate. See
-	 * the subclass declaration below for details.
-	 */
-	static MyComparator cmp = new MyComparator();
+	protected Surface[] surfaces;
 
 	/** The root of the BVH tree. */
 	BvhNode root;
@@ -33,152 +29,489 @@ public class Bvh implements AccelStruct {
 	public Bvh() {
 	}
 
+	/**
+	 * The tree flattened in depth-first order. Node i stores its bounds in
+	 * nodeBounds[6*i .. 6*i+5] as (minX, minY, minZ, maxX, maxY, maxZ). The left
+	 * child of an interior node is always node i+1; nodeData[2*i] holds the
+	 * index of the right child and nodeData[2*i+1] is 0. For a leaf,
+	 * nodeData[2*i] is the first surface index and nodeData[2*i+1] the number of
+	 * surfaces.
+	 */
+	double[] nodeBounds;
+	int[] nodeData;
+
+	/**
+	 * Per-thread traversal stack and scratch records, so traversal does not
+	 * allocate. Each tree has its own, so a surface may itself hold a Bvh.
+	 */
+	private final ThreadLocal<Traversal> traversal = new ThreadLocal<Traversal>() {
+		@Override
+		protected Traversal initialValue() {
+			return new Traversal();
+		}
+	};
+
 	/**
 	 * Set outRecord to the first intersection of ray with the scene. Return
 	 * true if there was an intersection and false otherwise. If no intersection
 	 * was found outRecord is unchanged.
 	 *
+	 * The search only records t and what the surfaces need to finish the
+	 * record later; the location, normal and texture coordinates are filled
+	 * in once, for the closest hit. An any-intersection query computes none
+	 * of them.
+	 *
 	 * @param outRecord
 	 *            the output IntersectionRecord
-	 * @param ray
+	 * @param rayIn
 	 *            the ray to intersect
 	 * @param anyIntersection
 	 *            if true, will immediately return when found an intersection
 	 * @return true if and intersection is found.
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		return intersectHelper(root, outRecord, rayIn, anyIntersection);
+		if (anyIntersection || outRecord == null)
+			return hit(null, rayIn);
+		if (!hit(outRecord, rayIn))
+			return false;
+		outRecord.surface.fillRecord(outRecord, rayIn);
+		return true;
 	}
 
 	/**
-	 * A helper method to the main intersect method. It finds the intersection
-	 * with any of the surfaces under the given BVH node.
-	 * 
-	 * @param node
-	 *            a BVH node that we would like to find an intersection with
-	 *            surfaces under it
+	 * Find the first hit of the ray as Surface.hit does: only t, the surface
+	 * and u, v and primitive are recorded in outRecord. If outRecord is null,
+	 * return as soon as any hit is found.
+	 *
+	 * The flattened tree is walked with an explicit stack. At each interior
+	 * node both children are tested and the nearer one is visited first; the
+	 * farther one is pushed with its entry distance and skipped when popped if
+	 * a closer hit has been found in the meantime.
+	 *
 	 * @param outRecord
-	 *            the output InsersectionMethod
+	 *            the output IntersectionRecord, or null for any hit
 	 * @param rayIn
 	 *            the ray to intersect
-	 * @param anyIntersection
-	 *            if true, will immediately return when found an intersection
-	 * @return true if an intersection is found with any surface under the given
-	 *         node
-	 */
-	private boolean intersectHelper(BvhNode node, IntersectionRecord outRecord, Ray rayIn, boolean anyIntersection) {
-		// TODO#A7: fill in this function.
-		// Hint: For a leaf node, use a normal linear search. Otherwise, search
-		// in the left and right children.
-		// Another hint: save time by checking if the ray intersects the node
-		// first before checking the childrens.
-
-		// Case 1: check if ray intersects node.
-		if (!node.intersects(rayIn))
+	 * @return true if and intersection is found.
+	 */
+	public boolean hit(IntersectionRecord outRecord, Ray rayIn) {
+		Traversal tr = traversal.get();
+		Ray ray = tr.ray;
+		ray.set(rayIn);
+		IntersectionRecord tmpRecord = tr.record;
+		double[] bounds = nodeBounds;
+
+		if (BvhNode.slabEntry(bounds, 0, ray, ray.start, ray.end) == Double.POSITIVE_INFINITY)
 			return false;
 
-		// Case 2: check leaf nodes.
-		if (node.isLeaf()) {
-			boolean intersectionFound = false;
-			IntersectionRecord tmpRecord = new IntersectionRecord();
-			// temp ray used to udpate endpoint data.
-			Ray tmpRay = new Ray(rayIn);
-			for (int i = node.surfaceIndexStart; i < node.surfaceIndexEnd; i++) {
-				if (surfaces[i].intersect(tmpRecord, tmpRay) && tmpRecord.t < tmpRay.end) {
-					if (anyIntersection)
-						return true;
-					else {
+		boolean intersectionFound = false;
+		int sp = 0;
+		int node = 0;
+		while (true) {
+			int a = nodeData[2 * node];
+			int b = nodeData[2 * node + 1];
+			if (b > 0) {
+				// Leaf: linear search, shrinking the ray to the closest hit so far
+				for (int i = a; i < a + b; i++) {
+					if (outRecord == null) {
+						if (hitSurface(i, null, ray))
+							return true;
+					} else if (hitSurface(i, tmpRecord, ray) && tmpRecord.t < ray.end) {
 						intersectionFound = true;
-						tmpRay.end = tmpRecord.t;
-						if (outRecord != null)
-							outRecord.set(tmpRecord);
+						ray.end = tmpRecord.t;
+						outRecord.set(tmpRecord);
+					}
+				}
+			} else {
+				int left = node + 1;
+				double tLeft = BvhNode.slabEntry(bounds, 6 * left, ray, ray.start, ray.end);
+				double tRight = BvhNode.slabEntry(bounds, 6 * a, ray, ray.start, ray.end);
+				if (tLeft != Double.POSITIVE_INFINITY) {
+					if (tRight != Double.POSITIVE_INFINITY) {
+						// Visit the nearer child now and come back for the other one
+						if (tRight < tLeft) {
+							tr.push(sp++, left, tLeft);
+							node = a;
+						} else {
+							tr.push(sp++, a, tRight);
+							node = left;
+						}
+					} else {
+						node = left;
 					}
+					continue;
+				} else if (tRight != Double.POSITIVE_INFINITY) {
+					node = a;
+					continue;
 				}
 			}
-			return intersectionFound;
-		}
-
-		// Case 3: recurse on child nodes.
-		if (anyIntersection) {
-			return intersectHelper(node.child[0], outRecord, rayIn, anyIntersection)
-					|| intersectHelper(node.child[1], outRecord, rayIn, anyIntersection);
-		} else {
-			IntersectionRecord leftChildRecord = new IntersectionRecord();
-			IntersectionRecord rightChildRecord = new IntersectionRecord();
-			boolean leftIntersection = intersectHelper(node.child[0], leftChildRecord, rayIn, anyIntersection);
-			boolean rightIntersection = intersectHelper(node.child[1], rightChildRecord, rayIn, anyIntersection);
-
-			if (leftChildRecord.surface != null
-					&& (leftChildRecord.t < rightChildRecord.t || rightChildRecord.surface == null))
-				outRecord.set(leftChildRecord);
-			else
-				outRecord.set(rightChildRecord);
-			return leftIntersection || rightIntersection;
+
+			// Pop the next subtree that may still hold a closer hit
+			do {
+				if (sp == 0)
+					return intersectionFound;
+				sp--;
+			} while (tr.entries[sp] > ray.end);
+			node = tr.nodes[sp];
+		}
+	}
+
+	/**
+	 * The most rays traced together by intersectPacket; larger packets are
+	 * traced in pieces of this size.
+	 */
+	public static final int MAX_PACKET = 64;
+
+	/**
+	 * Intersect a packet of rays. Pieces of up to MAX_PACKET rays whose
+	 * directions lie in the same octant are traced together by hitPacket;
+	 * other rays have nothing to share and are traced one at a time.
+	 */
+	@Override
+	public void intersectPacket(IntersectionRecord[] outRecords, Ray[] rays, boolean[] hits, int count, boolean anyIntersection) {
+		for (int first = 0; first < count; first += MAX_PACKET) {
+			int n = Math.min(MAX_PACKET, count - first);
+			if (n > 1 && sameOctant(rays, first, n)) {
+				hitPacket(anyIntersection ? null : outRecords, rays, hits, first, n);
+				if (!anyIntersection) {
+					for (int i = first; i < first + n; i++) {
+						if (hits[i])
+							outRecords[i].surface.fillRecord(outRecords[i], rays[i]);
+					}
+				}
+			} else {
+				for (int i = first; i < first + n; i++)
+					hits[i] = intersect(anyIntersection ? null : outRecords[i], rays[i], anyIntersection);
+			}
+		}
+	}
+
+	private static boolean sameOctant(Ray[] rays, int first, int n) {
+		Ray r = rays[first];
+		for (int i = first + 1; i < first + n; i++) {
+			if (rays[i].signX != r.signX || rays[i].signY != r.signY || rays[i].signZ != r.signZ)
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Find the first hits of rays[first] to rays[first+n-1], as hit does for
+	 * each, walking the tree once for the whole packet. The rays must share
+	 * the octant of their directions, and n must be at most MAX_PACKET.
+	 *
+	 * Each node is visited with a mask of the rays that reached it. It is
+	 * first tested against the packet as a whole, with interval bounds on the
+	 * rays' origins and reciprocal directions: if no ray can enter it, it is
+	 * skipped at the cost of a single test. Otherwise each ray in the mask is
+	 * tested against it, clipped to its own closest hit so far, and only the
+	 * rays that enter it go on to its children. The children are visited in
+	 * the order of the first of those rays.
+	 *
+	 * @param outRecords the output records, or null for any hit; in that case
+	 *            a ray is retired as soon as it hits
+	 */
+	private void hitPacket(IntersectionRecord[] outRecords, Ray[] rays, boolean[] hits, int first, int n) {
+		Traversal tr = traversal.get();
+		Ray[] packet = tr.packet;
+		double[] box = tr.box;
+		IntersectionRecord tmpRecord = tr.record;
+		double[] bounds = nodeBounds;
+
+		// Copy the rays, which are shortened as hits are found, and bound
+		// their origins and reciprocal directions
+		double tMin = Double.POSITIVE_INFINITY, tMax = Double.NEGATIVE_INFINITY;
+		for (int k = 0; k < 6; k++) {
+			box[k] = Double.POSITIVE_INFINITY;
+			box[k + 6] = Double.NEGATIVE_INFINITY;
+		}
+		for (int k = 0; k < n; k++) {
+			Ray ray = packet[k];
+			ray.set(rays[first + k]);
+			hits[first + k] = false;
+			tMin = Math.min(tMin, ray.start);
+			tMax = Math.max(tMax, ray.end);
+			include(box, 0, ray.origin);
+			include(box, 3, ray.invDirection);
+		}
+		int nx = 3 * packet[0].signX, ny = 3 * packet[0].signY, nz = 3 * packet[0].signZ;
+
+		long all = n == 64 ? -1L : (1L << n) - 1;
+		long done = 0;
+		int sp = 0;
+		int node = 0;
+		long mask = all;
+		while (true) {
+			mask &= ~done;
+			int o = 6 * node;
+			if (mask != 0 && packetEntry(bounds, o, box, nx, ny, nz, tMin, tMax) != Double.POSITIVE_INFINITY) {
+				long entered = 0;
+				for (long m = mask; m != 0; m &= m - 1) {
+					int k = Long.numberOfTrailingZeros(m);
+					Ray ray = packet[k];
+					if (BvhNode.slabEntry(bounds, o, ray, ray.start, ray.end) != Double.POSITIVE_INFINITY)
+						entered |= 1L << k;
+				}
+				mask = entered;
+			} else {
+				mask = 0;
+			}
+
+			if (mask != 0) {
+				int a = nodeData[2 * node];
+				int b = nodeData[2 * node + 1];
+				if (b > 0) {
+					// Leaf: test every surface against every ray that got here
+					boolean shortened = false;
+					for (int i = a; i < a + b; i++) {
+						for (long m = mask & ~done; m != 0; m &= m - 1) {
+							int k = Long.numberOfTrailingZeros(m);
+							Ray ray = packet[k];
+							if (outRecords == null) {
+								if (hitSurface(i, null, ray)) {
+									hits[first + k] = true;
+									done |= 1L << k;
+								}
+							} else if (hitSurface(i, tmpRecord, ray) && tmpRecord.t < ray.end) {
+								hits[first + k] = true;
+								ray.end = tmpRecord.t;
+								outRecords[first + k].set(tmpRecord);
+								shortened = true;
+							}
+						}
+					}
+					if (done == all)
+						return;
+					if (shortened) {
+						tMax = Double.NEGATIVE_INFINITY;
+						for (int k = 0; k < n; k++)
+							tMax = Math.max(tMax, packet[k].end);
+					}
+				} else {
+					// Go on with the child nearer along the first ray's direction
+					int left = node + 1;
+					int l = 6 * left, r = 6 * a;
+					Vector3d d = packet[Long.numberOfTrailingZeros(mask)].direction;
+					double toRight = (bounds[r] + bounds[r + 3] - bounds[l] - bounds[l + 3]) * d.x
+							+ (bounds[r + 1] + bounds[r + 4] - bounds[l + 1] - bounds[l + 4]) * d.y
+							+ (bounds[r + 2] + bounds[r + 5] - bounds[l + 2] - bounds[l + 5]) * d.z;
+					if (toRight < 0) {
+						tr.pushPacket(sp++, left, mask);
+						node = a;
+					} else {
+						tr.pushPacket(sp++, a, mask);
+						node = left;
+					}
+					continue;
+				}
+			}
+
+			if (sp == 0)
+				return;
+			sp--;
+			node = tr.nodes[sp];
+			mask = tr.masks[sp];
+		}
+	}
+
+	/** Grow the box of v's held in box[offset..offset+2] and box[offset+6..offset+8] to include v. */
+	private static void include(double[] box, int offset, Vector3d v) {
+		box[offset] = Math.min(box[offset], v.x);
+		box[offset + 1] = Math.min(box[offset + 1], v.y);
+		box[offset + 2] = Math.min(box[offset + 2], v.z);
+		box[offset + 6] = Math.max(box[offset + 6], v.x);
+		box[offset + 7] = Math.max(box[offset + 7], v.y);
+		box[offset + 8] = Math.max(box[offset + 8], v.z);
+	}
+
+	/**
+	 * Interval version of BvhNode.slabEntry for a packet of rays with the
+	 * octant given by nx, ny, nz (3 times the sign bits). box holds the
+	 * minimum origin and reciprocal direction in box[0..5] and the maximum in
+	 * box[6..11]; the slab distances of every ray in the packet lie in the
+	 * products of these intervals.
+	 *
+	 * @return a lower bound on the entry distance of any ray in the packet, or
+	 *         positive infinity if none of them can enter the box
+	 */
+	static double packetEntry(double[] bounds, int offset, double[] box, int nx, int ny, int nz, double tMin, double tMax) {
+		// As in slabEntry, NaN bounds (from 0 * infinity) leave the interval unchanged
+		double t;
+		t = lower(bounds[offset + nx] - box[6], bounds[offset + nx] - box[0], box[3], box[9]);
+		if (t > tMin) tMin = t;
+		t = lower(bounds[offset + 1 + ny] - box[7], bounds[offset + 1 + ny] - box[1], box[4], box[10]);
+		if (t > tMin) tMin = t;
+		t = lower(bounds[offset + 2 + nz] - box[8], bounds[offset + 2 + nz] - box[2], box[5], box[11]);
+		if (t > tMin) tMin = t;
+		t = upper(bounds[offset + 3 - nx] - box[6], bounds[offset + 3 - nx] - box[0], box[3], box[9]);
+		if (t < tMax) tMax = t;
+		t = upper(bounds[offset + 4 - ny] - box[7], bounds[offset + 4 - ny] - box[1], box[4], box[10]);
+		if (t < tMax) tMax = t;
+		t = upper(bounds[offset + 5 - nz] - box[8], bounds[offset + 5 - nz] - box[2], box[5], box[11]);
+		if (t < tMax) tMax = t;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	/** The smallest product of a number in [a0, a1] and one in [b0, b1], or NaN. */
+	private static double lower(double a0, double a1, double b0, double b1) {
+		return Math.min(Math.min(a0 * b0, a0 * b1), Math.min(a1 * b0, a1 * b1));
+	}
+
+	/** The largest product of a number in [a0, a1] and one in [b0, b1], or NaN. */
+	private static double upper(double a0, double a1, double b0, double b1) {
+		return Math.max(Math.max(a0 * b0, a0 * b1), Math.max(a1 * b0, a1 * b1));
+	}
+
+	/**
+	 * Hit test the ray against the i-th surface of the (reordered) surfaces
+	 * array, as Surface.hit. Subclasses whose leaves address primitives by
+	 * index rather than through Surface objects override this.
+	 */
+	protected boolean hitSurface(int i, IntersectionRecord outRecord, Ray ray) {
+		return surfaces[i].hit(outRecord, ray);
+	}
+
+	/**
+	 * Pack the tree under root into nodeBounds and nodeData.
+	 */
+	protected void flatten() {
+		int count = countNodes(root);
+		nodeBounds = new double[6 * count];
+		nodeData = new int[2 * count];
+		flatten(root, 0);
+	}
+
+	/**
+	 * Drop the BvhNode tree once it has been flattened. Traversal only reads
+	 * nodeBounds and nodeData, so structures that are kept for a long time can
+	 * give the node objects back.
+	 */
+	protected void releaseTree() {
+		root = null;
+	}
+
+	private static int countNodes(BvhNode node) {
+		return node.isLeaf() ? 1 : 1 + countNodes(node.child[0]) + countNodes(node.child[1]);
+	}
+
+	/**
+	 * Write node at index i and its subtree after it.
+	 *
+	 * @return the index following the last node of the subtree
+	 */
+	private int flatten(BvhNode node, int i) {
+		int o = 6 * i;
+		nodeBounds[o] = node.minBound.x;
+		nodeBounds[o + 1] = node.minBound.y;
+		nodeBounds[o + 2] = node.minBound.z;
+		nodeBounds[o + 3] = node.maxBound.x;
+		nodeBounds[o + 4] = node.maxBound.y;
+		nodeBounds[o + 5] = node.maxBound.z;
+		if (node.isLeaf()) {
+			nodeData[2 * i] = node.surfaceIndexStart;
+			nodeData[2 * i + 1] = node.surfaceIndexEnd - node.surfaceIndexStart;
+			return i + 1;
+		}
+		int right = flatten(node.child[0], i + 1);
+		nodeData[2 * i] = right;
+		nodeData[2 * i + 1] = 0;
+		return flatten(node.child[1], right);
+	}
+
+	/**
+	 * The scratch state of one thread's traversals: a stack of pending nodes
+	 * with their entry distances, and the record and ray used at the leaves.
+	 */
+	private static class Traversal {
+		int[] nodes = new int[64];
+		double[] entries = new double[64];
+		final IntersectionRecord record = new IntersectionRecord();
+		final Ray ray = new Ray();
+
+		/** For packets: the masks of rays pending with each node, the rays and their bounds. */
+		long[] masks = new long[64];
+		final Ray[] packet = new Ray[MAX_PACKET];
+		final double[] box = new double[12];
+
+		Traversal() {
+			for (int k = 0; k < packet.length; k++)
+				packet[k] = new Ray();
 		}
 
+		void pushPacket(int sp, int node, long mask) {
+			if (sp == nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * sp);
+				entries = Arrays.copyOf(entries, 2 * sp);
+			}
+			if (sp == masks.length)
+				masks = Arrays.copyOf(masks, nodes.length);
+			nodes[sp] = node;
+			masks[sp] = mask;
+		}
+
+		void push(int sp, int node, double entry) {
+			if (sp == nodes.length) {
+				nodes = Arrays.copyOf(nodes, 2 * sp);
+				entries = Arrays.copyOf(entries, 2 * sp);
+			}
+			nodes[sp] = node;
+			entries[sp] = entry;
+		}
 	}
 
 	@Override
 	public void build(Surface[] surfaces) {
 		this.surfaces = surfaces;
-		root = createTree(0, surfaces.length);
+		if (surfaces.length >= parallelThreshold)
+			root = ForkJoinPool.commonPool().invoke(new SubtreeTask(0, surfaces.length));
+		else
+			root = createTree(0, surfaces.length);
+		flatten();
 	}
 
+	/**
+	 * Ranges of at least this many surfaces are built in parallel: their
+	 * bounds are reduced in parallel and their two subtrees are built as
+	 * separate fork/join tasks. The tree does not depend on this setting.
+	 */
+	protected int parallelThreshold = 4096;
+	public void setParallelThreshold(int parallelThreshold) { this.parallelThreshold = Math.max(2, parallelThreshold); }
+
 	/**
 	 * Create a BVH [sub]tree. This tree node will be responsible for storing
 	 * and processing surfaces[start] to surfaces[end-1]. If the range is small
 	 * enough, this will create a leaf BvhNode. Otherwise, the surfaces will be
-	 * sorted according to the axis of the axis-aligned bounding box that is
-	 * widest, and split into 2 children.
+	 * partitioned about their median along the axis of the axis-aligned
+	 * bounding box that is widest, and split into 2 children.
 	 * 
 	 * @param start
 	 *            The start index of surfaces
 	 * @param end
 	 *            The end index of surfaces
 	 */
-	private BvhNode createTree(int start, int end) {
-		// TODO#A7: fill in this function.
-
-		Vector3d minB = new Vector3d(Double.POSITIVE_INFINITY);
-		Vector3d maxB = new Vector3d(Double.NEGATIVE_INFINITY);
+	protected BvhNode createTree(int start, int end) {
 		// ==== Step 1 ====
 		// Find out the BIG bounding box enclosing all the surfaces in the range
-		// [start, end)
-		// and store them in minB and maxB.
-		// Hint: To find the bounding box for each surface, use getMinBound()
-		// and getMaxBound() */
-		for (int i = start; i < end; i++) {
-			Vector3d currentMinBound = surfaces[i].getMinBound();
-			Vector3d currentMaxBound = surfaces[i].getMaxBound();
-			if (currentMinBound.x < minB.x)
-				minB.x = currentMinBound.x;
-			if (currentMinBound.y < minB.y)
-				minB.y = currentMinBound.y;
-			if (currentMinBound.z < minB.z)
-				minB.z = currentMinBound.z;
-			if (currentMaxBound.x > maxB.x)
-				maxB.x = currentMaxBound.x;
-			if (currentMaxBound.y > maxB.y)
-				maxB.y = currentMaxBound.y;
-			if (currentMaxBound.z > maxB.z)
-				maxB.z = currentMaxBound.z;
-		}
+		// [start, end).
+		double[] bounds = new double[6];
+		computeBounds(start, end, bounds, null);
 
 		// ==== Step 2 ====
 		// Check for the base case.
 		// If the range [start, end) is small enough (e.g. less than or equal to
 		// 10), just return a new leaf node.
 		if (end - start <= 10)
-			return new BvhNode(minB, maxB, null, null, start, end);
+			return makeNode(bounds, null, null, start, end);
 
 		// ==== Step 3 ====
 		// Figure out the widest dimension (x or y or z).
 		// If x is the widest, set widestDim = 0. If y, set widestDim = 1. If z,
 		// set widestDim = 2.
 		int widestDim = 0;
-		double xWidth = maxB.x - minB.x;
-		double yWidth = maxB.y - minB.y;
-		double zWidth = maxB.z - minB.z;
+		double xWidth = bounds[3] - bounds[0];
+		double yWidth = bounds[4] - bounds[1];
+		double zWidth = bounds[5] - bounds[2];
 
 		if (xWidth > yWidth && xWidth > zWidth)
 			widestDim = 0;
@@ -188,45 +521,192 @@ public class Bvh implements AccelStruct {
 			widestDim = 2;
 
 		// ==== Step 4 ====
-		// Sort surfaces according to the widest dimension.
-		cmp.setIndex(widestDim);
-		Arrays.sort(surfaces, start, end, cmp);
+		// Partition the surfaces about the median of the widest dimension.
+		// Only the split matters, so a selection replaces a full sort.
+		int midpoint = (start + end) / 2;
+		selectMedian(start, end, midpoint, widestDim);
 
 		// ==== Step 5 ====
 		// Recursively create left and right children.
-		int midpoint = (start + end) / 2;
-		BvhNode leftChild = createTree(start, midpoint);
-		BvhNode rightChild = createTree(midpoint, end);
+		BvhNode[] children = createChildren(start, midpoint, end);
 
-		return new BvhNode(minB, maxB, leftChild, rightChild, start, end);
+		return makeNode(bounds, children[0], children[1], start, end);
 	}
 
-}
+	/**
+	 * Build the subtrees over [start, mid) and [mid, end). Large ranges
+	 * inside a fork/join build are split into two tasks.
+	 *
+	 * @return the left and right child
+	 */
+	protected BvhNode[] createChildren(int start, int mid, int end) {
+		if (end - start >= parallelThreshold && ForkJoinTask.inForkJoinPool()) {
+			SubtreeTask right = new SubtreeTask(mid, end);
+			right.fork();
+			BvhNode left = createTree(start, mid);
+			return new BvhNode[] { left, right.join() };
+		}
+		return new BvhNode[] { createTree(start, mid), createTree(mid, end) };
+	}
 
-/**
- * A subclass that compares the average position two surfaces by a given axis.
- * Use the setIndex(i) method to select which axis should be considered. i=0 ->
- * x-axis, i=1 -> y-axis, and i=2 -> z-axis.
- *
- */
-class MyComparator implements Comparator<Surface> {
-	int index;
+	/**
+	 * Reorder surfaces[start..end) so that surfaces[k] holds the surface that
+	 * would be there if the range were sorted by decreasing average position
+	 * along axis, with no smaller value before it and no larger one after it.
+	 */
+	private void selectMedian(int start, int end, int k, int axis) {
+		int lo = start;
+		int hi = end - 1;
+		while (hi > lo) {
+			double pivot = surfaces[(lo + hi) >>> 1].getAveragePosition().get(axis);
+			int i = lo;
+			int j = hi;
+			while (i <= j) {
+				while (surfaces[i].getAveragePosition().get(axis) > pivot)
+					i++;
+				while (surfaces[j].getAveragePosition().get(axis) < pivot)
+					j--;
+				if (i <= j) {
+					Surface tmp = surfaces[i];
+					surfaces[i] = surfaces[j];
+					surfaces[j] = tmp;
+					i++;
+					j--;
+				}
+			}
+			if (k <= j)
+				hi = j;
+			else if (k >= i)
+				lo = i;
+			else
+				return;
+		}
+	}
 
-	public MyComparator() {
+	/**
+	 * Compute the union of the bounding boxes of surfaces[start..end) and,
+	 * if centroidBounds is not null, the bounds of their average positions.
+	 * Both are written as (minX, minY, minZ, maxX, maxY, maxZ). Large ranges
+	 * inside a fork/join build are reduced in parallel.
+	 */
+	protected void computeBounds(int start, int end, double[] bounds, double[] centroidBounds) {
+		if (end - start >= parallelThreshold && ForkJoinTask.inForkJoinPool()) {
+			double[] result = new BoundsTask(start, end, centroidBounds != null).invoke();
+			System.arraycopy(result, 0, bounds, 0, 6);
+			if (centroidBounds != null)
+				System.arraycopy(result, 6, centroidBounds, 0, 6);
+			return;
+		}
+		emptyBounds(bounds, 0);
+		if (centroidBounds != null)
+			emptyBounds(centroidBounds, 0);
+		for (int i = start; i < end; i++) {
+			growBounds(bounds, 0, surfaces[i].getMinBound());
+			growBounds(bounds, 0, surfaces[i].getMaxBound());
+			if (centroidBounds != null)
+				growBounds(centroidBounds, 0, surfaces[i].getAveragePosition());
+		}
+	}
+
+	static BvhNode makeNode(double[] b, BvhNode left, BvhNode right, int start, int end) {
+		return new BvhNode(new Vector3d(b[0], b[1], b[2]), new Vector3d(b[3], b[4], b[5]), left, right, start, end);
+	}
+
+	/*
+	 * Boxes are stored as {minX, minY, minZ, maxX, maxY, maxZ} starting at an
+	 * offset o of a plain array, so that the build loops do not allocate.
+	 */
+
+	static void emptyBounds(double[] b, int o) {
+		b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+		b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
 	}
 
-	public void setIndex(int index) {
-		this.index = index;
+	static void growBounds(double[] b, int o, Vector3d p) {
+		if (p.x < b[o]) b[o] = p.x;
+		if (p.y < b[o + 1]) b[o + 1] = p.y;
+		if (p.z < b[o + 2]) b[o + 2] = p.z;
+		if (p.x > b[o + 3]) b[o + 3] = p.x;
+		if (p.y > b[o + 4]) b[o + 4] = p.y;
+		if (p.z > b[o + 5]) b[o + 5] = p.z;
 	}
 
-	public int compare(Surface o1, Surface o2) {
-		double v1 = o1.getAveragePosition().get(index);
-		double v2 = o2.getAveragePosition().get(index);
-		if (v1 < v2)
-			return 1;
-		if (v1 > v2)
-			return -1;
-		return 0;
+	static void unionBounds(double[] b, int o, double[] other, int p) {
+		for (int k = 0; k < 3; k++) {
+			if (other[p + k] < b[o + k]) b[o + k] = other[p + k];
+			if (other[p + k + 3] > b[o + k + 3]) b[o + k + 3] = other[p + k + 3];
+		}
 	}
 
+	/**
+	 * @return half the surface area of the box, or 0 for an empty box
+	 */
+	static double halfArea(double[] b) {
+		double dx = b[3] - b[0];
+		double dy = b[4] - b[1];
+		double dz = b[5] - b[2];
+		if (!(dx >= 0 && dy >= 0 && dz >= 0))
+			return 0;
+		return dx * dy + dy * dz + dz * dx;
+	}
+
+	/**
+	 * Builds the subtree over [start, end) as a fork/join task.
+	 */
+	private class SubtreeTask extends RecursiveTask<BvhNode> {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+
+		SubtreeTask(int start, int end) {
+			this.start = start;
+			this.end = end;
+		}
+
+		@Override
+		protected BvhNode compute() {
+			return createTree(start, end);
+		}
+	}
+
+	/**
+	 * Reduces the bounds (and optionally the centroid bounds) of [start, end)
+	 * by splitting the range in halves down to parallelThreshold surfaces.
+	 * The result holds the bounds at 0 and the centroid bounds at 6.
+	 */
+	private class BoundsTask extends RecursiveTask<double[]> {
+		private static final long serialVersionUID = 1L;
+		private final int start, end;
+		private final boolean centroids;
+
+		BoundsTask(int start, int end, boolean centroids) {
+			this.start = start;
+			this.end = end;
+			this.centroids = centroids;
+		}
+
+		@Override
+		protected double[] compute() {
+			double[] result = new double[12];
+			if (end - start < parallelThreshold) {
+				emptyBounds(result, 0);
+				emptyBounds(result, 6);
+				for (int i = start; i < end; i++) {
+					growBounds(result, 0, surfaces[i].getMinBound());
+					growBounds(result, 0, surfaces[i].getMaxBound());
+					if (centroids)
+						growBounds(result, 6, surfaces[i].getAveragePosition());
+				}
+				return result;
+			}
+			int mid = (start + end) >>> 1;
+			BoundsTask right = new BoundsTask(mid, end, centroids);
+			right.fork();
+			double[] left = new BoundsTask(start, mid, centroids).compute();
+			double[] other = right.join();
+			System.arraycopy(left, 0, result, 0, 12);
+			unionBounds(result, 0, other, 0);
+			unionBounds(result, 6, other, 6);
+			return result;
+		}
+	}
 }
@@ -78,71 +78,81 @@ public class BvhNode {
 	}
 	
 	/** 
-	 * Check if the ray intersects the bounding box.
+	 * Check if the ray intersects the bounding box. This reads the bounds in
+	 * place and takes reciprocals of ray.direction itself, so it is correct for
+	 * any ray; the traversal in Bvh uses the cached slab test below instead.
 	 * @param ray
 	 * @return true if ray intersects the bounding box
 	 */
 	public boolean intersects(Ray ray) {
-		// TODO#A7: fill in this function.
-		Vector3d minPt = new Vector3d(minBound);
-		Vector3d maxPt = new Vector3d(maxBound);
-		
 		Vector3d origin = ray.origin;
 		Vector3d dir = ray.direction;
-		
-		double tMin = ray.start;
-		double tMax = ray.end;
-		
-		double a;
-		double txMin, txMax;
-		
-		a = 1/dir.x;
-		if (a >= 0) {
-			txMin = a * (minPt.x - origin.x);
-			txMax = a * (maxPt.x - origin.x);
-		} else {
-			txMin = a * (maxPt.x - origin.x);
-			txMax = a * (minPt.x - origin.x);
-		}
-		if (tMin > txMax || txMin > tMax)
-			return false;
-		if (txMin > tMin)
-			tMin = txMin;
-		if (txMax < tMax)
-			tMax = txMax;
-		
-		double tyMin, tyMax;
-		a = 1/dir.y;
-		if (a >= 0) {
-			tyMin = a * (minPt.y - origin.y);
-			tyMax = a * (maxPt.y - origin.y);
-		} else {
-			tyMin = a * (maxPt.y - origin.y);
-			tyMax = a * (minPt.y - origin.y);
-		}
-		if (tMin > tyMax || tyMin > tMax)
-			return false;
-		if (tyMin > tMin)
-			tMin = tyMin;
-		if (tyMax < tMax)
-			tMax = tyMax;
-		
-		double tzMin, tzMax;
-		a = 1/dir.z;
-		if (a >= 0) {
-			tzMin = a * (minPt.z - origin.z);
-			tzMax = a * (maxPt.z - origin.z);
-		} else {
-			tzMin = a * (maxPt.z - origin.z);
-			tzMax = a * (minPt.z - origin.z);
-		}
-		if (tMin > tzMax || tzMin > tMax)
-			return false;
-		if (tzMin > tMin)
-			tMin = tzMin;
-		if (tzMax < tMax)
-			tMax = tzMax;
-		
-		return true;
+		return slab(minBound.x, maxBound.x, origin.x, 1 / dir.x,
+				minBound.y, maxBound.y, origin.y, 1 / dir.y,
+				minBound.z, maxBound.z, origin.z, 1 / dir.z,
+				ray.start, ray.end) != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Slab test of a ray against a box stored as
+	 * (minX, minY, minZ, maxX, maxY, maxZ) at bounds[offset]. The ray's cached
+	 * invDirection and sign bits pick the near and far planes directly, so the
+	 * test neither divides nor branches on the direction.
+	 *
+	 * @param bounds the packed box storage
+	 * @param offset the index of minX of the box
+	 * @param ray a ray whose inverse direction is up to date
+	 * @param tMin the start of the ray interval
+	 * @param tMax the end of the ray interval
+	 * @return the distance at which the ray enters the box, clamped to tMin, or
+	 *         positive infinity if the ray misses the box within [tMin, tMax]
+	 */
+	public static double slabEntry(double[] bounds, int offset, Ray ray, double tMin, double tMax) {
+		Vector3d o = ray.origin;
+		Vector3d inv = ray.invDirection;
+		int nx = 3 * ray.signX, ny = 3 * ray.signY, nz = 3 * ray.signZ;
+
+		// Near planes are at offset + 3*sign, far planes at offset + 3 - 3*sign
+		double t0 = (bounds[offset + nx] - o.x) * inv.x;
+		double t1 = (bounds[offset + 1 + ny] - o.y) * inv.y;
+		double t2 = (bounds[offset + 2 + nz] - o.z) * inv.z;
+		double s0 = (bounds[offset + 3 - nx] - o.x) * inv.x;
+		double s1 = (bounds[offset + 4 - ny] - o.y) * inv.y;
+		double s2 = (bounds[offset + 5 - nz] - o.z) * inv.z;
+
+		// The comparisons are written so that a NaN (ray origin on a slab
+		// plane of a zero direction component) leaves the interval unchanged.
+		if (t0 > tMin) tMin = t0;
+		if (t1 > tMin) tMin = t1;
+		if (t2 > tMin) tMin = t2;
+		if (s0 < tMax) tMax = s0;
+		if (s1 < tMax) tMax = s1;
+		if (s2 < tMax) tMax = s2;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * Slab test against an unpacked box with reciprocal directions given.
+	 * @return the entry distance, or positive infinity on a miss
+	 */
+	private static double slab(double minX, double maxX, double ox, double ix,
+			double minY, double maxY, double oy, double iy,
+			double minZ, double maxZ, double oz, double iz, double tMin, double tMax) {
+		double t0 = ix >= 0 ? (minX - ox) * ix : (maxX - ox) * ix;
+		double s0 = ix >= 0 ? (maxX - ox) * ix : (minX - ox) * ix;
+		double t1 = iy >= 0 ? (minY - oy) * iy : (maxY - oy) * iy;
+		double s1 = iy >= 0 ? (maxY - oy) * iy : (minY - oy) * iy;
+		double t2 = iz >= 0 ? (minZ - oz) * iz : (maxZ - oz) * iz;
+		double s2 = iz >= 0 ? (maxZ - oz) * iz : (minZ - oz) * iz;
+
+		if (t0 > tMin) tMin = t0;
+		if (t1 > tMin) tMin = t1;
+		if (t2 > tMin) tMin = t2;
+		if (s0 < tMax) tMax = s0;
+		if (s1 < tMax) tMax = s1;
+		if (s2 < tMax) tMax = s2;
+
+		return tMin <= tMax ? tMin : Double.POSITIVE_INFINITY;
 	}
 }
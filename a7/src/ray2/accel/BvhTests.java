@@ -1,6 +1,8 @@
 package ray2.accel;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Random;
 
 import static org.junit.Assert.*;
 
@@ -9,6 +11,7 @@ import org.junit.Test;
 
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJFace;
+import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.surface.Mesh;
 import ray2.surface.Sphere;
@@ -560,6 +563,228 @@ public class BvhTests {
                     !vectorsEqual(bvh40.root.child[0].child[0].maxBound, new Vector3d(31, 20, 1))));
     }
     
+    @Test
+    public void testBvhMatchesNaive() {
+        assertMatchesNaive(new Bvh(), "Bvh");
+    }
+    
+    @Test
+    public void testSahBvhMatchesNaive() {
+        assertMatchesNaive(new SahBvh(), "SahBvh");
+    }
+
+    @Test
+    public void testLbvhMatchesNaive() {
+        assertMatchesNaive(new Lbvh(), "Lbvh");
+        Lbvh wide = new Lbvh();
+        wide.setBitsPerAxis(21);
+        assertMatchesNaive(wide, "Lbvh with 63-bit codes");
+    }
+    
+    @Test
+    public void testParallelBuildMatchesSerial() {
+        Bvh serial = new Bvh();
+        serial.setParallelThreshold(Integer.MAX_VALUE);
+        Bvh parallel = new Bvh();
+        parallel.setParallelThreshold(16);
+        assertSameTree(serial, parallel, "Bvh");
+        
+        SahBvh serialSah = new SahBvh();
+        serialSah.setParallelThreshold(Integer.MAX_VALUE);
+        SahBvh parallelSah = new SahBvh();
+        parallelSah.setParallelThreshold(16);
+        assertSameTree(serialSah, parallelSah, "SahBvh");
+
+        Lbvh serialL = new Lbvh();
+        serialL.setParallelThreshold(Integer.MAX_VALUE);
+        Lbvh parallelL = new Lbvh();
+        parallelL.setParallelThreshold(16);
+        assertSameTree(serialL, parallelL, "Lbvh");
+    }
+    
+    @Test
+    public void testPacketsMatchSingleRays() {
+        assertPacketsMatch(new Bvh(), "Bvh");
+        assertPacketsMatch(new SahBvh(), "SahBvh");
+        assertPacketsMatch(new Lbvh(), "Lbvh");
+    }
+    
+    /**
+     * Intersect random rays with a transformed mesh, both packed and
+     * instanced, and check that the hits agree with those of a Bvh over the
+     * mesh's individual Triangles.
+     */
+    @Test
+    public void testPackedMeshesMatchTriangles() {
+        Random random = new Random(4620);
+        OBJMesh md = new OBJMesh();
+        for (int i = 0; i < 300; ++i) {
+            Vector3 c = new Vector3((float) (random.nextDouble() * 10 - 5), (float) (random.nextDouble() * 10 - 5), (float) (random.nextDouble() * 2 - 1));
+            md.positions.add(c);
+            md.positions.add(new Vector3(c).add((float) random.nextDouble(), (float) random.nextDouble(), 0.1f));
+            md.positions.add(new Vector3(c).add((float) -random.nextDouble(), (float) random.nextDouble(), -0.1f));
+            // Every other face has vertex normals
+            boolean normals = i % 2 == 0;
+            OBJFace face = new OBJFace(3, false, normals);
+            for (int k = 0; k < 3; ++k) {
+                face.positions[k] = 3 * i + k;
+                if (normals) {
+                    md.normals.add(new Vector3((float) random.nextDouble(), (float) random.nextDouble(), 1).normalize());
+                    face.normals[k] = md.normals.size() - 1;
+                }
+            }
+            md.faces.add(face);
+        }
+        
+        Matrix4d m = Matrix4d.createScale(2, 0.5, 1.5).mulAfter(Matrix4d.createRotationY(0.7)).mulAfter(Matrix4d.createTranslation(1, -2, 3));
+        Matrix4d mInv = new Matrix4d(m).invert();
+        Matrix4d mTInv = new Matrix4d(m).transpose().invert();
+        
+        Mesh owner = new Mesh(md);
+        Surface[] triangles = new Surface[md.faces.size()];
+        for (int i = 0; i < triangles.length; ++i) {
+            triangles[i] = new Triangle(owner, md.faces.get(i), null);
+            triangles[i].setTransformation(m, mInv, mTInv);
+        }
+        Bvh expectedBvh = new Bvh();
+        expectedBvh.build(triangles);
+        
+        for (boolean instanced : new boolean[] { true, false }) {
+            Mesh mesh = new Mesh(md);
+            mesh.setInstanced(instanced);
+            mesh.setTransformation(m, mInv, mTInv);
+            ArrayList<Surface> surfaces = new ArrayList<Surface>();
+            mesh.appendRenderableSurfaces(surfaces);
+            assertEquals("A mesh should be a single surface", 1, surfaces.size());
+            Bvh bvh = new Bvh();
+            bvh.build(surfaces.toArray(new Surface[1]));
+            
+            String name = instanced ? "Instanced mesh" : "Packed mesh";
+            IntersectionRecord expected = new IntersectionRecord();
+            IntersectionRecord actual = new IntersectionRecord();
+            Ray ray = new Ray();
+            for (int i = 0; i < 2000; ++i) {
+                ray.origin.set(random.nextDouble() * 30 - 15, random.nextDouble() * 30 - 15, 30);
+                ray.direction.set(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -1).normalize();
+                ray.makeOffsetRay();
+                boolean hitExpected = expectedBvh.intersect(expected, ray, false);
+                assertEquals(name + " first hit disagrees for ray " + i, hitExpected, bvh.intersect(actual, ray, false));
+                if (hitExpected) {
+                    assertEquals(name + " t disagrees for ray " + i, expected.t, actual.t, 1e-9);
+                    assertTrue(name + " location disagrees for ray " + i, vectorsEqual(expected.location, actual.location));
+                    assertTrue(name + " normal disagrees for ray " + i, vectorsEqual(expected.normal, actual.normal));
+                }
+                assertEquals(name + " any hit disagrees for ray " + i, hitExpected, bvh.intersect(null, ray, true));
+            }
+        }
+    }
+    
+    /**
+     * Build both structures over the same random spheres and check that the
+     * flattened trees are identical.
+     */
+    private void assertSameTree(Bvh a, Bvh b, String name) {
+        Surface[] spheres = randomSpheres(new Random(4620), 2000);
+        a.build(Arrays.copyOf(spheres, spheres.length));
+        b.build(Arrays.copyOf(spheres, spheres.length));
+        assertTrue(name + " parallel build produced different node bounds", Arrays.equals(a.nodeBounds, b.nodeBounds));
+        assertTrue(name + " parallel build produced a different node layout", Arrays.equals(a.nodeData, b.nodeData));
+    }
+    
+    private static Surface[] randomSpheres(Random random, int count) {
+        Surface[] spheres = new Surface[count];
+        for (int i = 0; i < spheres.length; ++i) {
+            Sphere si = new Sphere();
+            si.setCenter(new Vector3d(random.nextDouble() * 40 - 20, random.nextDouble() * 40 - 20, random.nextDouble() * 4 - 2));
+            si.setRadius(0.1 + random.nextDouble());
+            si.setTransformation(new Matrix4d(), new Matrix4d(), new Matrix4d());
+            spheres[i] = si;
+        }
+        return spheres;
+    }
+    
+    /**
+     * Build the given structure over a cloud of random spheres and check that
+     * its first hits and any-hit answers agree with a linear search.
+     */
+    private void assertMatchesNaive(AccelStruct accel, String name) {
+        Random random = new Random(4620);
+        Surface[] spheres = randomSpheres(random, 300);
+        NaiveAccelStruct naive = new NaiveAccelStruct();
+        naive.build(Arrays.copyOf(spheres, spheres.length));
+        accel.build(Arrays.copyOf(spheres, spheres.length));
+        
+        IntersectionRecord expected = new IntersectionRecord();
+        IntersectionRecord actual = new IntersectionRecord();
+        Ray ray = new Ray();
+        for (int i = 0; i < 2000; ++i) {
+            ray.origin.set(random.nextDouble() * 50 - 25, random.nextDouble() * 50 - 25, 30);
+            ray.direction.set(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -1).normalize();
+            ray.makeOffsetRay();
+            expected.surface = null;
+            actual.surface = null;
+            boolean hitExpected = naive.intersect(expected, ray, false);
+            boolean hitActual = accel.intersect(actual, ray, false);
+            assertEquals(name + " first hit disagrees with a linear search for ray " + i, hitExpected, hitActual);
+            if (hitExpected) {
+                assertTrue(name + " found a different first surface for ray " + i, expected.surface == actual.surface);
+                assertEquals(name + " found a different t for ray " + i, expected.t, actual.t, 1e-9);
+            }
+            assertEquals(name + " any hit disagrees with a linear search for ray " + i,
+                    hitExpected, accel.intersect(new IntersectionRecord(), ray, true));
+        }
+    }
+    
+    /**
+     * Trace packets of rays through the structure, both coherent ones from a
+     * common origin and scattered ones, and check that every ray gets the
+     * same first hit and any-hit answer as when traced alone.
+     */
+    private void assertPacketsMatch(AccelStruct accel, String name) {
+        Random random = new Random(4620);
+        Surface[] spheres = randomSpheres(random, 300);
+        accel.build(Arrays.copyOf(spheres, spheres.length));
+        
+        Ray[] rays = new Ray[100];
+        IntersectionRecord[] records = new IntersectionRecord[rays.length];
+        boolean[] hits = new boolean[rays.length];
+        boolean[] anyHits = new boolean[rays.length];
+        IntersectionRecord expected = new IntersectionRecord();
+        for (int i = 0; i < rays.length; ++i) {
+            rays[i] = new Ray();
+            records[i] = new IntersectionRecord();
+        }
+        for (int p = 0; p < 40; ++p) {
+            boolean coherent = p % 2 == 0;
+            double ox = random.nextDouble() * 40 - 20, oy = random.nextDouble() * 40 - 20;
+            for (int i = 0; i < rays.length; ++i) {
+                Ray ray = rays[i];
+                if (coherent) {
+                    ray.origin.set(ox, oy, 30);
+                    ray.direction.set(0.05 * (i % 10) - 0.2, 0.05 * (i / 10) - 0.2, -1).normalize();
+                } else {
+                    ray.origin.set(random.nextDouble() * 50 - 25, random.nextDouble() * 50 - 25, 30);
+                    ray.direction.set(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -1).normalize();
+                }
+                ray.makeOffsetRay();
+                records[i].surface = null;
+            }
+            accel.intersectPacket(records, rays, hits, rays.length, false);
+            accel.intersectPacket(null, rays, anyHits, rays.length, true);
+            for (int i = 0; i < rays.length; ++i) {
+                expected.surface = null;
+                boolean hitExpected = accel.intersect(expected, rays[i], false);
+                assertEquals(name + " packet " + p + " first hit disagrees for ray " + i, hitExpected, hits[i]);
+                if (hitExpected) {
+                    assertTrue(name + " packet " + p + " found a different surface for ray " + i, expected.surface == records[i].surface);
+                    assertEquals(name + " packet " + p + " found a different t for ray " + i, expected.t, records[i].t, 1e-9);
+                    assertTrue(name + " packet " + p + " found a different normal for ray " + i, vectorsEqual(expected.normal, records[i].normal));
+                }
+                assertEquals(name + " packet " + p + " any hit disagrees for ray " + i, hitExpected, anyHits[i]);
+            }
+        }
+    }
+    
     // Simple element-wise comparison.
     private boolean vectorsEqual(Vector3d v0, Vector3d v1) {
         double epsilon = 1e-4;
@@ -0,0 +1,195 @@
+package ray2.accel;
+
+import java.util.Arrays;
+
+import egl.math.Vector3d;
+import ray2.surface.Surface;
+
+/**
+ * A linear BVH (LBVH). Every surface is given a Morton code by quantizing its
+ * average position within the bounds of all centroids and interleaving the
+ * bits of the three coordinates. The codes are radix sorted, which lays the
+ * surfaces out along a Z-order curve, and the hierarchy is read off the sorted
+ * codes: each node splits its range where the highest bit that differs
+ * between its first and last code changes from 0 to 1. Bounds are merged
+ * bottom-up from the children, so no level rescans its surfaces.
+ *
+ * The trees are of lower quality than those of Bvh or SahBvh, but are much
+ * cheaper to build, which suits scenes that are rebuilt every frame. It can be
+ * selected from a scene file with
+ *
+ * <accelStruct type="Lbvh">
+ *   <bitsPerAxis>10</bitsPerAxis>
+ * </accelStruct>
+ */
+public class Lbvh extends Bvh {
+
+	/**
+	 * The number of quantization bits per axis. 10 gives 30-bit codes; up to
+	 * 21 (63-bit codes) can be used for very large or very uneven scenes, at
+	 * the cost of more radix sort passes.
+	 */
+	protected int bitsPerAxis = 10;
+	public void setBitsPerAxis(int bitsPerAxis) { this.bitsPerAxis = Math.max(1, Math.min(21, bitsPerAxis)); }
+
+	/** Ranges at most this large become leaves. */
+	protected int maxLeafSize = 4;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+
+	/** The sorted Morton codes; codes[i] belongs to surfaces[i]. */
+	long[] codes;
+
+	public Lbvh() {
+	}
+
+	@Override
+	public void build(Surface[] surfaces) {
+		this.surfaces = surfaces;
+		int n = surfaces.length;
+
+		double[] bounds = new double[6];
+		double[] centroidBounds = new double[6];
+		computeBounds(0, n, bounds, centroidBounds);
+
+		// Quantize every centroid to a cell of a 2^bitsPerAxis grid
+		double cells = (1 << bitsPerAxis) - 1;
+		double[] scale = new double[3];
+		for (int k = 0; k < 3; k++) {
+			double extent = centroidBounds[k + 3] - centroidBounds[k];
+			scale[k] = extent > 0 ? cells / extent : 0;
+		}
+		long[] keys = new long[n];
+		int[] order = new int[n];
+		for (int i = 0; i < n; i++) {
+			Vector3d p = surfaces[i].getAveragePosition();
+			keys[i] = mortonCode((long) ((p.x - centroidBounds[0]) * scale[0]),
+					(long) ((p.y - centroidBounds[1]) * scale[1]),
+					(long) ((p.z - centroidBounds[2]) * scale[2]));
+			order[i] = i;
+		}
+		radixSort(keys, order, 3 * bitsPerAxis);
+
+		Surface[] sorted = new Surface[n];
+		for (int i = 0; i < n; i++)
+			sorted[i] = surfaces[order[i]];
+		System.arraycopy(sorted, 0, surfaces, 0, n);
+		codes = keys;
+
+		super.build(surfaces);
+	}
+
+	/**
+	 * Create the [sub]tree over surfaces[start] to surfaces[end-1], splitting
+	 * at the first code that has the highest differing bit of the range set.
+	 * Ranges whose codes are all equal are split in half.
+	 *
+	 * @param start
+	 *            The start index of surfaces
+	 * @param end
+	 *            The end index of surfaces
+	 */
+	@Override
+	protected BvhNode createTree(int start, int end) {
+		if (end - start <= maxLeafSize) {
+			double[] bounds = new double[6];
+			computeBounds(start, end, bounds, null);
+			return makeNode(bounds, null, null, start, end);
+		}
+
+		int mid;
+		long first = codes[start];
+		long last = codes[end - 1];
+		if (first == last) {
+			mid = (start + end) >>> 1;
+		} else {
+			// The range shares every bit above this one, so the codes with it set
+			// form a suffix; find where that suffix begins
+			long bit = Long.highestOneBit(first ^ last);
+			int lo = start + 1;
+			int hi = end - 1;
+			while (lo < hi) {
+				int m = (lo + hi) >>> 1;
+				if ((codes[m] & bit) != 0)
+					hi = m;
+				else
+					lo = m + 1;
+			}
+			mid = lo;
+		}
+
+		BvhNode[] children = createChildren(start, mid, end);
+		BvhNode left = children[0];
+		BvhNode right = children[1];
+		double[] bounds = {
+				Math.min(left.minBound.x, right.minBound.x),
+				Math.min(left.minBound.y, right.minBound.y),
+				Math.min(left.minBound.z, right.minBound.z),
+				Math.max(left.maxBound.x, right.maxBound.x),
+				Math.max(left.maxBound.y, right.maxBound.y),
+				Math.max(left.maxBound.z, right.maxBound.z) };
+		return makeNode(bounds, left, right, start, end);
+	}
+
+	/**
+	 * @return the Morton code of a grid cell, with the bits of x, y and z
+	 *         interleaved as ...z1y1x1z0y0x0
+	 */
+	static long mortonCode(long x, long y, long z) {
+		return spreadBits(x) | (spreadBits(y) << 1) | (spreadBits(z) << 2);
+	}
+
+	/**
+	 * @return the low 21 bits of v spread out so that two zero bits follow
+	 *         each of them
+	 */
+	static long spreadBits(long v) {
+		v &= 0x1fffffL;
+		v = (v | (v << 32)) & 0x1f00000000ffffL;
+		v = (v | (v << 16)) & 0x1f0000ff0000ffL;
+		v = (v | (v << 8)) & 0x100f00f00f00f00fL;
+		v = (v | (v << 4)) & 0x10c30c30c30c30c3L;
+		v = (v | (v << 2)) & 0x1249249249249249L;
+		return v;
+	}
+
+	/**
+	 * Sort keys in increasing order, applying the same permutation to values,
+	 * with a stable least-significant-digit radix sort on 8-bit digits. Only
+	 * the low bits of each key take part; passes whose digit is the same for
+	 * every key are skipped.
+	 */
+	static void radixSort(long[] keys, int[] values, int bits) {
+		int n = keys.length;
+		long[] srcKeys = keys, dstKeys = new long[n];
+		int[] srcValues = values, dstValues = new int[n];
+		int[] offsets = new int[256];
+
+		for (int shift = 0; shift < bits; shift += 8) {
+			Arrays.fill(offsets, 0);
+			for (int i = 0; i < n; i++)
+				offsets[(int) (srcKeys[i] >>> shift) & 0xff]++;
+			if (n == 0 || offsets[(int) (srcKeys[0] >>> shift) & 0xff] == n)
+				continue;
+
+			int sum = 0;
+			for (int d = 0; d < 256; d++) {
+				int c = offsets[d];
+				offsets[d] = sum;
+				sum += c;
+			}
+			for (int i = 0; i < n; i++) {
+				int j = offsets[(int) (srcKeys[i] >>> shift) & 0xff]++;
+				dstKeys[j] = srcKeys[i];
+				dstValues[j] = srcValues[i];
+			}
+
+			long[] k = srcKeys; srcKeys = dstKeys; dstKeys = k;
+			int[] v = srcValues; srcValues = dstValues; dstValues = v;
+		}
+
+		if (srcKeys != keys) {
+			System.arraycopy(srcKeys, 0, keys, 0, n);
+			System.arraycopy(srcValues, 0, values, 0, n);
+		}
+	}
+}
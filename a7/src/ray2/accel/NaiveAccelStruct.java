@@ -32,7 +32,7 @@ public class NaiveAccelStruct implements AccelStruct {
 		ray.start = rayIn.start;
 		ray.end = rayIn.end;
 		for(int i = 0; i < surfaces.length; i++) {
-			if(surfaces[i].intersect(tmp, ray) && tmp.t < ray.end ) {
+			if(surfaces[i].hit(tmp, ray) && tmp.t < ray.end ) {
 				if(anyIntersection) return true;
 				ret = true;
 				ray.end = tmp.t;
@@ -40,6 +40,9 @@ public class NaiveAccelStruct implements AccelStruct {
 					outRecord.set(tmp);
 			}
 		}
+		// Only the closest hit needs its location, normal and texture coordinates
+		if(ret && outRecord != null)
+			outRecord.surface.fillRecord(outRecord, rayIn);
 		return ret;
 	}
 	
@@ -0,0 +1,164 @@
+package ray2.accel;
+
+import ray2.surface.Surface;
+
+/**
+ * A BVH whose splits are chosen with the surface area heuristic (SAH). Instead
+ * of sorting the surfaces at every level, the centroids of a node are dropped
+ * into a fixed number of bins along each axis and every bin boundary is
+ * evaluated as a candidate split plane. The surfaces are then partitioned in
+ * place around the cheapest plane, so each level costs O(n).
+ *
+ * The tree is made of ordinary BvhNodes, so traversal is shared with Bvh. It
+ * can be selected from a scene file with
+ *
+ * <accelStruct type="SahBvh">
+ *   <bins>16</bins>
+ * </accelStruct>
+ */
+public class SahBvh extends Bvh {
+
+	/** The number of bins per axis used to evaluate candidate splits. */
+	protected int bins = 16;
+	public void setBins(int bins) { this.bins = Math.max(2, bins); }
+
+	/** The cost of visiting an interior node, relative to intersectionCost. */
+	protected double traversalCost = 0.125;
+	public void setTraversalCost(double traversalCost) { this.traversalCost = traversalCost; }
+
+	/** The cost of intersecting a single surface. */
+	protected double intersectionCost = 1.0;
+	public void setIntersectionCost(double intersectionCost) { this.intersectionCost = intersectionCost; }
+
+	/** Ranges at most this large become leaves without evaluating splits. */
+	protected int minLeafSize = 2;
+	public void setMinLeafSize(int minLeafSize) { this.minLeafSize = Math.max(1, minLeafSize); }
+
+	/** Ranges larger than this are always split, even if the SAH prefers a leaf. */
+	protected int maxLeafSize = 8;
+	public void setMaxLeafSize(int maxLeafSize) { this.maxLeafSize = Math.max(1, maxLeafSize); }
+
+	public SahBvh() {
+	}
+
+	/**
+	 * Create a BVH [sub]tree over surfaces[start] to surfaces[end-1], choosing
+	 * the split with the lowest estimated SAH cost over all binned candidate
+	 * planes on all three axes.
+	 *
+	 * @param start
+	 *            The start index of surfaces
+	 * @param end
+	 *            The end index of surfaces
+	 */
+	@Override
+	protected BvhNode createTree(int start, int end) {
+		double[] bounds = new double[6];
+		double[] centroidBounds = new double[6];
+		computeBounds(start, end, bounds, centroidBounds);
+
+		int count = end - start;
+		if (count <= minLeafSize)
+			return makeNode(bounds, null, null, start, end);
+
+		// Evaluate every bin boundary on every axis
+		int binCount = bins;
+		int[] counts = new int[binCount];
+		double[] binBounds = new double[6 * binCount];
+		double[] rightArea = new double[binCount];
+		double[] acc = new double[6];
+
+		int bestAxis = -1;
+		int bestSplit = -1;
+		double bestCost = Double.POSITIVE_INFINITY;
+		for (int axis = 0; axis < 3; axis++) {
+			double cMin = centroidBounds[axis];
+			double extent = centroidBounds[axis + 3] - cMin;
+			if (!(extent > 0))
+				continue;
+			double scale = binCount / extent;
+
+			for (int b = 0; b < binCount; b++) {
+				counts[b] = 0;
+				emptyBounds(binBounds, 6 * b);
+			}
+			for (int i = start; i < end; i++) {
+				int b = binIndex(surfaces[i], axis, cMin, scale, binCount);
+				counts[b]++;
+				growBounds(binBounds, 6 * b, surfaces[i].getMinBound());
+				growBounds(binBounds, 6 * b, surfaces[i].getMaxBound());
+			}
+
+			// Sweep from the right to get the area of everything right of each plane
+			emptyBounds(acc, 0);
+			for (int b = binCount - 1; b > 0; b--) {
+				unionBounds(acc, 0, binBounds, 6 * b);
+				rightArea[b] = halfArea(acc);
+			}
+
+			// Sweep from the left, pairing each prefix with the matching suffix
+			emptyBounds(acc, 0);
+			int leftCount = 0;
+			for (int b = 0; b < binCount - 1; b++) {
+				unionBounds(acc, 0, binBounds, 6 * b);
+				leftCount += counts[b];
+				int rightCount = count - leftCount;
+				if (leftCount == 0 || rightCount == 0)
+					continue;
+				double cost = halfArea(acc) * leftCount + rightArea[b + 1] * rightCount;
+				if (cost < bestCost) {
+					bestCost = cost;
+					bestAxis = axis;
+					bestSplit = b;
+				}
+			}
+		}
+
+		double nodeArea = halfArea(bounds);
+		double leafCost = intersectionCost * count;
+		double splitCost = traversalCost + (nodeArea > 0 ? intersectionCost * bestCost / nodeArea : leafCost);
+
+		int mid;
+		if (bestAxis < 0) {
+			// All centroids coincide; no plane separates them
+			if (count <= maxLeafSize)
+				return makeNode(bounds, null, null, start, end);
+			mid = (start + end) / 2;
+		} else {
+			if (splitCost >= leafCost && count <= maxLeafSize)
+				return makeNode(bounds, null, null, start, end);
+			mid = partition(start, end, bestAxis, bestSplit, centroidBounds[bestAxis],
+					binCount / (centroidBounds[bestAxis + 3] - centroidBounds[bestAxis]), binCount);
+		}
+
+		BvhNode[] children = createChildren(start, mid, end);
+		return makeNode(bounds, children[0], children[1], start, end);
+	}
+
+	/**
+	 * Reorder surfaces[start..end) so that the surfaces whose centroid falls in a
+	 * bin at or below splitBin come first.
+	 *
+	 * @return the index of the first surface of the right half
+	 */
+	private int partition(int start, int end, int axis, int splitBin, double cMin, double scale, int binCount) {
+		int i = start;
+		int j = end - 1;
+		while (i <= j) {
+			if (binIndex(surfaces[i], axis, cMin, scale, binCount) <= splitBin) {
+				i++;
+			} else {
+				Surface tmp = surfaces[i];
+				surfaces[i] = surfaces[j];
+				surfaces[j] = tmp;
+				j--;
+			}
+		}
+		return i;
+	}
+
+	private static int binIndex(Surface s, int axis, double cMin, double scale, int binCount) {
+		int b = (int) ((s.getAveragePosition().get(axis) - cMin) * scale);
+		return b < 0 ? 0 : (b >= binCount ? binCount - 1 : b);
+	}
+}
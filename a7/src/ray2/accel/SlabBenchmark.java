@@ -0,0 +1,68 @@
+package ray2.accel;
+
+import java.util.Random;
+
+import egl.math.Vector3d;
+import ray2.Ray;
+
+/**
+ * Microbenchmark of the ray/box slab test. It times BvhNode.intersects, which
+ * takes reciprocals of the direction on every call, against
+ * BvhNode.slabEntry, which reads packed bounds and the ray's cached inverse
+ * direction, over the same random boxes and rays.
+ *
+ * Usage: java ray2.accel.SlabBenchmark
+ */
+public class SlabBenchmark {
+
+	static final int BOXES = 4096;
+	static final int RAYS = 256;
+	static final int ROUNDS = 10;
+
+	public static void main(String[] args) {
+		Random random = new Random(4620);
+
+		BvhNode[] nodes = new BvhNode[BOXES];
+		double[] packed = new double[6 * BOXES];
+		for (int i = 0; i < BOXES; i++) {
+			Vector3d min = new Vector3d(random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10, random.nextDouble() * 20 - 10);
+			Vector3d max = new Vector3d(min).add(random.nextDouble() * 4, random.nextDouble() * 4, random.nextDouble() * 4);
+			nodes[i] = new BvhNode(min, max, null, null, 0, 0);
+			packed[6 * i] = min.x;
+			packed[6 * i + 1] = min.y;
+			packed[6 * i + 2] = min.z;
+			packed[6 * i + 3] = max.x;
+			packed[6 * i + 4] = max.y;
+			packed[6 * i + 5] = max.z;
+		}
+
+		Ray[] rays = new Ray[RAYS];
+		for (int i = 0; i < RAYS; i++) {
+			rays[i] = new Ray(new Vector3d(random.nextDouble() * 40 - 20, random.nextDouble() * 40 - 20, 30),
+					new Vector3d(random.nextDouble() - 0.5, random.nextDouble() - 0.5, -1).normalize());
+			rays[i].makeOffsetRay();
+		}
+
+		for (int round = 0; round < ROUNDS; round++) {
+			long t0 = System.nanoTime();
+			int hitsNode = 0;
+			for (Ray ray : rays)
+				for (BvhNode node : nodes)
+					if (node.intersects(ray))
+						hitsNode++;
+			long t1 = System.nanoTime();
+			int hitsSlab = 0;
+			for (Ray ray : rays)
+				for (int i = 0; i < BOXES; i++)
+					if (BvhNode.slabEntry(packed, 6 * i, ray, ray.start, ray.end) != Double.POSITIVE_INFINITY)
+						hitsSlab++;
+			long t2 = System.nanoTime();
+
+			if (hitsNode != hitsSlab)
+				throw new IllegalStateException("slab tests disagree: " + hitsNode + " vs " + hitsSlab);
+			double tests = (double) BOXES * RAYS;
+			System.out.printf("round %2d: BvhNode.intersects %6.2f ns/test, BvhNode.slabEntry %6.2f ns/test (%d hits)%n",
+					round, (t1 - t0) / tests, (t2 - t1) / tests, hitsSlab);
+		}
+	}
+}
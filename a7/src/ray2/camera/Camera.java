@@ -62,6 +62,15 @@ public abstract class Camera {
 	 */
 	public abstract void getRay(Ray outRay, double u, double v);
 	
+	/**
+	 * The width one pixel covers at the given distance from the camera, for an
+	 * image the given number of pixels wide. A parallel camera's pixels are
+	 * the same size at any distance.
+	 */
+	public double getPixelFootprint(double distance, int imageWidth) {
+		return viewWidth / imageWidth;
+	}
+
 	/**
 	* Initialize method: initialize the orthonormal basis vectors
 	*/
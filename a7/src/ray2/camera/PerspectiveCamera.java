@@ -38,6 +38,15 @@ public class PerspectiveCamera extends Camera {
     centerDir.set(viewDir).normalize().mul(projDistance);  
   }
   
+  /**
+   * The width one pixel covers at the given distance, measured as if it were
+   * straight ahead; pixels towards the edges of a wide view cover a little more.
+   */
+  @Override
+  public double getPixelFootprint(double distance, int imageWidth) {
+    return distance * viewWidth / (projDistance * imageWidth);
+  }
+
   /**
    * Set outRay to be a ray from the camera through a point in the image.
    *
@@ -1,17 +1,19 @@
 package ray2.light;
 
-import java.io.DataInputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.channels.FileChannel;
+import java.nio.FloatBuffer;
 import egl.math.Vector2d;
 import egl.math.Vector3d;
 import egl.math.Colord;
-
+import ray2.output.PFMFile;
+
+/**
+ * An environment map stored as a cube cross in a PFM file: six square faces
+ * laid out in a 3x4 grid, with the cells outside the cross unused. It gives
+ * the radiance arriving from any direction, and can choose directions with
+ * probability proportional to that radiance, using an alias table built when
+ * the map is loaded so that each choice takes constant time.
+ */
 public class Cubemap {
 
 	// Parameters
@@ -19,11 +21,17 @@ public class Cubemap {
 	double scaleFactor = 1.0;
 
 	int width, height, blockSz;
-	int mapBits; // 2^(mapBits-1) < width*height <= 2^mapBits
-	float[] imageData;
-	float[] cumProb;
-
-	Vector2d faceUV = new Vector2d();
+	/** The pixels, a view of the memory-mapped file (see PFMFile). */
+	FloatBuffer imageData;
+
+	/**
+	 * The probability of choosing each pixel, and the alias table that
+	 * chooses them: cell i is kept with probability aliasProb[i] and
+	 * otherwise gives way to pixel alias[i].
+	 */
+	float[] pixelProb;
+	float[] aliasProb;
+	int[] alias;
 
 	public Cubemap() {
 	}
@@ -31,39 +39,117 @@ public class Cubemap {
 	public void setFilename(String filename) {
 		this.filename = filename;
 
-		PNMHeaderInfo hdr = new PNMHeaderInfo();
-		imageData = readPFM(new File(filename), hdr);
-
-		width = hdr.width;
-		height = hdr.height;
+		try {
+			PFMFile pfm = new PFMFile(filename);
+			if (pfm.getChannels() != 3)
+				throw new IOException("Cubemap needs a color PFM file");
+			imageData = pfm.getPixels();
+			width = pfm.getWidth();
+			height = pfm.getHeight();
+		} catch (IOException e) {
+			System.out.println("Error occured while attempting to read cubemap: " + filename);
+			System.err.println(e);
+			imageData = null;
+			width = height = 0;
+		}
 		blockSz = width / 3;
 
-		for (mapBits = 0; (1 << mapBits) < width * height; mapBits++)
-			;
-
-		cumProb = new float[width * height + 1];
-		cumProb[0] = 0;
-
-		for (int k = 1; k <= width * height; k++)
-			cumProb[k] = cumProb[k - 1] + calcPixelProb(k - 1);
-
-		for (int k = 1; k <= width * height; k++)
-			cumProb[k] /= cumProb[width * height];
+		buildAliasTable();
 	}
 
 	public void setScaleFactor(double scaleFactor) {
 		this.scaleFactor = scaleFactor;
 	}
 
+	/**
+	 * Set up pixelProb and the alias table from the image, by Vose's method:
+	 * cells that hold less than the average probability are each paired with
+	 * one that holds more, which gives them what they lack.
+	 */
+	private void buildAliasTable() {
+		int n = width * height;
+		pixelProb = new float[n];
+		aliasProb = new float[n];
+		alias = new int[n];
+
+		Vector2d faceUV = new Vector2d();
+		double total = 0;
+		for (int k = 0; k < n; k++)
+			total += calcPixelProb(k, faceUV);
+
+		double[] scaled = new double[n];
+		int[] small = new int[n], large = new int[n];
+		int numSmall = 0, numLarge = 0;
+		for (int k = 0; k < n; k++) {
+			double p = total > 0 ? calcPixelProb(k, faceUV) / total : 0;
+			pixelProb[k] = (float) p;
+			scaled[k] = p * n;
+			if (scaled[k] < 1)
+				small[numSmall++] = k;
+			else
+				large[numLarge++] = k;
+		}
+		while (numSmall > 0 && numLarge > 0) {
+			int s = small[--numSmall], l = large[--numLarge];
+			aliasProb[s] = (float) scaled[s];
+			alias[s] = l;
+			scaled[l] -= 1 - scaled[s];
+			if (scaled[l] < 1)
+				small[numSmall++] = l;
+			else
+				large[numLarge++] = l;
+		}
+		// What is left over holds (up to rounding) exactly the average
+		while (numLarge > 0) {
+			int l = large[--numLarge];
+			aliasProb[l] = 1;
+			alias[l] = l;
+		}
+		while (numSmall > 0) {
+			int s = small[--numSmall];
+			aliasProb[s] = 1;
+			alias[s] = s;
+		}
+	}
+
+	/**
+	 * Set outRadiance to the radiance arriving from direction dir, which need
+	 * not be normalized. Nothing is allocated, so any number of threads may
+	 * call this at once.
+	 */
 	public void evaluate(Vector3d dir, Colord outRadiance) {
 		// TODO#A7 Look up for the radiance of the environment mapping in a
 		// given direction
 		// don't forget to multiply the radiance by scaleFactor
-		Vector2d faceUV = new Vector2d();
-		int iFace = dirToFace(dir, faceUV);
-		int idx = 3 * faceToIndex(iFace, faceUV);
-		outRadiance.set(imageData[idx], imageData[idx+1], imageData[idx+2]).mul(scaleFactor);
+		int idx = 3 * dirToIndex(dir);
+		outRadiance.set(imageData.get(idx), imageData.get(idx+1), imageData.get(idx+2)).mul(scaleFactor);
+
+	}
 
+	/**
+	 * @return the index of the pixel seen in direction dir; the same pixel as
+	 *         faceToIndex(dirToFace(dir, faceUV), faceUV)
+	 */
+	protected int dirToIndex(Vector3d dir) {
+		double ax = Math.abs(dir.x), ay = Math.abs(dir.y), az = Math.abs(dir.z);
+		int iFace;
+		double u, v;
+		if (ax > ay && ax > az) {
+			iFace = (dir.x > 0) ? 0 : 1;
+			u = dir.z / dir.x;
+			v = dir.y / ax;
+		} else if (ay > az) {
+			iFace = (dir.y > 0) ? 2 : 3;
+			u = dir.x / ay;
+			v = dir.z / dir.y;
+		} else {
+			iFace = (dir.z > 0) ? 4 : 5;
+			u = dir.x / az;
+			v = -dir.y / dir.z;
+		}
+		int ix = (int) (blockSz * (u + 1) / 2) + blockSz * faceLoc[iFace][0];
+		int iy = (int) (blockSz * (v + 1) / 2) + blockSz * faceLoc[iFace][1];
+		return ix + width * iy;
 	}
 
 	protected int dirToFace(Vector3d dir, Vector2d outFaceUV) {
@@ -89,10 +175,13 @@ public class Cubemap {
 		return iFace;
 	}
 
-	protected int faceToIndex(int iFace, Vector2d faceUV) {
-		// Table of where to find each face in the 3x4 grid of the map
-		final int[][] faceLoc = { { 2, 2 }, { 0, 2 }, { 1, 3 }, { 1, 1 }, { 1, 0 }, { 1, 2 } };
+	// Table of where to find each face in the 3x4 grid of the map
+	private static final int[][] faceLoc = { { 2, 2 }, { 0, 2 }, { 1, 3 }, { 1, 1 }, { 1, 0 }, { 1, 2 } };
 
+	// Table of which face is at each position in the 3x4 grid of the map
+	private static final int[][] locFace = { { -1, 4, -1 }, { -1, 3, -1 }, { 1, 5, 0 }, { -1, 2, -1 } };
+
+	protected int faceToIndex(int iFace, Vector2d faceUV) {
 		// (iu, iv) are the pixel coordinates within the face
 		int iu = (int) (blockSz * (faceUV.x + 1) / 2);
 		int iv = (int) (blockSz * (faceUV.y + 1) / 2);
@@ -104,33 +193,53 @@ public class Cubemap {
 		return ix + width * iy;
 	}
 
-	public void generate(Vector2d seed, Vector3d outDirection) {
-
-		// choose a pixel
-		double searchProb = seed.x;
-		int k = 0;
-
-		for (int p = mapBits - 1; p >= 0; p--)
-			if (searchProb > cumProb[k + (1 << p)])
-				k += (1 << p);
-
-		double pixelProb = cumProb[k + 1] - cumProb[k];
-		seed.x = (searchProb - cumProb[k]) / pixelProb;
-
-		// choose u and v randomly in that pixel. faceUV is the pixel center.
-		int iFace = indexToFace(k, faceUV);
-		faceUV.x += (2 * seed.x - 1) / blockSz;
-		faceUV.y += (2 * seed.y - 1) / blockSz;
+	/**
+	 * Choose a direction with probability proportional to the map's
+	 * radiance (weighted by the solid angle of its pixels), from the two
+	 * numbers in seed, which are in [0, 1). Nothing is allocated, so any
+	 * number of threads may call this at once.
+	 *
+	 * @param seed the sample values
+	 * @param outDirection the chosen direction, normalized
+	 * @param outRadiance the radiance arriving from that direction
+	 * @return the probability density of the direction, per unit solid angle
+	 */
+	public double generate(Vector2d seed, Vector3d outDirection, Colord outRadiance) {
+
+		// choose a cell of the alias table, then the pixel from what is left
+		// of seed.x, which is again uniform in [0, 1)
+		int n = width * height;
+		double x = seed.x * n;
+		int k = Math.min((int) x, n - 1);
+		x -= k;
+		if (x < aliasProb[k]) {
+			x /= aliasProb[k];
+		} else {
+			x = (x - aliasProb[k]) / (1 - aliasProb[k]);
+			k = alias[k];
+		}
 
-		// choose the direction based on face index and (u,v)
-		faceToDir(iFace, faceUV, outDirection);
+		// choose u and v uniformly in that pixel
+		int ix = k % width;
+		int iy = k / width;
+		int iFace = locFace[iy / blockSz][ix / blockSz];
+		double u = 2 * (ix % blockSz + x) / blockSz - 1;
+		double v = 2 * (iy % blockSz + seed.y) / blockSz - 1;
+
+		// choose the direction based on face index and (u,v); before it is
+		// normalized its length is r = sqrt(1 + u^2 + v^2)
+		faceToDir(iFace, u, v, outDirection);
+		outRadiance.set(imageData.get(3 * k), imageData.get(3 * k + 1), imageData.get(3 * k + 2)).mul(scaleFactor);
+
+		// The density over the face is pixelProb / (the pixel's area), and a
+		// small area of the face covers a solid angle of that area / r^3
+		double r2 = 1 + u * u + v * v;
+		double pixelArea = 4.0 / ((double) blockSz * blockSz);
+		return pixelProb[k] / pixelArea * r2 * Math.sqrt(r2);
 	}
 
 	protected int indexToFace(int index, Vector2d outFaceUV) {
 
-		// Table of which face is at each position in the 3x4 grid of the map
-		final int[][] locFace = { { -1, 4, -1 }, { -1, 3, -1 }, { 1, 5, 0 }, { -1, 2, -1 } };
-
 		// (ix, iy) are the pixel coords in the whole map
 		int ix = index % width;
 		int iy = index / width;
@@ -146,9 +255,10 @@ public class Cubemap {
 	}
 
 	protected void faceToDir(int iFace, Vector2d faceUV, Vector3d outDir) {
-		double u = faceUV.x;
-		double v = faceUV.y;
+		faceToDir(iFace, faceUV.x, faceUV.y, outDir);
+	}
 
+	private static void faceToDir(int iFace, double u, double v, Vector3d outDir) {
 		switch (iFace) {
 		case 0:
 			outDir.set(1, v, u);
@@ -173,102 +283,22 @@ public class Cubemap {
 		outDir.normalize();
 	}
 
-	protected float calcPixelProb(int k) {
+	/**
+	 * @return the unnormalized probability of choosing pixel k: its
+	 *         brightest channel times the solid angle it covers, using
+	 *         faceUV as scratch space
+	 */
+	protected float calcPixelProb(int k, Vector2d faceUV) {
 		if (indexToFace(k, faceUV) == -1)
 			return 0;
 
-		float r = imageData[0 + 3 * k];
-		float g = imageData[1 + 3 * k];
-		float b = imageData[2 + 3 * k];
+		float r = imageData.get(0 + 3 * k);
+		float g = imageData.get(1 + 3 * k);
+		float b = imageData.get(2 + 3 * k);
 
 		double u = faceUV.x;
 		double v = faceUV.y;
 
 		return Math.max(Math.max(r, g), b) / (float) Math.pow(1 + u * u + v * v, 1.5);
 	}
-
-	public static class PNMHeaderInfo {
-		int width, height, bands;
-		float maxval;
-	}
-
-	public float[] readPFM(File pfmFile, PNMHeaderInfo hdr) {
-
-		try {
-			FileInputStream inf = new FileInputStream(pfmFile);
-			DataInputStream inSt = new DataInputStream(inf);
-			FileChannel inCh = inf.getChannel();
-
-			int imageSize = readPPMHeader(inSt, hdr);
-
-			if (imageSize == -1)
-				return null;
-
-			// System.err.println("reading FP image: " + hdr.width + "x" +
-			// hdr.height + "x" + hdr.bands);
-
-			ByteBuffer imageBuffer = ByteBuffer.allocate(imageSize * 4);
-			imageBuffer.order(ByteOrder.LITTLE_ENDIAN);
-			imageBuffer.clear();
-			inCh.read(imageBuffer);
-
-			float[] imageData = new float[imageSize];
-			imageBuffer.flip();
-			imageBuffer.asFloatBuffer().get(imageData);
-
-			return imageData;
-		} catch (FileNotFoundException e) {
-			System.err.println("readPFM: file not found: " + pfmFile.getName());
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
-
-		return null;
-	}
-
-	public static int readPPMHeader(DataInputStream in, PNMHeaderInfo info) throws IOException {
-
-		// Read PNM header of the form 'P[F]\n<width> <height>\n<maxval>\n'
-		if (in.readByte() != 'P') {
-			System.err.println("readPFM: not a PNM file");
-			return -1;
-		}
-
-		byte magic = in.readByte();
-		int bands;
-
-		if (magic == 'F')
-			bands = 3;
-		else {
-			System.err.println("readPFM: Unsupported PNM variant 'P" + magic + "'");
-			return -1;
-		}
-
-		int width = Integer.parseInt(readWord(in));
-		int height = Integer.parseInt(readWord(in));
-		int imageSize = width * height * bands;
-		float maxval = Float.parseFloat(readWord(in));
-
-		if (info != null) {
-			info.width = width;
-			info.height = height;
-			info.bands = bands;
-			info.maxval = maxval;
-		}
-
-		return imageSize;
-	}
-
-	static String readWord(DataInputStream in) throws IOException {
-		char c;
-		String s = "";
-
-		while (Character.isWhitespace(c = (char) in.readByte()))
-			;
-		s += c;
-		while (!Character.isWhitespace(c = (char) in.readByte()))
-			s += c;
-
-		return s;
-	}
 }
@@ -2,6 +2,7 @@ package ray2.light;
 
 
 import egl.math.Vector3d;
+import ray2.sampler.Sampler;
 
 /**
  * This class represents a basic point light which is infinitely small and emits
@@ -32,9 +33,10 @@ public class DirectionalLight extends Light {
 	 *
 	 * @param record the record where the output is written:
 	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param sampler unused, since there is only one point to choose
 	 */
 	@Override
-	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint) {
+	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint, Sampler sampler) {
 		lRec.direction.set(direction);
 		lRec.attenuation = 1.0;
 		lRec.distance = Double.POSITIVE_INFINITY;
@@ -0,0 +1,80 @@
+package ray2.light;
+
+import egl.math.Colord;
+import egl.math.Vector3d;
+import ray2.sampler.Sampler;
+
+/**
+ * This class represents light arriving from infinitely far away in every
+ * direction, as given by a Cubemap. Directions are chosen with probability
+ * proportional to the map's radiance, so the bright parts of the map, which
+ * contribute the most, get most of the shadow rays. The map's radiance is
+ * multiplied by intensity.
+ *
+ * If no cubemap is given, the light uses the scene's, so the light matches
+ * the background seen by rays that leave the scene:
+ *
+ * <pre>
+ * &lt;light type="EnvironmentLight" /&gt;
+ * </pre>
+ */
+public class EnvironmentLight extends Light {
+
+	/** The map the light comes from. */
+	protected Cubemap cubemap;
+	public void setCubemap(Cubemap cubemap) { this.cubemap = cubemap; }
+	public Cubemap getCubemap() { return cubemap; }
+
+	// initialization method
+	public void init() {
+		if (cubemap == null)
+			System.err.println("Warning: EnvironmentLight has no cubemap; it gives no light");
+	}
+
+	/**
+	 * Sample the illumination due to this light source at a given shading point.
+	 * An environment light provides illumination from every direction; the outputs are:
+	 *
+	 *    lRec.direction is a direction chosen by the map's radiance
+	 *    lRec.distance is infinity
+	 *    lRec.attenuation is 1.0 because there is no falloff
+	 *    lRec.probability is the probability density of the direction, per unit solid angle
+	 *    lRec.radiance is the radiance arriving from the direction, times intensity
+	 *
+	 * @param record the record where the output is written:
+	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param sampler the next two dimensions of its sample choose the direction
+	 */
+	@Override
+	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint, Sampler sampler) {
+		sampler.next2D(lRec.sample);
+		lRec.attenuation = 1.0;
+		lRec.distance = Double.POSITIVE_INFINITY;
+		double pdf = cubemap != null ? cubemap.generate(lRec.sample, lRec.direction, lRec.radiance) : 0;
+		if (pdf > 0) {
+			lRec.radiance.mul(intensity);
+			lRec.probability = pdf;
+		} else {
+			lRec.direction.set(0, 1, 0);
+			lRec.radiance.setZero();
+			lRec.probability = 1.0;
+		}
+	}
+
+	@Override
+	public Colord getIntensity(LightSamplingRecord lRec) {
+		return lRec.radiance;
+	}
+
+	/**
+	 * Default constructor.  Produces a unit intensity light with no map.
+	 */
+	public EnvironmentLight() { }
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "EnvironmentLight: " + (cubemap != null ? cubemap.filename : "none") + " " + intensity;
+	}
+}
@@ -2,6 +2,7 @@ package ray2.light;
 
 import egl.math.Colord;
 import egl.math.Vector3d;
+import ray2.sampler.Sampler;
 
 /**
  * This class represents a basic point light which is infinitely small and emits
@@ -23,8 +24,36 @@ public abstract class Light {
 	 * Sample the illumination due to this light source at a given shading point.
 	 * @param record the record where the output is written
 	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param sampler the values to choose a point on the light with
 	 */
-	public abstract void sample(LightSamplingRecord record, Vector3d shadingPoint);
+	public abstract void sample(LightSamplingRecord record, Vector3d shadingPoint, Sampler sampler);
+
+	/**
+	 * How bright the light is at the point chosen by sample. This is
+	 * intensity, unless the light's color varies from point to point.
+	 * @param record the record sample wrote
+	 */
+	public Colord getIntensity(LightSamplingRecord record) {
+		return intensity;
+	}
+
+	/**
+	 * Set outMin and outMax to the corners of a box around the points the
+	 * light is emitted from, for LightTree.
+	 * @return false, leaving them unset, if the light has no position, like
+	 *         a light that is infinitely far away
+	 */
+	public boolean getBounds(Vector3d outMin, Vector3d outMax) {
+		return false;
+	}
+
+	/**
+	 * @return the total power the light emits, averaged over the color
+	 *         channels; LightTree samples brighter lights more often
+	 */
+	public double getPower() {
+		return 0;
+	}
 		
 	/**
 	 * Default constructor.  Produces a unit intensity light at the origin.
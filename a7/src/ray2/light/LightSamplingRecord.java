@@ -1,5 +1,7 @@
 package ray2.light;
 
+import egl.math.Colord;
+import egl.math.Vector2d;
 import egl.math.Vector3d;
 
 /**
@@ -24,4 +26,13 @@ public class LightSamplingRecord {
 	/** The probability, or probability density, with which the sample point was chosen. */
 	public double probability;
 
+	/** The sampler values the point was chosen with, for lights that need them. */
+	public final Vector2d sample = new Vector2d();
+
+	/** The light arriving from the chosen point, for lights whose color varies (see Light.getIntensity). */
+	public final Colord radiance = new Colord();
+
+	/** The probability with which LightTree picked the light, out of the lights in the tree. */
+	public double selectionProbability;
+
 }
@@ -0,0 +1,206 @@
+package ray2.light;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import egl.math.Vector3d;
+
+/**
+ * A binary tree over the lights of a scene, for picking one light to sample
+ * out of many. Every node stores the bounding box and total power of the
+ * lights under it. To pick a light for a shading point, pick walks down from
+ * the root and at each node goes to one child at random, with probability
+ * proportional to the child's importance: its power over the squared
+ * distance to its box, or zero if the box lies wholly behind the surface.
+ * Nearby bright lights are picked often, far and dim ones rarely, and lights
+ * that cannot light the point never; the probability of the light picked is
+ * returned so the sample can be weighted to keep the estimate unbiased.
+ *
+ * Lights without a position (directional and environment lights) are kept
+ * out of the tree; shaders sample them every time, as before.
+ *
+ * The tree is flattened in depth-first order as Bvh is. Node i has its
+ * bounds in nodeBounds[6*i .. 6*i+5] as (minX, minY, minZ, maxX, maxY, maxZ)
+ * and its power in nodePower[i]. The left child of an interior node is node
+ * i+1 and nodeData[i] is its right child; a leaf holds one light and
+ * nodeData[i] is -1 - (the light's index in the scene's list).
+ */
+public class LightTree {
+
+	private final double[] nodeBounds;
+	private final double[] nodePower;
+	private final int[] nodeData;
+	private int nodeCount = 0;
+
+	/** The indices of the lights that are not in the tree. */
+	private final int[] unbounded;
+
+	/** The bounds, center and power of each light in the tree, while building. */
+	private final double[][] lightBounds;
+	private final double[] lightPower;
+
+	/**
+	 * Build the tree over the given lights, which must be initialized. Lights
+	 * that emit no power are left out of it.
+	 */
+	public LightTree(List<Light> lights) {
+		int n = lights.size();
+		lightBounds = new double[n][];
+		lightPower = new double[n];
+		ArrayList<Integer> inTree = new ArrayList<Integer>();
+		ArrayList<Integer> outside = new ArrayList<Integer>();
+		Vector3d min = new Vector3d(), max = new Vector3d();
+		for (int i = 0; i < n; i++) {
+			Light light = lights.get(i);
+			if (!light.getBounds(min, max)) {
+				outside.add(i);
+				continue;
+			}
+			double power = light.getPower();
+			if (!(power > 0))
+				continue;
+			lightBounds[i] = new double[] { min.x, min.y, min.z, max.x, max.y, max.z,
+					(min.x + max.x) / 2, (min.y + max.y) / 2, (min.z + max.z) / 2 };
+			lightPower[i] = power;
+			inTree.add(i);
+		}
+		unbounded = new int[outside.size()];
+		for (int i = 0; i < unbounded.length; i++)
+			unbounded[i] = outside.get(i);
+
+		int size = Math.max(0, 2 * inTree.size() - 1);
+		nodeBounds = new double[6 * size];
+		nodePower = new double[size];
+		nodeData = new int[size];
+		if (!inTree.isEmpty())
+			build(inTree.toArray(new Integer[inTree.size()]), 0, inTree.size());
+	}
+
+	/**
+	 * Create the node for lights[start .. end-1], and its subtree.
+	 *
+	 * @return the node's index
+	 */
+	private int build(Integer[] lights, int start, int end) {
+		int node = nodeCount++;
+		double[] b = nodeBounds;
+		int o = 6 * node;
+		b[o] = b[o + 1] = b[o + 2] = Double.POSITIVE_INFINITY;
+		b[o + 3] = b[o + 4] = b[o + 5] = Double.NEGATIVE_INFINITY;
+		double[] centerMin = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] centerMax = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		double power = 0;
+		for (int i = start; i < end; i++) {
+			double[] lb = lightBounds[lights[i]];
+			for (int k = 0; k < 3; k++) {
+				b[o + k] = Math.min(b[o + k], lb[k]);
+				b[o + 3 + k] = Math.max(b[o + 3 + k], lb[3 + k]);
+				centerMin[k] = Math.min(centerMin[k], lb[6 + k]);
+				centerMax[k] = Math.max(centerMax[k], lb[6 + k]);
+			}
+			power += lightPower[lights[i]];
+		}
+		nodePower[node] = power;
+
+		if (end - start == 1) {
+			nodeData[node] = -1 - lights[start];
+			return node;
+		}
+
+		// Split at the median of the light centers along the widest axis
+		int axis = 0;
+		for (int k = 1; k < 3; k++) {
+			if (centerMax[k] - centerMin[k] > centerMax[axis] - centerMin[axis])
+				axis = k;
+		}
+		final int splitAxis = axis;
+		Arrays.sort(lights, start, end, Comparator.comparingDouble(i -> lightBounds[i][6 + splitAxis]));
+		int mid = (start + end) / 2;
+		build(lights, start, mid);
+		nodeData[node] = build(lights, mid, end);
+		return node;
+	}
+
+	/**
+	 * @return the number of lights that are not in the tree
+	 */
+	public int getUnboundedCount() {
+		return unbounded.length;
+	}
+
+	/**
+	 * @return the index in the scene's list of the i-th light that is not in
+	 *         the tree
+	 */
+	public int getUnboundedLight(int i) {
+		return unbounded[i];
+	}
+
+	/**
+	 * Pick a light of the tree to sample for the shading point p with normal
+	 * n, and set lRec.selectionProbability to the probability it was picked
+	 * with.
+	 *
+	 * @param u a uniform random number in [0, 1)
+	 * @return the light's index in the scene's list, or -1 if no light in the
+	 *         tree can light the point
+	 */
+	public int pick(Vector3d p, Vector3d n, double u, LightSamplingRecord lRec) {
+		if (nodeCount == 0 || importance(0, p, n) == 0)
+			return -1;
+		u = Math.min(u, 1 - 1e-12);
+		double probability = 1;
+		int node = 0;
+		while (nodeData[node] >= 0) {
+			int left = node + 1, right = nodeData[node];
+			double importanceLeft = importance(left, p, n);
+			double importanceRight = importance(right, p, n);
+			double total = importanceLeft + importanceRight;
+			if (total == 0)
+				return -1;
+			double pLeft = importanceLeft / total;
+			if (u < pLeft) {
+				u /= pLeft;
+				probability *= pLeft;
+				node = left;
+			} else {
+				u = (u - pLeft) / (1 - pLeft);
+				probability *= 1 - pLeft;
+				node = right;
+			}
+			u = Math.min(u, 1 - 1e-12);
+		}
+		lRec.selectionProbability = probability;
+		return -1 - nodeData[node];
+	}
+
+	/**
+	 * @return how much the lights of a node are expected to add at p: their
+	 *         power over the squared distance from p to the box center, which
+	 *         is kept from getting smaller than the box, or 0 if every corner
+	 *         of the box is behind the plane through p with normal n
+	 */
+	private double importance(int node, Vector3d p, Vector3d n) {
+		double[] b = nodeBounds;
+		int o = 6 * node;
+		boolean inFront = false;
+		for (int c = 0; c < 8 && !inFront; c++) {
+			double x = b[o + ((c & 1) == 0 ? 0 : 3)] - p.x;
+			double y = b[o + ((c & 2) == 0 ? 1 : 4)] - p.y;
+			double z = b[o + ((c & 4) == 0 ? 2 : 5)] - p.z;
+			inFront = n.x * x + n.y * y + n.z * z > 0;
+		}
+		if (!inFront)
+			return 0;
+
+		double dx = (b[o] + b[o + 3]) / 2 - p.x;
+		double dy = (b[o + 1] + b[o + 4]) / 2 - p.y;
+		double dz = (b[o + 2] + b[o + 5]) / 2 - p.z;
+		double ex = b[o + 3] - b[o], ey = b[o + 4] - b[o + 1], ez = b[o + 5] - b[o + 2];
+		double halfDiagonalSq = (ex * ex + ey * ey + ez * ez) / 4;
+		double distSq = Math.max(dx * dx + dy * dy + dz * dz, Math.max(halfDiagonalSq, 1e-8));
+		return nodePower[node] / distSq;
+	}
+}
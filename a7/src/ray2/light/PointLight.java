@@ -2,6 +2,7 @@ package ray2.light;
 
 
 import egl.math.Vector3d;
+import ray2.sampler.Sampler;
 
 /**
  * This class represents a basic point light which is infinitely small and emits
@@ -31,15 +32,31 @@ public class PointLight extends Light {
 	 *
 	 * @param record the record where the output is written:
 	 * @param shadingPoint the surface point where illumination is being computed
+	 * @param sampler unused, since there is only one point to choose
 	 */
 	@Override
-	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint) {
+	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint, Sampler sampler) {
 		lRec.direction.set(position).sub(shadingPoint);
 		lRec.attenuation = 1.0 / shadingPoint.distSq(this.position);
 		lRec.distance = lRec.direction.len();
 		lRec.probability = 1.0;
 	}
 	
+	@Override
+	public boolean getBounds(Vector3d outMin, Vector3d outMax) {
+		outMin.set(position);
+		outMax.set(position);
+		return true;
+	}
+
+	/**
+	 * A point light sends intensity into every direction of the sphere.
+	 */
+	@Override
+	public double getPower() {
+		return 4 * Math.PI * (intensity.x + intensity.y + intensity.z) / 3;
+	}
+
 	/**
 	 * Default constructor.  Produces a unit intensity light at the origin.
 	 */
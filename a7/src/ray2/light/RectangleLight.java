@@ -1,8 +1,8 @@
 package ray2.light;
 
-import java.util.Random;
-
+import egl.math.Vector2d;
 import egl.math.Vector3d;
+import ray2.sampler.Sampler;
 
 /**
  * This class represents an area source that is rectangular, specified by a
@@ -87,9 +87,11 @@ public class RectangleLight extends Light {
 	 *            the record where the output is written:
 	 * @param shadingPoint
 	 *            the surface point where illumination is being computed
+	 * @param sampler
+	 *            the next two dimensions of its sample choose the point
 	 */
 	@Override
-	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint) {
+	public void sample(LightSamplingRecord lRec, Vector3d shadingPoint, Sampler sampler) {
 		// TODO#A7: Fill in this function
 		// 1. sample light source point on the rectangle area light in
 		// uniform-random fashion
@@ -109,18 +111,45 @@ public class RectangleLight extends Light {
 		double max_Y = height / 2.0;
 		double min_Y = -height / 2.0;
 
-		Random rand = new Random();
-		double randX = min_X + (max_X - min_X) * rand.nextDouble();
-		double randY = min_Y + (max_Y - min_Y) * rand.nextDouble();
-
-		Vector3d sampledPoint = new Vector3d(position).addMultiple(randY, U).addMultiple(randX, V);
+		Vector2d seed = lRec.sample;
+		sampler.next2D(seed);
+		double randX = min_X + (max_X - min_X) * seed.x;
+		double randY = min_Y + (max_Y - min_Y) * seed.y;
 
-		lRec.direction.set(sampledPoint).sub(shadingPoint);
-		lRec.attenuation = (1.0 / shadingPoint.distSq(sampledPoint)) * (lRec.direction.clone().normalize().dot(W));
-		lRec.distance = lRec.direction.len();
+		// direction = sampled point - shading point
+		lRec.direction.set(position).addMultiple(randY, U).addMultiple(randX, V).sub(shadingPoint);
+		double distSq = lRec.direction.lenSq();
+		lRec.distance = Math.sqrt(distSq);
+		lRec.attenuation = (1.0 / distSq) * (lRec.direction.dot(W) / lRec.distance);
 		lRec.probability = 1.0 / (height * width);
 	}
 
+	@Override
+	public boolean getBounds(Vector3d outMin, Vector3d outMax) {
+		if (!isInitialized)
+			init();
+		outMin.set(Double.POSITIVE_INFINITY);
+		outMax.set(Double.NEGATIVE_INFINITY);
+		Vector3d corner = new Vector3d();
+		for (int i = -1; i <= 1; i += 2) {
+			for (int j = -1; j <= 1; j += 2) {
+				corner.set(position).addMultiple(i * height / 2, U).addMultiple(j * width / 2, V);
+				outMin.set(Math.min(outMin.x, corner.x), Math.min(outMin.y, corner.y), Math.min(outMin.z, corner.z));
+				outMax.set(Math.max(outMax.x, corner.x), Math.max(outMax.y, corner.y), Math.max(outMax.z, corner.z));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * A rectangle light has radiance intensity over its area, into the
+	 * hemisphere it faces.
+	 */
+	@Override
+	public double getPower() {
+		return Math.PI * width * height * (intensity.x + intensity.y + intensity.z) / 3;
+	}
+
 	/**
 	 * Default constructor. Produces a unit square light at the origin facing
 	 * -z.
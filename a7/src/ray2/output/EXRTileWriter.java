@@ -0,0 +1,233 @@
+package ray2.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import ray2.Image;
+
+/**
+ * Writes an OpenEXR file, in pure Java, a band of rows at a time. The file is
+ * a scanline image with 32-bit float R, G and B channels, one scanline per
+ * chunk, either uncompressed or RLE compressed. After the header comes a
+ * table with the file position of every scanline, which is filled in when
+ * the writer is closed; the scanlines themselves are appended as they are
+ * written, so bands may arrive in any order, but each must cover whole rows.
+ * Only one row is held in memory at a time.
+ */
+public class EXRTileWriter implements TileWriter {
+
+	/** The compression methods this writer supports, by their number in the file format. */
+	public static final int NO_COMPRESSION = 0, RLE_COMPRESSION = 1;
+
+	private static final int MAGIC = 20000630;
+	private static final int VERSION = 2;
+	private static final int FLOAT = 2;
+
+	/** The channels, in the order the file format requires: sorted by name. */
+	private static final String[] CHANNELS = { "B", "G", "R" };
+
+	private final int width, height, compression;
+	private final FileChannel channel;
+
+	/** The file position of the line offset table, and the position of each scanline (0 until written). */
+	private final long tablePosition;
+	private final long[] offsets;
+
+	/** One scanline, ready to write: its y, its size and its data. */
+	private final ByteBuffer line;
+	private final double[] rgb;
+	private final byte[] raw, shuffled, packed;
+
+	public EXRTileWriter(String fileName, int width, int height, int compression) throws IOException {
+		if (compression != NO_COMPRESSION && compression != RLE_COMPRESSION)
+			throw new IllegalArgumentException("Unsupported EXR compression " + compression);
+		this.width = width;
+		this.height = height;
+		this.compression = compression;
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+
+		ByteBuffer header = header(width, height, compression);
+		while (header.hasRemaining())
+			channel.write(header);
+		tablePosition = channel.position();
+		offsets = new long[height];
+
+		int lineSize = 12 * width;
+		rgb = new double[3 * width];
+		raw = new byte[lineSize];
+		shuffled = new byte[lineSize];
+		// RLE adds at most one count byte per 127 bytes it cannot compress
+		packed = new byte[lineSize + lineSize / 127 + 2];
+		line = ByteBuffer.allocateDirect(8 + packed.length).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * @return the file's magic number, version and header attributes
+	 */
+	private static ByteBuffer header(int width, int height, int compression) {
+		ByteBuffer h = ByteBuffer.allocate(512).order(ByteOrder.LITTLE_ENDIAN);
+		h.putInt(MAGIC).putInt(VERSION);
+
+		attribute(h, "channels", "chlist", CHANNELS.length * 18 + 1);
+		for (String name : CHANNELS) {
+			putString(h, name);
+			h.putInt(FLOAT); // pixel type
+			h.put((byte) 0).put((byte) 0).put((byte) 0).put((byte) 0); // pLinear, reserved
+			h.putInt(1).putInt(1); // x and y sampling
+		}
+		h.put((byte) 0);
+		attribute(h, "compression", "compression", 1);
+		h.put((byte) compression);
+		attribute(h, "dataWindow", "box2i", 16);
+		h.putInt(0).putInt(0).putInt(width - 1).putInt(height - 1);
+		attribute(h, "displayWindow", "box2i", 16);
+		h.putInt(0).putInt(0).putInt(width - 1).putInt(height - 1);
+		attribute(h, "lineOrder", "lineOrder", 1);
+		h.put((byte) 0); // increasing y
+		attribute(h, "pixelAspectRatio", "float", 4);
+		h.putFloat(1);
+		attribute(h, "screenWindowCenter", "v2f", 8);
+		h.putFloat(0).putFloat(0);
+		attribute(h, "screenWindowWidth", "float", 4);
+		h.putFloat(1);
+		h.put((byte) 0);
+
+		h.flip();
+		return h;
+	}
+
+	private static void attribute(ByteBuffer h, String name, String type, int size) {
+		putString(h, name);
+		putString(h, type);
+		h.putInt(size);
+	}
+
+	private static void putString(ByteBuffer h, String s) {
+		h.put(s.getBytes(StandardCharsets.US_ASCII)).put((byte) 0);
+	}
+
+	/**
+	 * Write the rows of the block, which must span the whole width of the
+	 * image.
+	 */
+	@Override
+	public synchronized void writeBlock(Image image, int offsetX, int offsetY, int sizeX, int sizeY) throws IOException {
+		if (offsetX != 0 || sizeX != width)
+			throw new IllegalArgumentException("EXRTileWriter needs whole rows");
+		long position = Math.max(channel.size(), tablePosition + 8L * height);
+		// Image rows count up from the bottom, EXR scanlines down from the top
+		for (int y = offsetY + sizeY - 1; y >= offsetY; y--) {
+			int scanline = height - 1 - y;
+			image.getPixels(0, y, width, 1, rgb, 0);
+			for (int c = 0; c < 3; c++) {
+				int component = 2 - c; // B, G, R
+				int base = 4 * c * width;
+				for (int x = 0; x < width; x++) {
+					int bits = Float.floatToRawIntBits((float) rgb[3 * x + component]);
+					int i = base + 4 * x;
+					raw[i] = (byte) bits;
+					raw[i + 1] = (byte) (bits >> 8);
+					raw[i + 2] = (byte) (bits >> 16);
+					raw[i + 3] = (byte) (bits >> 24);
+				}
+			}
+
+			byte[] data = raw;
+			int size = raw.length;
+			if (compression == RLE_COMPRESSION) {
+				int packedSize = compressRLE(raw, shuffled, packed);
+				// Readers take data that is not smaller than the scanline as uncompressed
+				if (packedSize < raw.length) {
+					data = packed;
+					size = packedSize;
+				}
+			}
+
+			line.clear();
+			line.putInt(scanline).putInt(size).put(data, 0, size);
+			line.flip();
+			offsets[scanline] = position;
+			while (line.hasRemaining())
+				position += channel.write(line, position);
+		}
+	}
+
+	/**
+	 * Compress in into out as OpenEXR's RLE compression does: the bytes are
+	 * split into the even and the odd ones, each byte is replaced by its
+	 * difference from the one before, and then runs of three or more equal
+	 * bytes are stored as a count and the byte, and other bytes as a negative
+	 * count and the bytes themselves.
+	 *
+	 * @param tmp scratch space the size of in
+	 * @return the number of bytes of out used
+	 */
+	static int compressRLE(byte[] in, byte[] tmp, byte[] out) {
+		int n = in.length;
+		int half = (n + 1) / 2;
+		for (int i = 0, t1 = 0, t2 = half; i < n; i++) {
+			if ((i & 1) == 0)
+				tmp[t1++] = in[i];
+			else
+				tmp[t2++] = in[i];
+		}
+		int previous = tmp[0] & 0xFF;
+		for (int i = 1; i < n; i++) {
+			int current = tmp[i] & 0xFF;
+			tmp[i] = (byte) (current - previous + 128 + 256);
+			previous = current;
+		}
+
+		int outSize = 0;
+		int runStart = 0, runEnd = 1;
+		while (runStart < n) {
+			while (runEnd < n && tmp[runStart] == tmp[runEnd] && runEnd - runStart - 1 < 127)
+				runEnd++;
+			if (runEnd - runStart >= 3) {
+				out[outSize++] = (byte) (runEnd - runStart - 1);
+				out[outSize++] = tmp[runStart];
+				runStart = runEnd;
+			} else {
+				while (runEnd < n
+						&& ((runEnd + 1 >= n || tmp[runEnd] != tmp[runEnd + 1])
+								|| (runEnd + 2 >= n || tmp[runEnd + 1] != tmp[runEnd + 2]))
+						&& runEnd - runStart < 127)
+					runEnd++;
+				out[outSize++] = (byte) (runStart - runEnd);
+				while (runStart < runEnd)
+					out[outSize++] = tmp[runStart++];
+			}
+			runEnd++;
+		}
+		return outSize;
+	}
+
+	/**
+	 * Fill in the line offset table and close the file.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			ByteBuffer table = ByteBuffer.allocate(8 * height).order(ByteOrder.LITTLE_ENDIAN);
+			boolean complete = true;
+			for (long offset : offsets) {
+				table.putLong(offset);
+				complete &= offset != 0;
+			}
+			if (!complete)
+				System.err.println("EXR closed before the last row was written");
+			table.flip();
+			long position = tablePosition;
+			while (table.hasRemaining())
+				position += channel.write(table, position);
+		} finally {
+			channel.close();
+		}
+	}
+}
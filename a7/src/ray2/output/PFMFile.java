@@ -0,0 +1,107 @@
+package ray2.output;
+
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A floating point PFM image read by mapping its file into memory. The
+ * pixels are not copied: getPixels is a view of the mapped file, so opening
+ * even a large image only reads its header, and the operating system pages
+ * in the rest as it is used and may share it between processes.
+ *
+ * The pixels are as stored in the file: rows bottom first, each pixel one
+ * float per channel, three for a color ("PF") image and one for a gray ("Pf")
+ * one. The sign of the header's scale gives the byte order, which the view
+ * takes care of.
+ */
+public class PFMFile {
+
+	private final int width, height, channels;
+	private final FloatBuffer pixels;
+
+	/**
+	 * Map the PFM image in fileName.
+	 *
+	 * @throws IOException if the file cannot be read or is not a PFM image
+	 */
+	public PFMFile(String fileName) throws IOException {
+		try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE)
+				throw new IOException("PFM file too large to map: " + fileName);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+			// Header: "PF" or "Pf", width, height and scale, each followed by one whitespace character
+			String magic = readWord(buffer);
+			if (magic.equals("PF"))
+				channels = 3;
+			else if (magic.equals("Pf"))
+				channels = 1;
+			else
+				throw new IOException("Not a PFM file: " + fileName);
+			try {
+				width = Integer.parseInt(readWord(buffer));
+				height = Integer.parseInt(readWord(buffer));
+				double scale = Double.parseDouble(readWord(buffer));
+				buffer.order(scale < 0 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+			} catch (NumberFormatException e) {
+				throw new IOException("Bad PFM header in " + fileName + ": " + e.getMessage());
+			}
+
+			long dataSize = 4L * width * height * channels;
+			if (width <= 0 || height <= 0 || buffer.remaining() < dataSize)
+				throw new IOException("PFM file is truncated: " + fileName);
+			buffer.limit(buffer.position() + (int) dataSize);
+			pixels = buffer.slice().order(buffer.order()).asFloatBuffer();
+		}
+	}
+
+	/**
+	 * @return the next header field, skipping whitespace before it and
+	 *         consuming the one whitespace character after it
+	 */
+	private static String readWord(MappedByteBuffer buffer) throws IOException {
+		StringBuilder word = new StringBuilder();
+		while (buffer.hasRemaining()) {
+			char c = (char) buffer.get();
+			if (!Character.isWhitespace(c)) {
+				word.append(c);
+			} else if (word.length() > 0) {
+				return word.toString();
+			}
+			if (word.length() > 32)
+				break;
+		}
+		throw new IOException("Bad PFM header");
+	}
+
+	public int getWidth() {
+		return width;
+	}
+
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the number of floats per pixel: 3, or 1 for a gray image
+	 */
+	public int getChannels() {
+		return channels;
+	}
+
+	/**
+	 * @return the pixels, a read-only view of the mapped file. Channel c of
+	 *         pixel (x, y), with y = 0 the bottom row, is at index
+	 *         channels * (y * width + x) + c.
+	 */
+	public FloatBuffer getPixels() {
+		return pixels.duplicate();
+	}
+}
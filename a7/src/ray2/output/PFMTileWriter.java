@@ -0,0 +1,60 @@
+package ray2.output;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import ray2.Image;
+
+/**
+ * Writes a floating point PFM file block by block. A PFM file is a short
+ * text header followed by the rows of the image, bottom row first, each
+ * pixel three little-endian floats, so every row of a block has a fixed
+ * place in the file and blocks can be written in any order as they finish.
+ * Only one row of a block is held in memory at a time.
+ */
+public class PFMTileWriter implements TileWriter {
+
+	private final int width, height;
+	private final FileChannel channel;
+	private final long headerSize;
+	private final ByteBuffer buffer;
+
+	public PFMTileWriter(String fileName, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		// A negative scale marks the data little-endian
+		byte[] header = ("PF\n" + width + " " + height + "\n-1.0\n").getBytes(StandardCharsets.US_ASCII);
+		channel.write(ByteBuffer.wrap(header));
+		headerSize = header.length;
+		buffer = ByteBuffer.allocateDirect(12 * width).order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	@Override
+	public synchronized void writeBlock(Image image, int offsetX, int offsetY, int sizeX, int sizeY) throws IOException {
+		double[] rgb = new double[3 * sizeX];
+		for (int y = offsetY; y < offsetY + sizeY; y++) {
+			image.getPixels(offsetX, y, sizeX, 1, rgb, 0);
+			buffer.clear();
+			for (int i = 0; i < rgb.length; i++)
+				buffer.putFloat((float) rgb[i]);
+			buffer.flip();
+			long position = headerSize + 12L * ((long) y * width + offsetX);
+			while (buffer.hasRemaining())
+				position += channel.write(buffer, position);
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel.size() < headerSize + 12L * width * height)
+			System.err.println("PFM closed before the last pixel was written");
+		channel.close();
+	}
+}
@@ -0,0 +1,146 @@
+package ray2.output;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import ray2.Image;
+
+/**
+ * Writes an 8-bit RGB PNG file one band of rows at a time, with the same
+ * pixel values as Image.write. Each row is filtered and compressed as soon
+ * as it arrives, and the compressed data goes out in IDAT chunks of at most
+ * CHUNK_SIZE bytes, so only a row and the compressor's window are held in
+ * memory.
+ *
+ * PNG files store the top row first, so blocks must be whole rows, given
+ * from the top of the image down.
+ */
+public class PNGStreamWriter implements TileWriter {
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	/** The most compressed bytes in one IDAT chunk. */
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private final int width, height;
+	private final DataOutputStream file;
+	private final DeflaterOutputStream compressed;
+	private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+
+	/** The raw bytes of a row, and the same row filtered, after its filter type byte. */
+	private final byte[] row, filtered;
+
+	/** The next row to write, counting down from the top. */
+	private int nextY;
+
+	public PNGStreamWriter(String fileName, int width, int height) throws IOException {
+		this.width = width;
+		this.height = height;
+		row = new byte[3 * width];
+		filtered = new byte[3 * width + 1];
+		nextY = height - 1;
+
+		file = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), CHUNK_SIZE));
+		file.write(SIGNATURE);
+		ChunkStream header = new ChunkStream("IHDR");
+		DataOutputStream out = new DataOutputStream(header);
+		out.writeInt(width);
+		out.writeInt(height);
+		out.writeByte(8); // bit depth
+		out.writeByte(2); // color type: RGB
+		out.writeByte(0); // compression: deflate
+		out.writeByte(0); // filter method: adaptive
+		out.writeByte(0); // no interlacing
+		header.close();
+
+		compressed = new DeflaterOutputStream(new ChunkStream("IDAT"), deflater, CHUNK_SIZE);
+	}
+
+	@Override
+	public void writeBlock(Image image, int offsetX, int offsetY, int sizeX, int sizeY) throws IOException {
+		if (offsetX != 0 || sizeX != width || offsetY + sizeY - 1 != nextY)
+			throw new IllegalStateException("PNG rows must be written whole, from the top down");
+		for (int y = offsetY + sizeY - 1; y >= offsetY; y--) {
+			for (int x = 0; x < width; x++) {
+				int rgb = image.getRGB(x, y);
+				row[3 * x] = (byte) (rgb >> 16);
+				row[3 * x + 1] = (byte) (rgb >> 8);
+				row[3 * x + 2] = (byte) rgb;
+			}
+			// The Sub filter: each byte less the same component of the pixel to its left
+			filtered[0] = 1;
+			for (int i = 0; i < row.length; i++)
+				filtered[i + 1] = (byte) (i < 3 ? row[i] : row[i] - row[i - 3]);
+			compressed.write(filtered);
+		}
+		nextY = offsetY - 1;
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (nextY >= 0)
+			System.err.println("PNG closed with " + (nextY + 1) + " of " + height + " rows unwritten");
+		compressed.close();
+		deflater.end();
+		new ChunkStream("IEND").close();
+		file.close();
+	}
+
+	/**
+	 * Collects the data of chunks of one type and writes each full chunk, with
+	 * its length and CRC, to the file; closing it writes what is left as a
+	 * last chunk.
+	 */
+	private class ChunkStream extends OutputStream {
+		private final byte[] type;
+		private final byte[] buffer = new byte[CHUNK_SIZE];
+		private int size = 0;
+
+		ChunkStream(String type) {
+			this.type = type.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (size == buffer.length)
+				flushChunk();
+			buffer[size++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (size == buffer.length)
+					flushChunk();
+				int n = Math.min(len, buffer.length - size);
+				System.arraycopy(b, off, buffer, size, n);
+				size += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		private void flushChunk() throws IOException {
+			CRC32 crc = new CRC32();
+			crc.update(type);
+			crc.update(buffer, 0, size);
+			file.writeInt(size);
+			file.write(type);
+			file.write(buffer, 0, size);
+			file.writeInt((int) crc.getValue());
+			size = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			flushChunk();
+		}
+	}
+}
@@ -0,0 +1,23 @@
+package ray2.output;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+import ray2.Image;
+
+/**
+ * Writes an image to a file a block at a time, while the rest of it is still
+ * being rendered, so the whole image never has to be in memory at once.
+ * Closing the writer finishes the file. Writers may restrict the order of
+ * the blocks, but all of them accept whole bands of rows given from the top
+ * of the image down.
+ */
+public interface TileWriter extends Closeable {
+
+	/**
+	 * Write the sizeX by sizeY block of pixels with its lower left corner at
+	 * (offsetX, offsetY), read from image. Every pixel of the image is written
+	 * exactly once before the writer is closed.
+	 */
+	void writeBlock(Image image, int offsetX, int offsetY, int sizeX, int sizeY) throws IOException;
+}
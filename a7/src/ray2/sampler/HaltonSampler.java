@@ -0,0 +1,44 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * The Halton sequence: dimension d of sample i is the radical inverse of i in
+ * the d-th prime base. Each pixel uses the start of the sequence, shifted in
+ * every dimension by its own random offset (a Cranley-Patterson rotation), so
+ * that neighboring pixels do not repeat the same pattern. Dimensions past the
+ * table of bases are uniformly random.
+ */
+public class HaltonSampler extends PixelSampler {
+
+	private static final int[] PRIMES = { 2, 3, 5, 7, 11, 13, 17, 19, 23, 29, 31, 37, 41, 43, 47, 53,
+			59, 61, 67, 71, 73, 79, 83, 89, 97, 101, 103, 107, 109, 113, 127, 131 };
+
+	@Override
+	protected double sample1D(int dimension) {
+		if (dimension >= PRIMES.length)
+			return random(dimension, 0);
+		double value = radicalInverse(PRIMES[dimension], index) + toUnit(dimensionSeed(dimension));
+		return value >= 1 ? value - 1 : value;
+	}
+
+	@Override
+	protected void sample2D(int dimension, Vector2d outSample) {
+		outSample.set(sample1D(dimension), sample1D(dimension + 1));
+	}
+
+	/**
+	 * @return the digits of i in the given base, mirrored about the point
+	 */
+	static double radicalInverse(int base, int i) {
+		double inverse = 1.0 / base;
+		double scale = inverse;
+		double result = 0;
+		while (i > 0) {
+			result += (i % base) * scale;
+			i /= base;
+			scale *= inverse;
+		}
+		return result;
+	}
+}
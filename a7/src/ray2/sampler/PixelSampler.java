@@ -0,0 +1,143 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * The common part of the samplers: the current pixel, sample and dimension,
+ * and hashing to derive independent random seeds for every pixel and
+ * dimension from them. Subclasses only define the values of a dimension, or a
+ * pair of dimensions, of the current sample.
+ */
+public abstract class PixelSampler implements Sampler, Cloneable {
+
+	/** Renders with different seeds use different samples. */
+	protected int seed = 0;
+	public void setSeed(int seed) { this.seed = seed; }
+
+	/** The current sample: index of count samples, in the pixel hashed to pixelHash. */
+	protected int pixelHash;
+	protected int index;
+	protected int count;
+	protected int dimension;
+
+	@Override
+	public void startSample(int x, int y, int index, int count) {
+		pixelHash = mix(seed + mix(x + mix(y)));
+		this.index = index;
+		this.count = Math.max(1, count);
+		dimension = 0;
+	}
+
+	@Override
+	public int getDimension() {
+		return dimension;
+	}
+
+	@Override
+	public void setDimension(int dimension) {
+		this.dimension = dimension;
+	}
+
+	@Override
+	public double next1D() {
+		return sample1D(dimension++);
+	}
+
+	@Override
+	public void next2D(Vector2d outSample) {
+		sample2D(dimension, outSample);
+		dimension += 2;
+	}
+
+	/**
+	 * @return the given dimension of the current sample
+	 */
+	protected abstract double sample1D(int dimension);
+
+	/**
+	 * Set outSample to the given dimension and the next of the current sample.
+	 */
+	protected abstract void sample2D(int dimension, Vector2d outSample);
+
+	@Override
+	public Sampler copy() {
+		try {
+			return (Sampler) clone();
+		} catch (CloneNotSupportedException e) {
+			throw new Error(e);
+		}
+	}
+
+	/**
+	 * @return a random seed for the given dimension in the current pixel,
+	 *         the same for every sample of the pixel
+	 */
+	protected int dimensionSeed(int dimension) {
+		return mix(pixelHash ^ mix(dimension + 0x9e3779b9));
+	}
+
+	/**
+	 * @return a random number in [0, 1) for the current sample, the given
+	 *         dimension and a small salt that tells apart several numbers
+	 *         needed for the same dimension
+	 */
+	protected double random(int dimension, int salt) {
+		return toUnit(mix(dimensionSeed(dimension) ^ mix(2 * index + salt)));
+	}
+
+	/**
+	 * A 32-bit integer hash with good avalanche: every input bit affects
+	 * every output bit.
+	 */
+	static int mix(int x) {
+		x ^= x >>> 16;
+		x *= 0x7feb352d;
+		x ^= x >>> 15;
+		x *= 0x846ca68b;
+		x ^= x >>> 16;
+		return x;
+	}
+
+	/**
+	 * @return the 32 bits of x, read as an unsigned fixed point fraction
+	 */
+	static double toUnit(int x) {
+		return (x & 0xffffffffL) * 0x1p-32;
+	}
+
+	/**
+	 * A random permutation of [0, length), given by the seed, applied to i,
+	 * after Kensler's "Correlated Multi-Jittered Sampling": a bijective hash
+	 * on the smallest power of two covering length, repeated until the result
+	 * falls in range.
+	 */
+	static int permute(int i, int length, int seed) {
+		int w = length - 1;
+		w |= w >>> 1;
+		w |= w >>> 2;
+		w |= w >>> 4;
+		w |= w >>> 8;
+		w |= w >>> 16;
+		do {
+			i ^= seed;
+			i *= 0xe170893d;
+			i ^= seed >>> 16;
+			i ^= (i & w) >>> 4;
+			i ^= seed >>> 8;
+			i *= 0x0929eb3f;
+			i ^= seed >>> 23;
+			i ^= (i & w) >>> 1;
+			i *= 1 | seed >>> 27;
+			i *= 0x6935fa69;
+			i ^= (i & w) >>> 11;
+			i *= 0x74dcb303;
+			i ^= (i & w) >>> 2;
+			i *= 0x9e501cc3;
+			i ^= (i & w) >>> 2;
+			i *= 0xc860a3df;
+			i &= w;
+			i ^= i >>> 5;
+		} while (i >= length);
+		return Integer.remainderUnsigned(i + seed, length);
+	}
+}
@@ -0,0 +1,51 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * A source of the sample values used while rendering: the position of a
+ * camera ray within its pixel, the point chosen on an area light, and so on.
+ * Each sample of each pixel is a point in a space of many dimensions, which
+ * are handed out in order as the sample is traced. A sampler is deterministic:
+ * the values of a sample depend only on its pixel, its index and the
+ * dimension, never on the thread that asks or the order of the pixels, so
+ * renders are reproducible however they are split up.
+ *
+ * A sampler holds the state of the sample being traced and must only be used
+ * by one thread; copy() makes one for another thread.
+ */
+public interface Sampler {
+
+	/**
+	 * Start sample index of the count samples of pixel (x, y). The next values
+	 * handed out are dimensions 0, 1, ... of that sample.
+	 */
+	public void startSample(int x, int y, int index, int count);
+
+	/**
+	 * @return the dimension of the next value to be handed out
+	 */
+	public int getDimension();
+
+	/**
+	 * Continue the current sample from the given dimension.
+	 */
+	public void setDimension(int dimension);
+
+	/**
+	 * @return the next dimension of the current sample, in [0, 1)
+	 */
+	public double next1D();
+
+	/**
+	 * Set outSample to the next two dimensions of the current sample, each in
+	 * [0, 1). The pair is distributed well in the square, not just each
+	 * dimension on its own.
+	 */
+	public void next2D(Vector2d outSample);
+
+	/**
+	 * @return a sampler with the same settings and state of its own
+	 */
+	public Sampler copy();
+}
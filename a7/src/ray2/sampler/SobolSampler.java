@@ -0,0 +1,58 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * Owen-scrambled Sobol points, after Burley's "Practical Hash-based Owen
+ * Scrambling". Every pair of dimensions is a copy of the first two Sobol
+ * dimensions, which are a (0, 2)-sequence: any power of two of consecutive
+ * samples is stratified in every way the square can be cut into that many
+ * equal rectangles. Each pair gets its own random order of the samples and
+ * its own Owen scrambling, hashed from the pixel and the dimension, which
+ * keeps the pairs independent of each other and the pixels decorrelated.
+ *
+ * Sample counts that are powers of two are distributed best.
+ */
+public class SobolSampler extends PixelSampler {
+
+	@Override
+	protected double sample1D(int dimension) {
+		int seed = dimensionSeed(dimension);
+		int i = scramble(index, seed);
+		return toUnit(scramble(Integer.reverse(i), mix(seed + 1)));
+	}
+
+	@Override
+	protected void sample2D(int dimension, Vector2d outSample) {
+		int seed = dimensionSeed(dimension);
+		int i = scramble(index, seed);
+		outSample.set(toUnit(scramble(Integer.reverse(i), mix(seed + 1))),
+				toUnit(scramble(sobol1(i), mix(seed + 2))));
+	}
+
+	/**
+	 * @return the second Sobol dimension of sample i, as a 32-bit fraction
+	 */
+	static int sobol1(int i) {
+		int result = 0;
+		for (int v = 1 << 31; i != 0; i >>>= 1, v ^= v >>> 1) {
+			if ((i & 1) != 0)
+				result ^= v;
+		}
+		return result;
+	}
+
+	/**
+	 * Owen-scramble the 32-bit fraction x: each bit is flipped or not
+	 * depending on the seed and all the bits above it.
+	 */
+	static int scramble(int x, int seed) {
+		x = Integer.reverse(x);
+		x ^= x * 0x3d20adea;
+		x += seed;
+		x *= (seed >>> 16) | 1;
+		x ^= x * 0x05526c56;
+		x ^= x * 0x53a22864;
+		return Integer.reverse(x);
+	}
+}
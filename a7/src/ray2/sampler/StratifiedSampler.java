@@ -0,0 +1,59 @@
+package ray2.sampler;
+
+import egl.math.Vector2d;
+
+/**
+ * Stratified sampling. The count samples of a pixel divide each pair of
+ * dimensions into a grid of sqrt(count) by sqrt(count) cells and take one
+ * point in each; a single dimension is divided into count intervals. Every
+ * pair other than the first visits the cells in its own random order, so
+ * that, say, the light samples are not lined up with the positions in the
+ * pixel. Samples beyond the largest square grid are uniformly random.
+ *
+ * The first pair of dimensions, the position of the camera ray within the
+ * pixel, is in the order of RayTracer's grid: sample i * n + j lies in column
+ * i and row j of the n by n grid.
+ */
+public class StratifiedSampler extends PixelSampler {
+
+	/**
+	 * If true, positions within the pixel are jittered within their cells;
+	 * otherwise they are the cell centers, the regular grid RayTracer has
+	 * always used. Other dimensions are always jittered.
+	 */
+	protected boolean jitter = false;
+	public void setJitter(boolean jitter) { this.jitter = jitter; }
+
+	@Override
+	protected double sample1D(int dimension) {
+		int k = permute(index % count, count, dimensionSeed(dimension));
+		return (k + random(dimension, 0)) / count;
+	}
+
+	@Override
+	protected void sample2D(int dimension, Vector2d outSample) {
+		int n = side(count);
+		if (index >= n * n) {
+			outSample.set(random(dimension, 0), random(dimension, 1));
+			return;
+		}
+		int k = dimension == 0 ? index : permute(index, n * n, dimensionSeed(dimension));
+		int i = k / n, j = k % n;
+		if (dimension == 0 && !jitter)
+			outSample.set((i + 0.5) / n, (j + 0.5) / n);
+		else
+			outSample.set((i + random(dimension, 0)) / n, (j + random(dimension, 1)) / n);
+	}
+
+	/**
+	 * @return the largest n with n * n at most count
+	 */
+	static int side(int count) {
+		int n = (int) Math.sqrt(count);
+		while (n * n > count)
+			n--;
+		while ((n + 1) * (n + 1) <= count)
+			n++;
+		return n;
+	}
+}
@@ -1,13 +1,18 @@
 package ray2.shader;
 
+import java.util.List;
+
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.RayQueue;
 import ray2.Scene;
+import ray2.ShadingContext;
 import ray2.light.Light;
 import ray2.light.LightSamplingRecord;
+import ray2.light.LightTree;
+import ray2.sampler.Sampler;
 import egl.math.Color;
 import egl.math.Colord;
-import egl.math.Vector2d;
 import egl.math.Vector3d;
 
 public abstract class BRDFShader extends Shader {
@@ -55,9 +60,11 @@ public abstract class BRDFShader extends Shader {
 	 *            surface.
 	 * @param depth
 	 *            The recursion depth.
+	 * @param context
+	 *            The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord iRec, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord iRec, int depth, ShadingContext context) {
 		// TODO#A7 Fill in this function.
 		// 1) Loop through each light in the scene.
 		// 2) If the intersection point is shadowed, skip the calculation for
@@ -66,35 +73,148 @@ public abstract class BRDFShader extends Shader {
 		// 4) Evaluate the BRDF using the abstract evalBRDF method.
 		// 5) Compute the final color using the BRDF value and the information
 		// in the light sampling record.
+		ShadingContext.Frame frame = context.frame(depth);
+		LightSamplingRecord lRec = frame.lightRecord;
+		Colord contribution = frame.color1;
+
+		Sampler sampler = context.sampler(scene);
+		Colord dcolor = getDiffuseColor(scene, ray, iRec, depth, context, frame.color2);
+
 		outIntensity.setZero();
-		for (Light light : scene.getLights()) {
-			LightSamplingRecord lRec = new LightSamplingRecord();
-			light.sample(lRec, iRec.location);
-
-			if (!isShadowed(scene, lRec, iRec, new Ray(ray))) {
-				Colord dcolor;
-				if (texture == null)
-					dcolor = diffuseColor;
-				else {
-					Vector2d texCoord = iRec.texCoords.clone();
-					dcolor = getTexture().getTexColor(texCoord);
-				}
+		List<Light> lights = scene.getLights();
+		LightTree tree = scene.getLightTree();
+		int count = tree == null ? lights.size() : tree.getUnboundedCount();
+		for (int j = 0; j < count; j++) {
+			Light light = lights.get(tree == null ? j : tree.getUnboundedLight(j));
+			light.sample(lRec, iRec.location, sampler);
+
+			if (evalLight(contribution, light, lRec, ray, iRec, dcolor, frame) && !isShadowed(scene, lRec, iRec, frame.shadowRay))
+				outIntensity.add(contribution);
+		}
+
+		if (tree != null) {
+			int samples = scene.getLightSamples();
+			for (int s = 0; s < samples; s++) {
+				int i = tree.pick(iRec.location, iRec.normal, sampler.next1D(), lRec);
+				if (i < 0)
+					continue;
+				Light light = lights.get(i);
+				double weight = 1 / (lRec.selectionProbability * samples);
+				light.sample(lRec, iRec.location, sampler);
+
+				if (evalLight(contribution, light, lRec, ray, iRec, dcolor, frame) && !isShadowed(scene, lRec, iRec, frame.shadowRay))
+					outIntensity.add(contribution.mul(weight));
+			}
+		}
+
+		IrradianceCache cache = scene.getIrradianceCache();
+		if (cache != null && !context.gathering)
+			outIntensity.add(cache.getIrradiance(scene, iRec, depth, context, frame.color3).mul(dcolor));
+	}
+
+	/**
+	 * Queue one shadow ray per light, or per light picked from the scene's
+	 * LightTree, carrying what the light would add. The rays are grouped by
+	 * light, so rays toward the same light are traced together.
+	 */
+	@Override
+	public void shadeDeferred(Colord outColor, Scene scene, Ray ray, IntersectionRecord iRec, int depth,
+			Colord weight, int pixel, RayQueue rays, RayQueue shadowRays, ShadingContext context) {
+		ShadingContext.Frame frame = context.frame(depth);
+		LightSamplingRecord lRec = frame.lightRecord;
+		Colord contribution = frame.color1;
+		Sampler sampler = context.sampler(scene);
+		Colord dcolor = getDiffuseColor(scene, ray, iRec, depth, context, frame.color2);
+
+		List<Light> lights = scene.getLights();
+		LightTree tree = scene.getLightTree();
+		int count = tree == null ? lights.size() : tree.getUnboundedCount();
+		for (int j = 0; j < count; j++) {
+			int i = tree == null ? j : tree.getUnboundedLight(j);
+			Light light = lights.get(i);
+			light.sample(lRec, iRec.location, sampler);
 
-				Colord contribution = new Colord();
-				if (iRec.normal.dot(lRec.direction) > 0.0) {
-					// L: a unit vector toward the light
-					// V: a unit vector toward the viewer
-					// N: a unit surface normal
-					Vector3d L = lRec.direction.clone().normalize();
-					Vector3d V = ray.origin.clone().sub(iRec.location).normalize();
-					Vector3d N = iRec.normal;
-					this.evalBRDF(L, V, N, dcolor, contribution);
-					contribution.mul(light.intensity).mul(L.dot(N)).mul(lRec.attenuation).div(lRec.probability);
+			if (evalLight(contribution, light, lRec, ray, iRec, dcolor, frame)) {
+				setShadowRay(lRec, iRec, frame.shadowRay);
+				contribution.mul(weight.x, weight.y, weight.z);
+				shadowRays.add(frame.shadowRay, contribution, 1, pixel, depth, i);
+			}
+		}
+
+		if (tree != null) {
+			int samples = scene.getLightSamples();
+			for (int s = 0; s < samples; s++) {
+				int i = tree.pick(iRec.location, iRec.normal, sampler.next1D(), lRec);
+				if (i < 0)
+					continue;
+				Light light = lights.get(i);
+				double selection = 1 / (lRec.selectionProbability * samples);
+				light.sample(lRec, iRec.location, sampler);
 
+				if (evalLight(contribution, light, lRec, ray, iRec, dcolor, frame)) {
+					setShadowRay(lRec, iRec, frame.shadowRay);
+					contribution.mul(weight.x * selection, weight.y * selection, weight.z * selection);
+					shadowRays.add(frame.shadowRay, contribution, 1, pixel, depth, i);
 				}
-				outIntensity.add(contribution);
 			}
 		}
+
+		IrradianceCache cache = scene.getIrradianceCache();
+		if (cache != null && !context.gathering)
+			outColor.add(cache.getIrradiance(scene, iRec, depth, context, frame.color3).mul(dcolor).mul(weight));
+	}
+
+	/**
+	 * The diffuse color at the intersection: the texture's color there if
+	 * there is a texture, or diffuseColor otherwise. The texture is looked up
+	 * over the area one camera sample covers at the end of the ray's whole
+	 * path from the camera, stretched by the angle the ray meets the surface
+	 * at. Curved mirrors and lenses along the path, which widen or narrow the
+	 * area, are not accounted for.
+	 *
+	 * @param outColor
+	 *            where the texture color is put
+	 * @return outColor, or diffuseColor
+	 */
+	protected Colord getDiffuseColor(Scene scene, Ray ray, IntersectionRecord iRec, int depth,
+			ShadingContext context, Colord outColor) {
+		if (texture == null)
+			return diffuseColor;
+		double footprint = 0;
+		if (iRec.texScale > 0) {
+			double pathLength = context.frame(depth).pathLength;
+			double cos = Math.abs(iRec.normal.dot(ray.direction));
+			footprint = iRec.texScale * scene.getCamera().getPixelFootprint(pathLength, scene.getImage().getWidth())
+					/ (scene.getSamples() * Math.max(cos, 1e-3));
+		}
+		return texture.getTexColor(iRec.texCoords, footprint, outColor);
+	}
+
+	/**
+	 * Compute the light from a light sample that is reflected towards the
+	 * viewer, ignoring shadows.
+	 *
+	 * @param outContribution
+	 *            the reflected light
+	 * @param dcolor
+	 *            the diffuse color at the intersection
+	 * @return false, leaving outContribution unset, if the light is not in
+	 *         front of the surface
+	 */
+	protected boolean evalLight(Colord outContribution, Light light, LightSamplingRecord lRec, Ray ray,
+			IntersectionRecord iRec, Colord dcolor, ShadingContext.Frame frame) {
+		if (!(iRec.normal.dot(lRec.direction) > 0.0))
+			return false;
+
+		// L: a unit vector toward the light
+		// V: a unit vector toward the viewer
+		// N: a unit surface normal
+		Vector3d L = frame.vector1.set(lRec.direction).normalize();
+		Vector3d V = frame.vector2.set(ray.origin).sub(iRec.location).normalize();
+		Vector3d N = iRec.normal;
+		this.evalBRDF(L, V, N, dcolor, outContribution);
+		outContribution.mul(light.getIntensity(lRec)).mul(L.dot(N)).mul(lRec.attenuation).div(lRec.probability);
+		return true;
 	}
 
-}
\ No newline at end of file
+}
@@ -1,9 +1,11 @@
 package ray2.shader;
 
-import ray2.RayTracer;
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.RayQueue;
 import ray2.Scene;
+import ray2.ShadingContext;
+import ray2.sampler.Sampler;
 import egl.math.Colord;
 import egl.math.Vector3d;
 
@@ -50,9 +52,11 @@ public class Glass extends Shader {
 	 *            surface.
 	 * @param depth
 	 *            The recursion depth.
+	 * @param context
+	 *            The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, ShadingContext context) {
 		// TODO#A7: fill in this function.
 		// 1) Determine whether the ray is coming from the inside of the surface
 		// or the outside.
@@ -60,12 +64,66 @@ public class Glass extends Shader {
 		// 3) Compute the reflected ray and refracted ray (if total internal
 		// reflection does not occur)
 		// using Snell's law and call RayTracer.shadeRay on them to shade them
+		// Each ray is a branch whose weight is its share of the Fresnel split;
+		// traceBranch may roulette weak branches or, with singleBranch, only
+		// one of the two is followed.
+
+		ShadingContext.Frame frame = context.frame(depth);
+		double fresnel = scatter(ray, record, frame);
+		Sampler sampler = context.sampler(scene);
+
+		if (fresnel < 0) {
+			traceBranch(outIntensity, frame.color1, scene, frame.reflectionRay, 1, depth, sampler.getDimension(), context);
+		} else if (scene.getSingleBranch()) {
+			Ray chosen = sampler.next1D() < fresnel ? frame.reflectionRay : frame.refractionRay;
+			traceBranch(outIntensity, frame.color1, scene, chosen, 1, depth, sampler.getDimension(), context);
+		} else {
+			int dimension = sampler.getDimension();
+			traceBranch(outIntensity, frame.color1, scene, frame.reflectionRay, fresnel, depth,
+					branchDimension(dimension, 0), context);
+			traceBranch(outIntensity, frame.color2, scene, frame.refractionRay, 1-fresnel, depth,
+					branchDimension(dimension, 1), context);
+		}
+	}
 
+	/**
+	 * Queue the reflected and refracted rays, weighted as shade weights their
+	 * colors.
+	 */
+	@Override
+	public void shadeDeferred(Colord outColor, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			Colord weight, int pixel, RayQueue rays, RayQueue shadowRays, ShadingContext context) {
+		ShadingContext.Frame frame = context.frame(depth);
+		double fresnel = scatter(ray, record, frame);
+		Sampler sampler = context.sampler(scene);
+
+		if (fresnel < 0) {
+			queueBranch(rays, scene, frame.reflectionRay, weight, 1, pixel, depth+1, sampler.getDimension(), context);
+		} else if (scene.getSingleBranch()) {
+			Ray chosen = sampler.next1D() < fresnel ? frame.reflectionRay : frame.refractionRay;
+			queueBranch(rays, scene, chosen, weight, 1, pixel, depth+1, sampler.getDimension(), context);
+		} else {
+			int dimension = sampler.getDimension();
+			queueBranch(rays, scene, frame.reflectionRay, weight, fresnel, pixel, depth+1,
+					branchDimension(dimension, 0), context);
+			queueBranch(rays, scene, frame.refractionRay, weight, 1-fresnel, pixel, depth+1,
+					branchDimension(dimension, 1), context);
+		}
+	}
+
+	/**
+	 * Set frame.reflectionRay and, unless there is total internal reflection,
+	 * frame.refractionRay to the rays leaving the intersection.
+	 *
+	 * @return the Fresnel reflectance, or -1 if there is total internal
+	 *         reflection and only the reflected ray carries light
+	 */
+	protected double scatter(Ray ray, IntersectionRecord record, ShadingContext.Frame frame) {
 		// n1 is from; n2 is to.
 		double n1 = 0, n2 = 0;
 		double fresnel = 0;
-		Vector3d d = new Vector3d(ray.origin.clone().sub(record.location)).normalize();
-		Vector3d n = new Vector3d(record.normal).normalize();
+		Vector3d d = frame.vector1.set(ray.origin).sub(record.location).normalize();
+		Vector3d n = frame.vector2.set(record.normal).normalize();
 		double theta = n.dot(d);
 
 		// CASE 1a: ray coming from outside.
@@ -84,33 +142,24 @@ public class Glass extends Shader {
 			theta = n.dot(d);
 		}
 
-		Vector3d reflectionDir = new Vector3d(n).mul(2 * theta).sub(d.clone()).normalize();
-		Ray reflectionRay = new Ray(record.location.clone(), reflectionDir);
+		Ray reflectionRay = frame.reflectionRay;
+		reflectionRay.origin.set(record.location);
+		reflectionRay.direction.set(n).mul(2 * theta).sub(d).normalize();
 		reflectionRay.makeOffsetRay();
-		Colord reflectionColor = new Colord();
-		RayTracer.shadeRay(reflectionColor, scene, reflectionRay, depth+1);
 
 		double det = 1 - (Math.pow(n1, 2.0) * (1 - Math.pow(theta, 2.0))) / (Math.pow(n2, 2.0));
-
-		if (det < 0.0) {
-			outIntensity.add(reflectionColor);
-		} else {
-
-			d = new Vector3d(record.location.clone().sub(ray.origin)).normalize();
-
-			Vector3d refractionDir = new Vector3d((d.clone().sub(n.clone().mul(d.dot(n))).mul(n1/n2)));
-			refractionDir.sub(n.clone().mul(Math.sqrt(det)));
-			Ray refractionRay = new Ray(record.location.clone(), refractionDir);
-			refractionRay.makeOffsetRay();
-
-			Colord refractionColor = new Colord();
-			RayTracer.shadeRay(refractionColor, scene, refractionRay, depth+1);
-
-			refractionColor.mul(1-fresnel);
-			reflectionColor.mul(fresnel);
-			outIntensity.add(reflectionColor).add(refractionColor);
-
-		}
+		if (det < 0.0)
+			return -1;
+
+		d.set(record.location).sub(ray.origin).normalize();
+
+		Vector3d scaledNormal = frame.vector3;
+		Ray refractionRay = frame.refractionRay;
+		refractionRay.origin.set(record.location);
+		refractionRay.direction.set(d).sub(scaledNormal.set(n).mul(d.dot(n))).mul(n1/n2);
+		refractionRay.direction.sub(scaledNormal.set(n).mul(Math.sqrt(det)));
+		refractionRay.makeOffsetRay();
+		return fresnel;
 	}
 
-}
\ No newline at end of file
+}
@@ -1,9 +1,11 @@
 package ray2.shader;
 
-import ray2.RayTracer;
 import ray2.IntersectionRecord;
 import ray2.Ray;
+import ray2.RayQueue;
 import ray2.Scene;
+import ray2.ShadingContext;
+import ray2.sampler.Sampler;
 import egl.math.Colord;
 import egl.math.Vector3d;
 
@@ -46,32 +48,96 @@ public class Glazed extends Shader {
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context The scratch space of the calling thread.
 	 */
 	@Override
-	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth) {
+	public void shade(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, int depth, ShadingContext context) {
 		// TODO#A7: fill in this function.
 		// You may find it helpful to create helper methods if the code here gets too long.
 		//  1) Compute the Fresnel term R
         //  2) Shade the substrate and multiply the result color by 1 - R
         //  3) Compute the reflected ray and call RayTracer.shadeRay on it, multiply result color by R
-		double n1 = 0, n2 = 0;
+		ShadingContext.Frame frame = context.frame(depth);
+		double fresnel = reflect(ray, record, frame);
+		Sampler sampler = context.sampler(scene);
 
-		Vector3d d = new Vector3d(ray.origin.clone().sub(record.location)).normalize();
-		Vector3d n = new Vector3d(record.normal).normalize();
+		if (scene.getSingleBranch()) {
+			if (sampler.next1D() < fresnel)
+				traceBranch(outIntensity, frame.color1, scene, frame.reflectionRay, 1, depth, sampler.getDimension(), context);
+			else
+				shadeSubstrate(outIntensity, scene, ray, record, 1, depth, sampler.getDimension(), context);
+		} else {
+			int dimension = sampler.getDimension();
+			traceBranch(outIntensity, frame.color1, scene, frame.reflectionRay, fresnel, depth,
+					branchDimension(dimension, 0), context);
+			shadeSubstrate(outIntensity, scene, ray, record, 1-fresnel, depth, branchDimension(dimension, 1), context);
+		}
+	}
+
+	/**
+	 * Add scale times the substrate's color to outIntensity, treating the
+	 * substrate as a branch, starting from sampler dimension dimension, for
+	 * roulette.
+	 */
+	private void shadeSubstrate(Colord outIntensity, Scene scene, Ray ray, IntersectionRecord record, double scale,
+			int depth, int dimension, ShadingContext context) {
+		context.sampler(scene).setDimension(dimension);
+		double throughput = context.frame(depth).throughput * scale;
+		double factor = roulette(scene, throughput, context);
+		if (factor == 0)
+			return;
+		context.frame(depth+1).throughput = throughput * factor;
+		Colord substrateColor = context.frame(depth).color2;
+		substrate.shade(substrateColor, scene, ray, record, depth+1, context);
+		outIntensity.add(substrateColor.mul(scale * factor));
+	}
+
+	/**
+	 * Queue the reflected ray and let the substrate shade the rest.
+	 */
+	@Override
+	public void shadeDeferred(Colord outColor, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			Colord weight, int pixel, RayQueue rays, RayQueue shadowRays, ShadingContext context) {
+		ShadingContext.Frame frame = context.frame(depth);
+		double fresnel = reflect(ray, record, frame);
+		Sampler sampler = context.sampler(scene);
+		double scale = 1-fresnel;
+		if (scene.getSingleBranch()) {
+			if (sampler.next1D() < fresnel) {
+				queueBranch(rays, scene, frame.reflectionRay, weight, 1, pixel, depth+1, sampler.getDimension(), context);
+				return;
+			}
+			scale = 1;
+		} else {
+			// The substrate is the second branch, as in shade
+			int dimension = sampler.getDimension();
+			queueBranch(rays, scene, frame.reflectionRay, weight, fresnel, pixel, depth+1,
+					branchDimension(dimension, 0), context);
+			sampler.setDimension(branchDimension(dimension, 1));
+		}
+
+		double factor = roulette(scene, Math.max(weight.x, Math.max(weight.y, weight.z)) * scale, context);
+		if (factor == 0)
+			return;
+		Colord substrateWeight = frame.color2;
+		substrateWeight.set(weight).mul(scale * factor);
+		substrate.shadeDeferred(outColor, scene, ray, record, depth+1, substrateWeight, pixel, rays, shadowRays, context);
+	}
+
+	/**
+	 * Set frame.reflectionRay to the ray reflected off the glaze.
+	 *
+	 * @return the Fresnel reflectance of the glaze
+	 */
+	protected double reflect(Ray ray, IntersectionRecord record, ShadingContext.Frame frame) {
+		Vector3d d = frame.vector1.set(ray.origin).sub(record.location).normalize();
+		Vector3d n = frame.vector2.set(record.normal).normalize();
 		double theta = n.dot(d);
-		double fresnel = fresnel(n, d, refractiveIndex);
 
-		Vector3d reflectionDir = new Vector3d(n).mul(2 * theta).sub(d.clone()).normalize();
-		Ray reflectionRay = new Ray(record.location.clone(), reflectionDir);
+		Ray reflectionRay = frame.reflectionRay;
+		reflectionRay.origin.set(record.location);
+		reflectionRay.direction.set(n).mul(2 * theta).sub(d).normalize();
 		reflectionRay.makeOffsetRay();
-		Colord reflectionColor = new Colord();
-		RayTracer.shadeRay(reflectionColor, scene, reflectionRay, depth+1);
-		reflectionColor.mul(fresnel);
-		
-		Colord substrateColor = new Colord();
-		substrate.shade(substrateColor, scene, ray, record, depth+1);
-		substrateColor.mul(1-fresnel);
-		
-		outIntensity.add(reflectionColor).add(substrateColor);
+		return fresnel(n, d, refractiveIndex);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,316 @@
+package ray2.shader;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import egl.math.Colord;
+import egl.math.Vector2d;
+import egl.math.Vector3d;
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.RayTracer;
+import ray2.Scene;
+import ray2.ShadingContext;
+import ray2.surface.Surface;
+
+/**
+ * Diffuse interreflection for BRDFShader, computed with Ward's irradiance
+ * cache. The irradiance at a shading point, the light arriving over the
+ * hemisphere around its normal weighted by cosine, is found by tracing rays
+ * over the hemisphere and shading what they hit with direct light only (one
+ * bounce). Rays that leave the scene add nothing: the background, cubemap
+ * or color, is not a light, and an EnvironmentLight already lights the
+ * shading point directly. That costs many rays, so instead of doing it at every shading
+ * point the result is stored as a record and interpolated at the points
+ * around it: a record made at p_i with normal n_i is used at point p with
+ * normal n while its error estimate
+ *
+ * <pre>
+ *   e = |p - p_i| / R_i + sqrt(1 - n . n_i)
+ * </pre>
+ *
+ * stays below accuracy, where R_i is the harmonic mean distance to the
+ * surfaces the record's rays hit: records near other geometry, where the
+ * irradiance changes quickly, cover little, and records in the open cover a
+ * lot. Points no record covers gather a record of their own, so the cache
+ * fills in as the image is rendered.
+ *
+ * The records are kept in an octree over the scene, each in the node whose
+ * size matches the distance over which it can be used. Lookups take no
+ * locks; adding a record locks the one node it goes in, so any number of
+ * threads can render with one cache. With more than one thread the records
+ * made depend on the order the blocks are rendered in, so the image can
+ * differ slightly from run to run. Likewise each FarmWorker process fills
+ * a cache of its own, and a render resumed from a checkpoint starts the
+ * remaining blocks with an empty cache, so those images depend on how the
+ * blocks were dealt out or where the render stopped; RayTracer warns when a
+ * cache is used either way.
+ *
+ * If cached is false, every shading point gathers its own irradiance and
+ * nothing is stored: the brute-force reference the cache approximates.
+ */
+public class IrradianceCache {
+
+	/** The largest error estimate, e above, with which a record is used. */
+	protected double accuracy = 0.15;
+	public void setAccuracy(double accuracy) { this.accuracy = Math.max(1e-3, accuracy); }
+
+	/** The number of rays traced over the hemisphere for each record. */
+	protected int rays = 1024;
+	public void setRays(int rays) { this.rays = Math.max(1, rays); }
+
+	/**
+	 * The distance over which a record is used, accuracy * R_i, is kept
+	 * between minSpacing and maxSpacing times the width of a pixel at the
+	 * record, so that corners do not need a record at every pixel and open
+	 * floors still get a few.
+	 */
+	protected double minSpacing = 1.5;
+	public void setMinSpacing(double minSpacing) { this.minSpacing = Math.max(0, minSpacing); }
+	protected double maxSpacing = 40;
+	public void setMaxSpacing(double maxSpacing) { this.maxSpacing = Math.max(0, maxSpacing); }
+
+	/** If false, irradiance is gathered at every shading point and not stored. */
+	protected boolean cached = true;
+	public void setCached(boolean cached) { this.cached = cached; }
+	public boolean isCached() { return cached; }
+
+	/** The deepest level of the octree. */
+	private static final int MAX_LEVEL = 20;
+
+	/** The root of the octree, made by init to enclose the scene. */
+	private Node root;
+
+	/** The number of records made and of rays traced to make them, for reporting. */
+	private final LongAdder records = new LongAdder();
+	private final LongAdder gatherRays = new LongAdder();
+	public long getRecordCount() { return records.sum(); }
+	public long getGatherRays() { return gatherRays.sum(); }
+
+	/** One irradiance value, and where it was measured. */
+	private static class Record {
+		final Vector3d position = new Vector3d();
+		final Vector3d normal = new Vector3d();
+		final Colord irradiance = new Colord();
+		/** The harmonic mean distance to the surfaces seen from the record. */
+		double harmonicDistance;
+		/** The distance over which the record is used, accuracy * harmonicDistance. */
+		double radius;
+	}
+
+	/**
+	 * A cube of the octree. It holds the records whose position is inside
+	 * it and whose radius is at most its half size but more than that of
+	 * its children. Readers take count, then records, without locking;
+	 * writers hold the node's lock and publish a record by writing count.
+	 */
+	private static class Node {
+		final double centerX, centerY, centerZ, halfSize;
+		final int level;
+		final AtomicReferenceArray<Node> children = new AtomicReferenceArray<Node>(8);
+		Record[] records = new Record[4];
+		volatile int count = 0;
+
+		Node(double centerX, double centerY, double centerZ, double halfSize, int level) {
+			this.centerX = centerX;
+			this.centerY = centerY;
+			this.centerZ = centerZ;
+			this.halfSize = halfSize;
+			this.level = level;
+		}
+
+		/**
+		 * @return the child containing p, made if it does not exist yet
+		 */
+		Node child(Vector3d p) {
+			int i = (p.x >= centerX ? 1 : 0) | (p.y >= centerY ? 2 : 0) | (p.z >= centerZ ? 4 : 0);
+			Node child = children.get(i);
+			if (child == null) {
+				double h = halfSize / 2;
+				Node made = new Node(centerX + ((i & 1) != 0 ? h : -h), centerY + ((i & 2) != 0 ? h : -h),
+						centerZ + ((i & 4) != 0 ? h : -h), h, level + 1);
+				child = children.compareAndSet(i, null, made) ? made : children.get(i);
+			}
+			return child;
+		}
+
+		synchronized void add(Record record) {
+			int n = count;
+			if (n == records.length) {
+				Record[] grown = new Record[2 * n];
+				System.arraycopy(records, 0, grown, 0, n);
+				records = grown;
+			}
+			records[n] = record;
+			count = n + 1;
+		}
+	}
+
+	/**
+	 * Forget the records of any earlier image and size the octree to the
+	 * scene's surfaces.
+	 */
+	public void init(Scene scene) {
+		double[] min = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] max = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (Surface surface : scene.getRenderableSurfaces()) {
+			Vector3d lo = surface.getMinBound(), hi = surface.getMaxBound();
+			if (lo == null || hi == null)
+				continue;
+			min[0] = Math.min(min[0], lo.x); min[1] = Math.min(min[1], lo.y); min[2] = Math.min(min[2], lo.z);
+			max[0] = Math.max(max[0], hi.x); max[1] = Math.max(max[1], hi.y); max[2] = Math.max(max[2], hi.z);
+		}
+		double halfSize = 1;
+		for (int k = 0; k < 3; k++) {
+			if (!(min[k] <= max[k])) {
+				min[k] = max[k] = 0;
+			}
+			halfSize = Math.max(halfSize, (max[k] - min[k]) / 2 * 1.001);
+		}
+		root = new Node((min[0] + max[0]) / 2, (min[1] + max[1]) / 2, (min[2] + max[2]) / 2, halfSize, 0);
+		records.reset();
+		gatherRays.reset();
+	}
+
+	/**
+	 * Set outIrradiance to the irradiance at the intersection, interpolated
+	 * from the records that cover it, or gathered (and stored, if cached) if
+	 * there are none.
+	 *
+	 * @param depth the depth the intersection is shaded at; the gather rays
+	 *        are shaded one deeper
+	 * @return outIrradiance
+	 */
+	public Colord getIrradiance(Scene scene, IntersectionRecord iRec, int depth, ShadingContext context,
+			Colord outIrradiance) {
+		if (cached) {
+			outIrradiance.setZero();
+			double weight = lookup(root, iRec.location, iRec.normal, outIrradiance);
+			if (weight > 0)
+				return (Colord) outIrradiance.div(weight);
+		}
+
+		Record record = new Record();
+		record.position.set(iRec.location);
+		record.normal.set(iRec.normal);
+		gather(scene, record, depth, context);
+		outIrradiance.set(record.irradiance);
+		if (cached) {
+			double pixel = scene.getCamera().getPixelFootprint(iRec.t, scene.getImage().getWidth());
+			record.radius = Math.max(minSpacing * pixel,
+					Math.min(maxSpacing * pixel, accuracy * record.harmonicDistance));
+			record.harmonicDistance = record.radius / accuracy;
+			insert(record);
+			records.increment();
+		}
+		return outIrradiance;
+	}
+
+	/**
+	 * Add the weighted irradiance of the records under node that cover p
+	 * to outIrradiance.
+	 *
+	 * @return the sum of their weights
+	 */
+	private double lookup(Node node, Vector3d p, Vector3d n, Colord outIrradiance) {
+		double weightSum = 0;
+		int count = node.count;
+		Record[] records = node.records;
+		for (int i = 0; i < count; i++) {
+			Record r = records[i];
+			double dx = p.x - r.position.x, dy = p.y - r.position.y, dz = p.z - r.position.z;
+			double distSq = dx * dx + dy * dy + dz * dz;
+			if (distSq >= r.radius * r.radius)
+				continue;
+			double cos = n.dot(r.normal);
+			double error = Math.sqrt(distSq) / r.harmonicDistance + Math.sqrt(Math.max(0, 1 - cos));
+			if (error >= accuracy)
+				continue;
+			// Skip records in front of p, which see surfaces p does not
+			double front = (dx * (n.x + r.normal.x) + dy * (n.y + r.normal.y) + dz * (n.z + r.normal.z)) / 2;
+			if (front < -0.05 * r.radius)
+				continue;
+			// Weights fall to zero at the edge of a record, so records do not show as disks
+			double weight = 1 / Math.max(error, 1e-6) - 1 / accuracy;
+			outIrradiance.addMultiple(weight, r.irradiance);
+			weightSum += weight;
+		}
+
+		for (int i = 0; i < 8; i++) {
+			Node child = node.children.get(i);
+			if (child == null)
+				continue;
+			double reach = 2 * child.halfSize;
+			if (Math.abs(p.x - child.centerX) <= reach && Math.abs(p.y - child.centerY) <= reach
+					&& Math.abs(p.z - child.centerZ) <= reach)
+				weightSum += lookup(child, p, n, outIrradiance);
+		}
+		return weightSum;
+	}
+
+	/**
+	 * Add record to the smallest node that contains its position and is at
+	 * least as large as its radius. Records outside the root stay in the root.
+	 */
+	private void insert(Record record) {
+		Node node = root;
+		Vector3d p = record.position;
+		if (Math.abs(p.x - node.centerX) <= node.halfSize && Math.abs(p.y - node.centerY) <= node.halfSize
+				&& Math.abs(p.z - node.centerZ) <= node.halfSize) {
+			while (node.level < MAX_LEVEL && node.halfSize / 2 >= record.radius)
+				node = node.child(p);
+		}
+		node.add(record);
+	}
+
+	/**
+	 * Trace rays over the hemisphere around the record's normal, stratified
+	 * and distributed by cosine, and set its irradiance and harmonic mean
+	 * distance.
+	 */
+	private void gather(Scene scene, Record record, int depth, ShadingContext context) {
+		ShadingContext.Frame frame = context.frame(depth);
+		Ray ray = frame.reflectionRay;
+		Colord radiance = frame.color3;
+		Vector3d n = record.normal;
+		// Two tangents that make an orthonormal basis with n
+		Vector3d tangent = frame.vector3;
+		if (Math.abs(n.x) > 0.5)
+			tangent.set(n.y, -n.x, 0);
+		else
+			tangent.set(0, n.z, -n.y);
+		tangent.normalize();
+		Vector3d bitangent = frame.vector4.set(n).cross(tangent);
+
+		// An m by 2m grid over (radius, angle) of the disk the cosine distribution projects to
+		int m = Math.max(1, (int) Math.round(Math.sqrt(rays / 2.0)));
+		int strata = 2 * m * m;
+		Vector2d sample = new Vector2d();
+		IntersectionRecord hit = context.frame(depth + 1).record;
+		double inverseDistanceSum = 0;
+		boolean gathering = context.gathering;
+		context.gathering = true;
+		for (int j = 0; j < strata; j++) {
+			context.sampler(scene).next2D(sample);
+			double u = ((j / (2 * m)) + sample.x) / m;
+			double phi = 2 * Math.PI * ((j % (2 * m)) + sample.y) / (2 * m);
+			double r = Math.sqrt(u);
+			double a = r * Math.cos(phi), b = r * Math.sin(phi), c = Math.sqrt(Math.max(0, 1 - u));
+			ray.origin.set(record.position);
+			ray.direction.set(tangent).mul(a).addMultiple(b, bitangent).addMultiple(c, n);
+			ray.makeOffsetRay();
+
+			// shadeRay leaves the record as it is if the ray hits nothing
+			hit.t = Double.POSITIVE_INFINITY;
+			RayTracer.shadeRay(radiance, scene, ray, depth + 1, context);
+			record.irradiance.add(radiance);
+			inverseDistanceSum += 1 / hit.t;
+		}
+		context.gathering = gathering;
+		gatherRays.add(strata);
+
+		// With rays distributed by cosine, the irradiance is pi times their mean radiance
+		record.irradiance.mul(Math.PI / strata);
+		record.harmonicDistance = inverseDistanceSum > 0 ? strata / inverseDistanceSum : Double.POSITIVE_INFINITY;
+	}
+}
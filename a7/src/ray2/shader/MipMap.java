@@ -0,0 +1,212 @@
+package ray2.shader;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.imageio.ImageIO;
+
+import egl.math.Colord;
+
+/**
+ * A texture image converted for fast lookups: the pixels of each level are
+ * packed into one float array, red, green and blue in scanline order from the
+ * top row down, and every level after the first is half the size of the one
+ * before, each texel the average of four texels of the level above, down to a
+ * single texel. The image file is read and converted once; textures that use
+ * the same file share one MipMap through get.
+ *
+ * Texel (x, y) of the full image is centered on texture coordinates
+ * (x / width, 1 - y / height), as RepeatTexture and ClampTexture have always
+ * placed them. A texel of level l averages 2^l by 2^l texels of the full
+ * image, so it is centered on the middle of those instead, at
+ * ((x + s) / width, 1 - (y + s) / height) with s = (1 - 2^-l) / 2 and the
+ * width and height of level l.
+ */
+public class MipMap {
+
+	/** The filters lookup can use. */
+	public static final int NEAREST = 0, BILINEAR = 1, TRILINEAR = 2;
+
+	/** The loaded images, by file and color encoding. */
+	private static final ConcurrentHashMap<String, MipMap> cache = new ConcurrentHashMap<>();
+
+	/** The size and pixels of each level, the full image first. */
+	private final int[] widths, heights;
+	private final float[][] levels;
+
+	/**
+	 * @return the image in the given file, loaded the first time it is asked
+	 *         for. If srgb is set, the 8-bit values are decoded from sRGB to
+	 *         linear; otherwise they are used as they are, scaled to [0, 1].
+	 * @throws IOException if the file cannot be read
+	 */
+	public static MipMap get(String fileName, boolean srgb) throws IOException {
+		String key = new File(fileName).getCanonicalPath() + (srgb ? " srgb" : "");
+		MipMap mipMap = cache.get(key);
+		if (mipMap == null) {
+			BufferedImage image = ImageIO.read(new File(fileName));
+			if (image == null)
+				throw new IOException("Unknown image format: " + fileName);
+			MipMap loaded = new MipMap(image, srgb);
+			mipMap = cache.putIfAbsent(key, loaded);
+			if (mipMap == null)
+				mipMap = loaded;
+		}
+		return mipMap;
+	}
+
+	/**
+	 * Convert image and build its levels.
+	 */
+	public MipMap(BufferedImage image, boolean srgb) {
+		int count = 1;
+		for (int w = image.getWidth(), h = image.getHeight(); w > 1 || h > 1; w = Math.max(1, w / 2), h = Math.max(1, h / 2))
+			count++;
+		widths = new int[count];
+		heights = new int[count];
+		levels = new float[count][];
+
+		float[] decode = new float[256];
+		for (int i = 0; i < 256; i++)
+			decode[i] = (float) (srgb ? srgbToLinear(i / 255.0) : i / 255.0);
+
+		int width = image.getWidth(), height = image.getHeight();
+		float[] top = new float[3 * width * height];
+		int[] row = new int[width];
+		for (int y = 0; y < height; y++) {
+			image.getRGB(0, y, width, 1, row, 0, width);
+			for (int x = 0, i = 3 * y * width; x < width; x++, i += 3) {
+				int rgb = row[x];
+				top[i] = decode[(rgb >> 16) & 0xFF];
+				top[i + 1] = decode[(rgb >> 8) & 0xFF];
+				top[i + 2] = decode[rgb & 0xFF];
+			}
+		}
+		widths[0] = width;
+		heights[0] = height;
+		levels[0] = top;
+
+		for (int l = 1; l < count; l++) {
+			int sw = widths[l - 1], sh = heights[l - 1];
+			int w = Math.max(1, sw / 2), h = Math.max(1, sh / 2);
+			float[] src = levels[l - 1], dst = new float[3 * w * h];
+			for (int y = 0; y < h; y++) {
+				int y0 = Math.min(2 * y, sh - 1), y1 = Math.min(2 * y + 1, sh - 1);
+				for (int x = 0; x < w; x++) {
+					int x0 = Math.min(2 * x, sw - 1), x1 = Math.min(2 * x + 1, sw - 1);
+					int a = 3 * (y0 * sw + x0), b = 3 * (y0 * sw + x1), c = 3 * (y1 * sw + x0), d = 3 * (y1 * sw + x1);
+					for (int k = 0; k < 3; k++)
+						dst[3 * (y * w + x) + k] = 0.25f * (src[a + k] + src[b + k] + src[c + k] + src[d + k]);
+				}
+			}
+			widths[l] = w;
+			heights[l] = h;
+			levels[l] = dst;
+		}
+	}
+
+	private static double srgbToLinear(double c) {
+		return c <= 0.04045 ? c / 12.92 : Math.pow((c + 0.055) / 1.055, 2.4);
+	}
+
+	/**
+	 * @return the number of levels, 1 for a single-texel image
+	 */
+	public int getLevelCount() {
+		return levels.length;
+	}
+
+	/**
+	 * @return the width and height of the full image
+	 */
+	public int getWidth() {
+		return widths[0];
+	}
+
+	public int getHeight() {
+		return heights[0];
+	}
+
+	/**
+	 * Set outColor to the filtered color of the image at (u, v).
+	 *
+	 * NEAREST and BILINEAR read the full image; TRILINEAR blends the two levels
+	 * whose texels are closest in size to footprint, the width of the area
+	 * the lookup stands for in texture coordinates, and reads the full image
+	 * if footprint is 0.
+	 *
+	 * @param repeat if true, the image repeats outside [0, 1]; otherwise the
+	 *        coordinates are clamped to the edge
+	 * @return outColor
+	 */
+	public Colord lookup(double u, double v, double footprint, int filter, boolean repeat, Colord outColor) {
+		if (filter == NEAREST)
+			return nearest(u, v, repeat, outColor);
+		if (filter == BILINEAR || footprint <= 0)
+			return bilinear(u, v, 0, repeat, outColor, 1, false);
+
+		double lod = Math.log(footprint * Math.max(widths[0], heights[0])) / Math.log(2);
+		if (!(lod > 0))
+			return bilinear(u, v, 0, repeat, outColor, 1, false);
+		if (lod >= levels.length - 1)
+			return bilinear(u, v, levels.length - 1, repeat, outColor, 1, false);
+		int level = (int) lod;
+		double t = lod - level;
+		bilinear(u, v, level, repeat, outColor, 1 - t, false);
+		return bilinear(u, v, level + 1, repeat, outColor, t, true);
+	}
+
+	/**
+	 * The texel of the full image nearest to (u, v).
+	 */
+	private Colord nearest(double u, double v, boolean repeat, Colord outColor) {
+		int w = widths[0], h = heights[0];
+		int x = wrap((int) (u * w + 0.5), w, repeat);
+		int y = wrap((int) ((1.0 - v) * h + 0.5), h, repeat);
+		float[] p = levels[0];
+		int i = 3 * (y * w + x);
+		outColor.set(p[i], p[i + 1], p[i + 2]);
+		return outColor;
+	}
+
+	/**
+	 * Interpolate the four texels of the given level around (u, v), and set
+	 * outColor to the result times weight, or add that to it if add is set.
+	 */
+	private Colord bilinear(double u, double v, int level, boolean repeat, Colord outColor, double weight, boolean add) {
+		int w = widths[level], h = heights[level];
+		double shift = (1 - 1.0 / (1 << level)) / 2;
+		double fx = u * w - shift, fy = (1.0 - v) * h - shift;
+		double floorX = Math.floor(fx), floorY = Math.floor(fy);
+		double tx = fx - floorX, ty = fy - floorY;
+		int x0 = wrap((int) floorX, w, repeat), x1 = wrap((int) floorX + 1, w, repeat);
+		int y0 = wrap((int) floorY, h, repeat), y1 = wrap((int) floorY + 1, h, repeat);
+
+		float[] p = levels[level];
+		int a = 3 * (y0 * w + x0), b = 3 * (y0 * w + x1), c = 3 * (y1 * w + x0), d = 3 * (y1 * w + x1);
+		double wa = (1 - tx) * (1 - ty) * weight, wb = tx * (1 - ty) * weight;
+		double wc = (1 - tx) * ty * weight, wd = tx * ty * weight;
+		double r = wa * p[a] + wb * p[b] + wc * p[c] + wd * p[d];
+		double g = wa * p[a + 1] + wb * p[b + 1] + wc * p[c + 1] + wd * p[d + 1];
+		double bl = wa * p[a + 2] + wb * p[b + 2] + wc * p[c + 2] + wd * p[d + 2];
+		if (add)
+			outColor.add(r, g, bl);
+		else
+			outColor.set(r, g, bl);
+		return outColor;
+	}
+
+	/**
+	 * @return texel index i of a row or column of the given size, repeated or
+	 *         clamped
+	 */
+	private static int wrap(int i, int size, boolean repeat) {
+		if (repeat) {
+			i %= size;
+			return i < 0 ? i + size : i;
+		}
+		return Math.max(0, Math.min(size - 1, i));
+	}
+}
@@ -29,10 +29,12 @@ public class Phong extends BRDFShader {
 	protected void evalBRDF(Vector3d L, Vector3d V, 
 			Vector3d N, Colord kD, Colord outColor) {
 		double NdotL = N.dot(L);
-		Vector3d halfVec = new Vector3d();
-		halfVec.set(L).add(V).normalize();
+		// The half vector, without allocating one
+		double hx = L.x + V.x, hy = L.y + V.y, hz = L.z + V.z;
+		double hInv = 1 / Math.sqrt(hx * hx + hy * hy + hz * hz);
+		hx *= hInv; hy *= hInv; hz *= hInv;
 		
-		double halfDotNormal = Math.max(0.0, halfVec.dot(N));
+		double halfDotNormal = Math.max(0.0, hx * N.x + hy * N.y + hz * N.z);
 		double factor = Math.pow(halfDotNormal, exponent) / NdotL;
 		
 		outColor.set(kD).addMultiple(factor, specularColor);
@@ -3,7 +3,11 @@ package ray2.shader;
 import ray2.IntersectionRecord;
 import ray2.light.LightSamplingRecord;
 import ray2.Ray;
+import ray2.RayQueue;
+import ray2.RayTracer;
 import ray2.Scene;
+import ray2.ShadingContext;
+import ray2.sampler.Sampler;
 import egl.math.Colord;
 import egl.math.Vector3d;
 
@@ -25,22 +29,143 @@ public abstract class Shader {
 	
 	/**	
 	 * Calculate the intensity (color) for this material at the intersection described in
-	 * the record contained in workspace.
+	 * the record contained in workspace. Temporary objects should come from
+	 * context.frame(depth) rather than be allocated; rays traced from here go
+	 * to RayTracer.shadeRay at depth + 1 with the same context.
 	 * 	 
 	 * @param outIntensity The color returned towards the source of the incoming ray.
 	 * @param scene The scene in which the surface exists.
 	 * @param ray The ray which intersected the surface.
 	 * @param record The intersection record of where the ray intersected the surface.
 	 * @param depth The recursion depth.
+	 * @param context The scratch space of the calling thread.
 	 */
 	public abstract void shade(Colord outIntensity, Scene scene, Ray ray, 
-			IntersectionRecord record, int depth);
+			IntersectionRecord record, int depth, ShadingContext context);
 	
 	/**
-	* Initialization method
+	 * The wavefront form of shade, used by WavefrontRenderer. Instead of
+	 * tracing rays, the shader adds every ray it would pass to
+	 * RayTracer.shadeRay to rays, at depth + 1, and every light sample it would
+	 * test with isShadowed to shadowRays, with the contribution it would add if
+	 * the light is visible. The weights of both are relative to weight, the
+	 * factor of this hit's color in the pixel. Color that the shader computes
+	 * directly is added to outColor, already multiplied by weight.
+	 *
+	 * The default calls shade, which traces its rays recursively.
+	 *
+	 * @param outColor Weighted color to add to the pixel.
+	 * @param scene The scene in which the surface exists.
+	 * @param ray The ray which intersected the surface.
+	 * @param record The intersection record of where the ray intersected the surface.
+	 * @param depth The recursion depth.
+	 * @param weight The factor of this hit's color in the pixel.
+	 * @param pixel The pixel that queued rays contribute to.
+	 * @param rays The queue of rays to trace in the next wave.
+	 * @param shadowRays The queue of shadow rays.
+	 * @param context The scratch space of the calling thread.
+	 */
+	public void shadeDeferred(Colord outColor, Scene scene, Ray ray, IntersectionRecord record, int depth,
+			Colord weight, int pixel, RayQueue rays, RayQueue shadowRays, ShadingContext context) {
+		ShadingContext.Frame frame = context.frame(depth);
+		frame.throughput = Math.max(weight.x, Math.max(weight.y, weight.z));
+		Colord color = frame.deferredColor;
+		shade(color, scene, ray, record, depth, context);
+		outColor.add(color.mul(weight.x, weight.y, weight.z));
+	}
+
+	/**
+	 * Decide whether to follow a branch that would carry the given
+	 * throughput. Branches at or above the scene's rouletteThreshold are
+	 * always followed; weaker ones are followed with probability
+	 * throughput / rouletteThreshold, and their color is scaled by the
+	 * inverse of that probability. The decision draws on the scene's sampler,
+	 * so a pixel always makes the same decisions.
+	 *
+	 * @return the factor to scale the branch's color by, or 0 to drop it
+	 */
+	protected static double roulette(Scene scene, double throughput, ShadingContext context) {
+		double threshold = scene.getRouletteThreshold();
+		if (throughput >= threshold)
+			return 1;
+		if (throughput <= 0)
+			return 0;
+		double p = throughput / threshold;
+		return context.sampler(scene).next1D() < p ? 1 / p : 0;
+	}
+
+	/**
+	 * @return the sampler dimension that branch number branch of a hit starts
+	 *         drawing its values from, when the hit's own values end at
+	 *         dimension. The first branch goes on from there; the others
+	 *         start at dimensions hashed from both, far above those used in
+	 *         sequence. The branches of a hit thus draw values of their own,
+	 *         and the same ones whether they are traced one after the other
+	 *         by shadeRay or wave by wave by WavefrontRenderer.
+	 */
+	protected static int branchDimension(int dimension, int branch) {
+		if (branch == 0)
+			return dimension;
+		int h = dimension * 0x9e3779b1 + branch * 0x85ebca6b;
+		h ^= h >>> 16;
+		h *= 0x7feb352d;
+		h ^= h >>> 15;
+		// In [2^29, 2^30), which leaves room to count up without wrapping
+		return (h & 0x1fffffff) | 0x20000000;
+	}
+
+	/**
+	 * Trace a ray spawned while shading at depth whose color counts scale
+	 * times towards that of the ray being shaded, and add the scaled color to
+	 * outColor. The branch is subject to roulette.
+	 *
+	 * @param outColor The color to add to.
+	 * @param branchColor Scratch space for the color of the branch.
+	 * @param scene The scene.
+	 * @param ray The spawned ray.
+	 * @param scale The weight of the branch.
+	 * @param depth The depth of the hit that spawned the ray.
+	 * @param dimension The sampler dimension the branch starts from; see branchDimension.
+	 * @param context The scratch space of the calling thread.
+	 */
+	protected static void traceBranch(Colord outColor, Colord branchColor, Scene scene, Ray ray, double scale,
+			int depth, int dimension, ShadingContext context) {
+		context.sampler(scene).setDimension(dimension);
+		double throughput = context.frame(depth).throughput * scale;
+		double factor = roulette(scene, throughput, context);
+		if (factor == 0)
+			return;
+		context.frame(depth + 1).throughput = throughput * factor;
+		RayTracer.shadeRay(branchColor, scene, ray, depth + 1, context);
+		outColor.add(branchColor.mul(scale * factor));
+	}
+
+	/**
+	 * The wavefront form of traceBranch: queue ray at the given depth with
+	 * weight scaled by scale, subject to roulette. The throughput of the
+	 * branch is its largest weight component. The ray's shading goes on
+	 * from dimension, after any value roulette draws, and its path goes on
+	 * from the hit shaded at depth - 1.
+	 */
+	protected static void queueBranch(RayQueue rays, Scene scene, Ray ray, Colord weight, double scale,
+			int pixel, int depth, int dimension, ShadingContext context) {
+		Sampler sampler = context.sampler(scene);
+		sampler.setDimension(dimension);
+		double factor = roulette(scene, Math.max(weight.x, Math.max(weight.y, weight.z)) * scale, context);
+		if (factor != 0) {
+			int queued = rays.size();
+			rays.add(ray, weight, scale * factor, pixel, depth);
+			rays.setDimension(queued, sampler.getDimension());
+			rays.setPathLength(queued, context.frame(depth - 1).pathLength);
+		}
+	}
+
+	/**
+	* Initialization method: load the texture, if there is one
 	*/
 	public void init() {
-		// do nothing
+		if (texture != null)
+			texture.init();
 	}
 
 	/**
@@ -57,6 +182,16 @@ public abstract class Shader {
 	 * false otherwise.
 	 */
 	protected boolean isShadowed(Scene scene, LightSamplingRecord lRec, IntersectionRecord iRec, Ray shadowRay) {		
+		setShadowRay(lRec, iRec, shadowRay);
+		scene.countShadowRays(1);
+		return scene.getAnyIntersection(shadowRay);
+	}
+
+	/**
+	 * Set shadowRay to the segment from the intersection point to the light
+	 * sample, as tested by isShadowed.
+	 */
+	protected void setShadowRay(LightSamplingRecord lRec, IntersectionRecord iRec, Ray shadowRay) {
 		// Setup the shadow ray to start at surface and end at light
 		shadowRay.origin.set(iRec.location);
 		shadowRay.direction.set(lRec.direction);
@@ -64,8 +199,6 @@ public abstract class Shader {
 		// Set the ray to end at the light
 		shadowRay.direction.normalize();
 		shadowRay.makeOffsetSegment(lRec.distance);
-		
-		return scene.getAnyIntersection(shadowRay);
 	}
 	
 	protected double fresnel(Vector3d normal, Vector3d outgoing, double refractiveIndex) {
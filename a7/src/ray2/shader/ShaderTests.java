@@ -2,16 +2,23 @@ package ray2.shader;
 
 import static org.junit.Assert.*;
 
+import java.awt.image.BufferedImage;
+
 import org.junit.Test;
 
+import ray2.Image;
 import ray2.IntersectionRecord;
 import ray2.light.PointLight;
+import ray2.light.RectangleLight;
 import ray2.Ray;
+import ray2.RayTracer;
 import ray2.Scene;
+import ray2.WavefrontRenderer;
 import ray2.accel.AccelStruct;
 import ray2.accel.NaiveAccelStruct;
 import ray2.camera.Camera;
 import ray2.camera.PerspectiveCamera;
+import ray2.surface.Box;
 import ray2.surface.Sphere;
 import ray2.surface.Surface;
 import egl.math.Colord;
@@ -65,6 +72,85 @@ public class ShaderTests {
                 + "Got: " + result, doublesEqual(0.44444444, result));
     }
     
+    /**
+     * Render a glass ball in a room lit by a rectangle light with both engines
+     * and check that the pixels agree. The ball splits rays into reflected and
+     * refracted branches that both reach diffuse walls and sample the light,
+     * so the branches must draw their sample values in the same way in
+     * WavefrontRenderer as in RayTracer.renderBlock.
+     */
+    @Test
+    public void testTrilinearMatchesFullImageOnRamp() {
+        // A ramp across the image, so every level averages to the same ramp
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 256; ++y)
+            for (int x = 0; x < 256; ++x)
+                image.setRGB(x, y, x * 0x010101);
+        MipMap mipMap = new MipMap(image, false);
+        
+        Colord expected = new Colord(), actual = new Colord();
+        for (double u : new double[] { 0.5, 0.3, 0.71 }) {
+            mipMap.lookup(u, 0.5, 0, MipMap.BILINEAR, false, expected);
+            for (int texels = 2; texels <= 32; ++texels) {
+                mipMap.lookup(u, 0.5, texels / 256.0, MipMap.TRILINEAR, false, actual);
+                assertEquals("Trilinear lookup at u = " + u + " over " + texels + " texels",
+                        expected.x, actual.x, 1e-6);
+            }
+        }
+    }
+    
+    @Test
+    public void testWavefrontMatchesRecursiveWithGlass() {
+        Scene scene = new Scene();
+        PerspectiveCamera camera = new PerspectiveCamera();
+        camera.setViewPoint(new Vector3d(0, -3, 1));
+        camera.setViewDir(new Vector3d(0, 1, 0));
+        camera.setViewUp(new Vector3d(0, 0, 1));
+        camera.setprojDistance(1);
+        camera.setViewWidth(1);
+        camera.setViewHeight(1);
+        scene.setCamera(camera);
+        scene.setImage(new Image(24, 24));
+        scene.setSamples(4);
+
+        Lambertian wall = new Lambertian();
+        wall.setDiffuseColor(new Colord(0.5, 0.5, 0.5));
+        Glass glass = new Glass();
+        glass.setRefractiveIndex(1.5);
+        double[][] walls = { { -4, -5, -1, 4, 4, 0 }, { -4, 3, -1, 4, 4, 4 }, { -4, -5, -1, 4, -4, 4 },
+                { -5, -5, -1, -4, 4, 4 }, { 4, -5, -1, 5, 4, 4 } };
+        for (double[] b : walls) {
+            Box box = new Box();
+            box.setMinPt(new Vector3d(b[0], b[1], b[2]));
+            box.setMaxPt(new Vector3d(b[3], b[4], b[5]));
+            box.setShader(wall);
+            scene.addSurface(box);
+        }
+        Sphere ball = new Sphere();
+        ball.setCenter(new Vector3d(0, 0, 1));
+        ball.setRadius(0.8);
+        ball.setShader(glass);
+        scene.addSurface(ball);
+
+        RectangleLight light = new RectangleLight();
+        light.setPosition(new Vector3d(0, 0, 3.9));
+        light.setNormalDir(new Vector3d(0, 0, -1));
+        light.setWidth(2);
+        light.setHeight(2);
+        light.setIntensity(new Colord(5, 5, 5));
+        scene.addLight(light);
+        scene.init();
+
+        Image recursive = new Image(24, 24), wavefront = new Image(24, 24);
+        RayTracer.renderBlock(scene, recursive, 0, 0, 24, 24);
+        new WavefrontRenderer().renderBlock(scene, wavefront, 0, 0, 24, 24);
+        double[] a = new double[3 * 24 * 24], b = new double[3 * 24 * 24];
+        recursive.getPixels(0, 0, 24, 24, a, 0);
+        wavefront.getPixels(0, 0, 24, 24, b, 0);
+        for (int i = 0; i < a.length; i++)
+            assertEquals("Component " + i, a[i], b[i], 1e-9 * Math.max(1, Math.abs(a[i])));
+    }
+
     // Simple element-wise comparison.
     private boolean colorsEqual(Colord v0, Colord v1) {
         double epsilon = 1e-4;
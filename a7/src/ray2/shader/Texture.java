@@ -1,40 +1,76 @@
 package ray2.shader;
 
-import java.awt.image.BufferedImage;
-import java.io.File;
-
-import javax.imageio.ImageIO;
-
 import ray2.RayTracer;
 import egl.math.Colord;
 import egl.math.Vector2d;
 
 /**
- * This class represents a simple 2D texture implementation for a shader. It stores and
- * reads from a BufferedImage which is read in from an arbitrary image file on disk.
+ * This class represents a simple 2D texture implementation for a shader. The
+ * image is read from an arbitrary image file on disk when the scene is
+ * initialized and converted to a MipMap, which textures of the same file share.
+ *
+ * The filter decides how lookups read the image: "nearest" (the default)
+ * takes the closest pixel, "bilinear" blends the four closest, and
+ * "trilinear" blends the pixels of the two mip levels that best match the
+ * area the lookup covers, which keeps distant and small textured surfaces
+ * from aliasing.
  * 
  * @author eschweickart
  *
  */
 public abstract class Texture {
-	/** The image used when looking up UV coordinates. */
-	protected BufferedImage image;
-	/** Return the BufferedImage used for lookup. */
-	public BufferedImage getImage() { return image; }
-	/** Set the BufferedImage from a given file on disk. */
+	/** The file the image is read from, resolved against the scene workspace. */
+	protected String filename;
+	/** Set the image to the one in a given file on disk. */
 	public void setImage(String filename) {
-		System.out.println("Loading: " + RayTracer.sceneWorkspace.resolve(filename));
+		this.filename = RayTracer.sceneWorkspace.resolve(filename);
+		mipMap = null;
+	}
+
+	/** The image used when looking up UV coordinates, once it is loaded. */
+	protected MipMap mipMap;
+	public MipMap getMipMap() { return mipMap; }
+
+	/** How lookups are filtered: MipMap.NEAREST, BILINEAR or TRILINEAR. */
+	protected int filter = MipMap.NEAREST;
+	public void setFilter(String filter) {
+		if (filter.equalsIgnoreCase("nearest"))
+			this.filter = MipMap.NEAREST;
+		else if (filter.equalsIgnoreCase("bilinear"))
+			this.filter = MipMap.BILINEAR;
+		else if (filter.equalsIgnoreCase("trilinear"))
+			this.filter = MipMap.TRILINEAR;
+		else
+			System.err.println("Unknown texture filter: " + filter);
+	}
+
+	/** If set, the image is decoded from sRGB to linear values when it is loaded. */
+	protected boolean srgb = false;
+	public void setSrgb(boolean srgb) { this.srgb = srgb; mipMap = null; }
+	
+	/** Default constructor. Creates an empty Texture object. */
+	public Texture() {	}
+
+	/**
+	 * Load the image, unless it is loaded already.
+	 */
+	public void init() {
+		if (mipMap != null || filename == null)
+			return;
+		System.out.println("Loading: " + filename);
 		try {
-			File f = new File(RayTracer.sceneWorkspace.resolve(filename));
-			image = ImageIO.read(f);
+			mipMap = MipMap.get(filename, srgb);
 		} catch (Exception e) {
 			System.err.println("Error loading texture: " + e);
 			System.exit(1);
 		}
 	}
-	
-	/** Default constructor. Creates an empty Texture object. */
-	public Texture() {	}
+
+	/**
+	 * @return true if the image repeats outside the [0.0, 1.0] range, false
+	 *         if coordinates there are clamped to the image boundary
+	 */
+	protected abstract boolean isRepeating();
 	
 	/**
 	 * Get the texture color at a given UV coordinate.
@@ -42,5 +78,36 @@ public abstract class Texture {
 	 * @param texCoord The UV texture coordinates.
 	 * @return The color at the given point.
 	 */
-	public abstract Colord getTexColor(Vector2d texCoord); 
+	public Colord getTexColor(Vector2d texCoord) {
+		return getTexColor(texCoord, 0, new Colord());
+	}
+
+	/**
+	 * Get the texture color at a given UV coordinate without allocating.
+	 * 
+	 * @param texCoord The UV texture coordinates.
+	 * @param outColor Set to the color at the given point.
+	 * @return outColor
+	 */
+	public Colord getTexColor(Vector2d texCoord, Colord outColor) {
+		return getTexColor(texCoord, 0, outColor);
+	}
+
+	/**
+	 * Get the texture color over an area around a given UV coordinate without
+	 * allocating.
+	 * 
+	 * @param texCoord The UV texture coordinates.
+	 * @param footprint The width of the area in UV units, or 0 for a point.
+	 * @param outColor Set to the color at the given point.
+	 * @return outColor
+	 */
+	public Colord getTexColor(Vector2d texCoord, double footprint, Colord outColor) {
+		if (mipMap == null) {
+			System.err.println("Warning: Texture uninitialized!");
+			outColor.setZero();
+			return outColor;
+		}
+		return mipMap.lookup(texCoord.x, texCoord.y, footprint, filter, isRepeating(), outColor);
+	}
 }
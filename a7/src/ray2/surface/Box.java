@@ -138,6 +138,9 @@ public class Box extends Surface {
 
 		this.mesh = new Mesh(box);
 
+		// Twelve triangles of its own are not worth a separate object-space BVH
+		this.mesh.setInstanced(false);
+
 		// set transformations and absorptioins
 		this.mesh.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
 
@@ -46,9 +46,18 @@ public class Cylinder extends Surface {
 	 * @return true if the surface intersects the ray
 	 */
 	  public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		    if (!hit(outRecord, rayIn))
+		      return false;
+		    if (outRecord != null)
+		      fillRecord(outRecord, rayIn);
+		    return true;
+		  }
 
-		  	//transform the resulting intersection point and normal to world space
-		  
+	/**
+	 * Find t of the hit, and in outRecord.primitive whether it is on a cap (1)
+	 * or on the side (0), without computing the location or normal.
+	 */
+	  public boolean hit(IntersectionRecord outRecord, Ray rayIn) {
 		    Ray ray = untransformRay(rayIn);
 
 		    // Rename the common vectors so I don't have to type so much
@@ -109,47 +118,55 @@ public class Cylinder extends Surface {
 		      t = t2;
 		    }
 
-		    Vector3d thit1 = new Vector3d(0); 
-		    ray.evaluate(thit1, tMin);
-		    Vector3d thit2 = new Vector3d(0); 
-		    ray.evaluate(thit2, tMax);
-
-		    double dx1 = thit1.x-c.x;  
-		    double dy1 = thit1.y-c.y; 
-		    double dx2 = thit2.x-c.x;  
-		    double dy2 = thit2.y-c.y; 
+		    // The points at tMin and tMax, relative to the axis
+		    double dx1 = (o.x + tMin * d.x)-c.x;  
+		    double dy1 = (o.y + tMin * d.y)-c.y; 
+		    double dx2 = (o.x + tMax * d.x)-c.x;  
+		    double dy2 = (o.y + tMax * d.y)-c.y; 
 
 		    if ((t < tMin || t > tMax) && dx1 * dx1 + dy1 * dy1 > rr && dx2 * dx2 + dy2 * dy2 > rr) {
 		      return false;
 		    }
 
-		    // There was an intersection, fill out the intersection record
-		    if (outRecord != null) {
-		      double tside =Math.min( td1, td2);
-
-		      if (t <tside) {
-		        outRecord.t = tside;
-		        ray.evaluate(outRecord.location, tside);
-		        outRecord.normal.set(0, 0, 1);
-		      }
-		      else {
-		        outRecord.t = t;
-		        ray.evaluate(outRecord.location, t);        
-		        outRecord.normal.set(outRecord.location.x, outRecord.location.y, 0).sub(c.x, c.y, 0);
-		      }
-
-		      if (outRecord.normal.dot(ray.direction) > 0)
-		        outRecord.normal.negate();
+		    double tside =Math.min( td1, td2);
+		    boolean cap = t < tside;
+		    if (cap)
+		      t = tside;
 
-		      outRecord.surface = this;
+		    // The side root may be out of range when a cap is hit; callers only keep hits before ray.end
+		    if (!(t < ray.end))
+		      return false;
 
-		      tMat.mulPos(outRecord.location);
-		      tMatTInv.mulDir(outRecord.normal).normalize();
+		    if (outRecord != null) {
+		      outRecord.t = t;
+		      outRecord.primitive = cap ? 1 : 0;
+		      outRecord.surface = this;
 		    }
 
 		    return true;
 		  }
 
+	  public void fillRecord(IntersectionRecord outRecord, Ray rayIn) {
+		    //transform the resulting intersection point and normal to world space
+		    Ray ray = untransformRay(rayIn);
+		    Vector3d c = center;
+
+		    ray.evaluate(outRecord.location, outRecord.t);
+		    if (outRecord.primitive == 1) {
+		      outRecord.normal.set(0, 0, 1);
+		    }
+		    else {
+		      outRecord.normal.set(outRecord.location.x, outRecord.location.y, 0).sub(c.x, c.y, 0);
+		    }
+
+		    if (outRecord.normal.dot(ray.direction) > 0)
+		      outRecord.normal.negate();
+
+		    tMat.mulPos(outRecord.location);
+		    tMatTInv.mulDir(outRecord.normal).normalize();
+		    outRecord.texScale = 0;
+		  }
+
 	public void computeBoundingBox() {
 		// TODO#A7: Compute the bounding box and store the result in
 		// averagePosition, minBound, and maxBound.
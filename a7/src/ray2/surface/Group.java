@@ -16,8 +16,9 @@ public class Group extends Surface {
   /** The transformation matrix associated with this group. */
   private Matrix4d transformMat;
   
-  /** A shared temporary matrix */
-  static Matrix4d tmp = new Matrix4d();
+  /** A temporary matrix used while composing transformMat; kept per group so that
+   *  scenes can be parsed and set up concurrently. */
+  private final Matrix4d tmp = new Matrix4d();
   
   public Group() {
     transformMat = new Matrix4d();
@@ -1,21 +1,26 @@
 package ray2.surface;
 
 import java.io.IOException;
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
+import java.util.HashMap;
 
-import ray2.mesh.OBJFace;
 import ray2.mesh.OBJMesh;
 import ray2.mesh.OBJMesh.OBJFileFormatException;
 import ray2.IntersectionRecord;
 import ray2.Ray;
 import ray2.RayTracer;
+import ray2.shader.Shader;
+import egl.math.Matrix4d;
 
 /**
  * An interface between a MeshData and the ray tracer. When the Scene calls
- * appendRenderableSurfaces on this object, it appends all Triangles on the
- * mesh onto the given ArrayList. This way, the Scene has direct access to
- * all intersectable Surfaces in the scene.
- * 
+ * appendRenderableSurfaces on this object, it appends either a single
+ * MeshInstance, which intersects an object-space TriangleMesh shared by every
+ * Mesh of the same data, or (if instancing is turned off) a TriangleMesh of
+ * its own packed in world space onto the given ArrayList. This way, the Scene
+ * has direct access to all intersectable Surfaces in the scene.
+ *
  * @author eschweic
  *
  */
@@ -24,6 +29,24 @@ public class Mesh extends Surface {
 	/** The underlying data of this Mesh. */
 	private OBJMesh mesh = null;
 
+	/** The object-space triangles of mesh; shared by Meshes of the same file. */
+	private ObjectSpace objectSpace = null;
+
+	/**
+	 * If true, this mesh is rendered as a MeshInstance of its object-space
+	 * triangles. If false, its triangles are transformed to world space and
+	 * packed into a TriangleMesh of their own.
+	 */
+	protected boolean instanced = true;
+	public void setInstanced(boolean instanced) { this.instanced = instanced; }
+
+	/**
+	 * The object spaces of the files loaded so far, by path, so that a file
+	 * placed many times is loaded and built only once. An entry lives as long as
+	 * some Mesh refers to it.
+	 */
+	private static final HashMap<String, WeakReference<ObjectSpace>> loaded = new HashMap<String, WeakReference<ObjectSpace>>();
+
 	/**
 	 * Default constructor; creates an empty mesh.
 	 */
@@ -35,34 +58,64 @@ public class Mesh extends Surface {
 	 */
 	public Mesh(OBJMesh newMesh) {
 		mesh = newMesh;
+		objectSpace = new ObjectSpace(newMesh);
 	}
-	
+
 	/**
 	 * Set the data in this mesh to the data of a mesh on disk.
 	 * @param fileName the name of a .obj file on disk.
 	 */
 	public void setData(String fileName) throws OBJFileFormatException, IOException {
-		System.out.println("Loading " + RayTracer.sceneWorkspace.resolve(fileName));
-		this.mesh = new OBJMesh(RayTracer.sceneWorkspace.resolve(fileName));
+		String path = RayTracer.sceneWorkspace.resolve(fileName);
+		synchronized (loaded) {
+			WeakReference<ObjectSpace> ref = loaded.get(path);
+			objectSpace = ref != null ? ref.get() : null;
+			if (objectSpace == null) {
+				System.out.println("Loading " + path);
+				objectSpace = new ObjectSpace(new OBJMesh(path));
+				loaded.put(path, new WeakReference<ObjectSpace>(objectSpace));
+			}
+		}
+		this.mesh = objectSpace.mesh;
 	}
-	
+
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {	return false; }
 	public void computeBoundingBox() {	}
 
-	
-	public void appendRenderableSurfaces (ArrayList<Surface> in) {
 
-		for (OBJFace f : mesh.faces) {
-			Triangle t = new Triangle(this,f,shader);
-			t.setShader(this.shader);
-			t.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
-			
-			t.computeBoundingBox();
-			in.add(t);
+	public void appendRenderableSurfaces (ArrayList<Surface> in) {
+		if (instanced) {
+			MeshInstance instance = objectSpace.createInstance(shader);
+			instance.setTransformation(this.tMat, this.tMatInv, this.tMatTInv);
+			in.add(instance);
+			return;
 		}
-	} 
-	
+
+		in.add(new TriangleMesh(mesh, this.tMat, this.tMatTInv, shader));
+	}
+
 	public OBJMesh getMesh() {
 		return this.mesh;
 	}
+
+	/**
+	 * One OBJMesh packed in object space, which happens the first time the
+	 * mesh is instanced.
+	 */
+	private static class ObjectSpace {
+		final OBJMesh mesh;
+		private TriangleMesh packed;
+
+		ObjectSpace(OBJMesh mesh) {
+			this.mesh = mesh;
+		}
+
+		synchronized MeshInstance createInstance(Shader shader) {
+			if (packed == null) {
+				Matrix4d identity = new Matrix4d();
+				packed = new TriangleMesh(mesh, identity, identity, shader);
+			}
+			return new MeshInstance(packed, shader);
+		}
+	}
 }
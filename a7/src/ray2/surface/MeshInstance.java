@@ -0,0 +1,113 @@
+package ray2.surface;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.shader.Shader;
+import egl.math.Vector3d;
+
+/**
+ * One placement of a Mesh in the scene. It stands in for all of the mesh's
+ * triangles in the scene's acceleration structure: a ray that reaches it is
+ * transformed into object space once with tMatInv and intersected with an
+ * object-space TriangleMesh that is shared by every instance of the same mesh,
+ * and the hit is transformed back to world space.
+ */
+public class MeshInstance extends Surface {
+
+	/** The mesh's triangles, packed in object space. */
+	private final TriangleMesh mesh;
+
+	/** The object-space ray of each thread, so intersection does not allocate. */
+	private static final ThreadLocal<Ray> objectRay = new ThreadLocal<Ray>() {
+		@Override
+		protected Ray initialValue() {
+			return new Ray();
+		}
+	};
+
+	/**
+	 * @param mesh the triangles of the mesh in object space
+	 * @param shader the shader of the hits on this instance
+	 */
+	public MeshInstance(TriangleMesh mesh, Shader shader) {
+		this.mesh = mesh;
+		setShader(shader);
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param rayIn the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		if (!hit(outRecord, rayIn))
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, rayIn);
+		return true;
+	}
+
+	/**
+	 * Find the hit in object space, recording the triangle and its
+	 * barycentric coordinates for fillRecord.
+	 */
+	public boolean hit(IntersectionRecord outRecord, Ray rayIn) {
+		if (!mesh.hit(outRecord, toObjectSpace(rayIn)))
+			return false;
+		if (outRecord != null)
+			outRecord.surface = this;
+		return true;
+	}
+
+	public void fillRecord(IntersectionRecord outRecord, Ray rayIn) {
+		mesh.fillRecord(outRecord, toObjectSpace(rayIn));
+		outRecord.texScale /= tMatScale;
+		tMat.mulPos(outRecord.location);
+		tMatTInv.mulDir(outRecord.normal);
+		outRecord.normal.normalize();
+	}
+
+	/**
+	 * @return this thread's object-space copy of rayIn. The direction is not
+	 *         normalized, so t is the same in both spaces.
+	 */
+	private Ray toObjectSpace(Ray rayIn) {
+		Ray ray = objectRay.get();
+		ray.set(rayIn);
+		tMatInv.mulPos(ray.origin);
+		tMatInv.mulDir(ray.direction);
+		ray.updateInverseDirection();
+		return ray;
+	}
+
+	/**
+	 * Bound the eight transformed corners of the object-space box.
+	 */
+	public void computeBoundingBox() {
+		minBound = new Vector3d(Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY);
+		maxBound = new Vector3d(Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY);
+		Vector3d objectMin = mesh.getMinBound(), objectMax = mesh.getMaxBound();
+		Vector3d corner = new Vector3d();
+		for (int i = 0; i < 8; i++) {
+			corner.set((i & 1) == 0 ? objectMin.x : objectMax.x,
+					(i & 2) == 0 ? objectMin.y : objectMax.y,
+					(i & 4) == 0 ? objectMin.z : objectMax.z);
+			tMat.mulPos(corner);
+			minBound.set(Math.min(minBound.x, corner.x), Math.min(minBound.y, corner.y), Math.min(minBound.z, corner.z));
+			maxBound.set(Math.max(maxBound.x, corner.x), Math.max(maxBound.y, corner.y), Math.max(maxBound.z, corner.z));
+		}
+		averagePosition = new Vector3d(minBound).add(maxBound).div(2);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "MeshInstance ";
+	}
+}
@@ -46,9 +46,18 @@ public class Sphere extends Surface {
 	 * @return true if the surface intersects the ray
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
-	  	//transform the ray to object space
-	  	//transform the resulting intersection point and normal to world space
+		if (!hit(outRecord, rayIn))
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, rayIn);
+		return true;
+	}
 
+	/**
+	 * Find t for the nearer intersection within the ray's range, without
+	 * computing the location, normal or texture coordinates.
+	 */
+	public boolean hit(IntersectionRecord outRecord, Ray rayIn) {
 		//transform the ray into object space
 		Ray ray = untransformRay(rayIn);
 		
@@ -89,26 +98,31 @@ public class Sphere extends Surface {
 			return false; // Neither intersection was in the ray's half line.
 		}
 
-		// There was an intersection, fill out the intersection record
 		if (outRecord != null) {
 			outRecord.t = t;
-			ray.evaluate(outRecord.location, t);
 			outRecord.surface = this;
-			outRecord.normal.set(outRecord.location).sub(center).normalize();
-			double theta = Math.asin(outRecord.normal.y);
-			double phi = Math.atan2(outRecord.normal.x, outRecord.normal.z);
-			double u = (phi + Math.PI) / (2 * Math.PI);
-			double v = (theta - Math.PI / 2) / Math.PI;
-			outRecord.texCoords.set(u, v);
-			
-			//transform location and normal back to world space
-			tMat.mulPos(outRecord.location);
-			tMatTInv.mulDir(outRecord.normal);
 		}
 
 		return true;
 	}
 
+	public void fillRecord(IntersectionRecord outRecord, Ray rayIn) {
+		Ray ray = untransformRay(rayIn);
+		ray.evaluate(outRecord.location, outRecord.t);
+		outRecord.normal.set(outRecord.location).sub(center).normalize();
+		double theta = Math.asin(outRecord.normal.y);
+		double phi = Math.atan2(outRecord.normal.x, outRecord.normal.z);
+		double u = (phi + Math.PI) / (2 * Math.PI);
+		double v = (theta - Math.PI / 2) / Math.PI;
+		outRecord.texCoords.set(u, v);
+		// v runs pole to pole, half a circumference; u goes around, a whole one
+		outRecord.texScale = 1 / (Math.PI * radius * tMatScale);
+
+		//transform location and normal back to world space
+		tMat.mulPos(outRecord.location);
+		tMatTInv.mulDir(outRecord.normal);
+	}
+
 	public void computeBoundingBox() {
 		// TODO#A7: Compute the bounding box and store the result in
 		// averagePosition, minBound, and maxBound.
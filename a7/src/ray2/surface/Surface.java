@@ -25,6 +25,9 @@ public abstract class Surface {
 	
 	/** The inverse of the transpose of the transformation matrix. */
 	protected Matrix4d tMatTInv;
+
+	/** The factor tMat scales lengths by, on average: the cube root of its determinant. */
+	protected double tMatScale = 1;
 	
 	/** The average position of the surface. Usually calculated by taking the average of 
 	 * all the vertices. This point will be used in AABB tree construction. */
@@ -45,18 +48,29 @@ public abstract class Surface {
 	public Vector3d getMinBound() { return minBound; }
 	public Vector3d getMaxBound() { return maxBound; }	
 	
+	/** The ray untransformRay writes to, one per thread, so intersection does not allocate. */
+	private static final ThreadLocal<Ray> objectRay = new ThreadLocal<Ray>() {
+		@Override
+		protected Ray initialValue() {
+			return new Ray();
+		}
+	};
+
 	// initialization method
 	public void init() {
 		// do nothing
 	}
 
 	/**
-	 * Un-transform rayIn using tMatInv 
+	 * Un-transform rayIn using tMatInv. The result belongs to the calling
+	 * thread and is overwritten by its next call, on any surface.
 	 * @param rayIn Input ray
 	 * @return tMatInv * rayIn
 	 */
 	public Ray untransformRay(Ray rayIn) {
-		Ray ray = new Ray(rayIn.origin, rayIn.direction);
+		Ray ray = objectRay.get();
+		ray.origin.set(rayIn.origin);
+		ray.direction.set(rayIn.direction);
 		ray.start = rayIn.start;
 		ray.end = rayIn.end;
 
@@ -69,6 +83,7 @@ public abstract class Surface {
 		tMat = a;
 		tMatInv = aInv;
 		tMatTInv = aTInv;
+		tMatScale = Math.cbrt(Math.abs(a.determinant()));
 		computeBoundingBox();
 	}
 	
@@ -84,6 +99,36 @@ public abstract class Surface {
 	 */
 	public abstract boolean intersect(IntersectionRecord outRecord, Ray ray);
 
+	/**
+	 * The cheap half of intersect, used while searching for the closest hit.
+	 * If the ray hits this surface between ray.start and ray.end, only t, the
+	 * surface and what fillRecord needs later (u, v, primitive) are recorded,
+	 * and true is returned. If outRecord is null, any hit will do and nothing
+	 * is recorded.
+	 *
+	 * The default just calls intersect, which fills in everything, so
+	 * surfaces that do not split their intersection still work.
+	 *
+	 * @param outRecord the output IntersectionRecord, or null
+	 * @param ray the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean hit(IntersectionRecord outRecord, Ray ray) {
+		return intersect(outRecord != null ? outRecord : new IntersectionRecord(), ray);
+	}
+
+	/**
+	 * Fill in the location, normal and texture coordinates of a record that
+	 * was produced by hit for this ray. It is called once, for the hit that
+	 * ends up being the closest.
+	 *
+	 * @param record the record of the hit
+	 * @param ray the ray that was intersected
+	 */
+	public void fillRecord(IntersectionRecord record, Ray ray) {
+		// hit already filled in everything
+	}
+
 	/**
 	 * Compute the bounding box and store the result in
 	 * averagePosition, minBound, and maxBound.
@@ -5,6 +5,7 @@ import ray2.Ray;
 
 import java.util.ArrayList;
 
+import egl.math.Vector3;
 import egl.math.Vector3d;
 import ray2.shader.Shader;
 import ray2.mesh.OBJFace;
@@ -66,13 +67,23 @@ public class Triangle extends Surface {
 	 * @return true if the surface intersects the ray
 	 */
 	public boolean intersect(IntersectionRecord outRecord, Ray rayIn) {
+		if (!hit(outRecord, rayIn))
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, rayIn);
+		return true;
+	}
 
-	  	//transform the resulting intersection point and normal to world space
-
+	/**
+	 * Find t and the barycentric coordinates (beta, gamma) of the hit, in
+	 * outRecord.u and outRecord.v, without computing the location, normal or
+	 * texture coordinates.
+	 */
+	public boolean hit(IntersectionRecord outRecord, Ray rayIn) {
 		//transform ray into object space
 		Ray ray = untransformRay(rayIn);		
 		
-		Vector3d v0 = new Vector3d(owner.getMesh().getPosition(face,0));
+		Vector3 v0 = owner.getMesh().getPosition(face,0);
 		
 		double g = ray.direction.x;
 		double h = ray.direction.y;
@@ -102,41 +113,48 @@ public class Triangle extends Surface {
 		if (gamma < 0 || gamma + beta > 1)
 			return false;
 
-		// There was an intersection, fill out the intersection record
 		if (outRecord != null) {
 			outRecord.t = t;
-			ray.evaluate(outRecord.location, t);
-			
-			//transform back into world space
-			tMat.mulPos(outRecord.location);		
-			
 			outRecord.surface = this;
-
-			if (norm != null) {
-				outRecord.normal.set(norm);
-			} else {
-				outRecord.normal
-						.setZero()
-						.addMultiple(1 - beta - gamma, owner.getMesh().getNormal(face,0))
-						.addMultiple(beta, owner.getMesh().getNormal(face,1))
-						.addMultiple(gamma, owner.getMesh().getNormal(face,2));
-			}
-			
-			tMatTInv.mulDir(outRecord.normal);
-			
-			outRecord.normal.normalize();
-			if (face.hasUVs()) {
-				outRecord.texCoords.setZero()
-						.addMultiple(1 - beta - gamma, owner.getMesh().getUV(face,0))
-						.addMultiple(beta, owner.getMesh().getUV(face,1))
-						.addMultiple(gamma, owner.getMesh().getUV(face,2));
-			}
+			outRecord.u = beta;
+			outRecord.v = gamma;
 		}
 
 		return true;
 
 	}
 
+	public void fillRecord(IntersectionRecord outRecord, Ray rayIn) {
+		Ray ray = untransformRay(rayIn);
+		double beta = outRecord.u;
+		double gamma = outRecord.v;
+		ray.evaluate(outRecord.location, outRecord.t);
+
+		//transform back into world space
+		tMat.mulPos(outRecord.location);
+
+		if (norm != null) {
+			outRecord.normal.set(norm);
+		} else {
+			outRecord.normal
+					.setZero()
+					.addMultiple(1 - beta - gamma, owner.getMesh().getNormal(face,0))
+					.addMultiple(beta, owner.getMesh().getNormal(face,1))
+					.addMultiple(gamma, owner.getMesh().getNormal(face,2));
+		}
+
+		tMatTInv.mulDir(outRecord.normal);
+
+		outRecord.normal.normalize();
+		if (face.hasUVs()) {
+			outRecord.texCoords.setZero()
+					.addMultiple(1 - beta - gamma, owner.getMesh().getUV(face,0))
+					.addMultiple(beta, owner.getMesh().getUV(face,1))
+					.addMultiple(gamma, owner.getMesh().getUV(face,2));
+		}
+		outRecord.texScale = 0;
+	}
+
 	public void computeBoundingBox() {
 		// TODO#A7: Compute the bounding box and store the result in
 		// averagePosition, minBound, and maxBound.
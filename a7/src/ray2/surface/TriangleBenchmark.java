@@ -0,0 +1,109 @@
+package ray2.surface;
+
+import java.util.Random;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.accel.Bvh;
+import ray2.mesh.OBJMesh;
+import egl.math.Matrix4d;
+import egl.math.Vector3d;
+
+/**
+ * Compares one Triangle object per face with a packed TriangleMesh on a mesh
+ * from disk. It reports the heap retained per triangle by each, the time of a
+ * single ray/triangle hit test (every ray against every triangle, without a BVH),
+ * and the time per ray of a closest-hit query through a BVH.
+ *
+ * Usage: java ray2.surface.TriangleBenchmark [mesh.obj]
+ * The default mesh is data/meshes/bunny10k_norms.obj.
+ */
+public class TriangleBenchmark {
+
+	static final int RAYS = 200;
+	static final int QUERY_RAYS = 200000;
+	static final int ROUNDS = 5;
+
+	public static void main(String[] args) throws Exception {
+		String file = args.length > 0 ? args[0] : "data/meshes/bunny10k_norms.obj";
+		OBJMesh data = new OBJMesh(file);
+		int n = data.faces.size();
+		Matrix4d identity = new Matrix4d();
+		Mesh owner = new Mesh(data);
+
+		long before = usedMemory();
+		Surface[] triangles = new Surface[n];
+		for (int i = 0; i < n; i++) {
+			triangles[i] = new Triangle(owner, data.faces.get(i), null);
+			triangles[i].setTransformation(identity, identity, identity);
+		}
+		long triangleBytes = usedMemory() - before;
+
+		before = usedMemory();
+		TriangleMesh packed = new TriangleMesh(data, identity, identity, null);
+		long packedBytes = usedMemory() - before;
+
+		Bvh bvh = new Bvh();
+		bvh.build(triangles.clone());
+		long bvhBytes = usedMemory() - before - packedBytes;
+
+		System.out.printf("%s: %d triangles%n", file, n);
+		System.out.printf("Triangle objects: %6.1f bytes/triangle (plus %.1f for a Bvh over them)%n",
+				triangleBytes / (double) n, bvhBytes / (double) n);
+		System.out.printf("TriangleMesh:     %6.1f bytes/triangle, including its BVH%n", packedBytes / (double) n);
+
+		Vector3d min = packed.getMinBound(), max = packed.getMaxBound();
+		Random random = new Random(4620);
+		Ray[] rays = new Ray[Math.max(RAYS, QUERY_RAYS)];
+		for (int i = 0; i < rays.length; i++) {
+			Vector3d target = new Vector3d(min.x + random.nextDouble() * (max.x - min.x),
+					min.y + random.nextDouble() * (max.y - min.y), min.z + random.nextDouble() * (max.z - min.z));
+			Vector3d origin = new Vector3d(random.nextGaussian(), random.nextGaussian(), random.nextGaussian())
+					.normalize().mul(3 * max.dist(min)).add(target);
+			rays[i] = new Ray(origin, new Vector3d(target).sub(origin).normalize());
+			rays[i].makeOffsetRay();
+		}
+
+		IntersectionRecord record = new IntersectionRecord();
+		for (int round = 0; round < ROUNDS; round++) {
+			long t0 = System.nanoTime();
+			int hitsTriangle = 0;
+			for (int r = 0; r < RAYS; r++)
+				for (int i = 0; i < n; i++)
+					if (triangles[i].hit(record, rays[r]))
+						hitsTriangle++;
+			long t1 = System.nanoTime();
+			int hitsPacked = 0;
+			for (int r = 0; r < RAYS; r++)
+				for (int i = 0; i < n; i++)
+					if (packed.hitTriangle(i, record, rays[r]))
+						hitsPacked++;
+			long t2 = System.nanoTime();
+
+			int queryTriangle = 0;
+			for (int r = 0; r < QUERY_RAYS; r++)
+				if (bvh.intersect(record, rays[r], false))
+					queryTriangle++;
+			long t3 = System.nanoTime();
+			int queryPacked = 0;
+			for (int r = 0; r < QUERY_RAYS; r++)
+				if (packed.intersect(record, rays[r]))
+					queryPacked++;
+			long t4 = System.nanoTime();
+
+			if (hitsTriangle != hitsPacked || queryTriangle != queryPacked)
+				System.out.printf("  (hit counts differ: %d vs %d, %d vs %d)%n", hitsTriangle, hitsPacked, queryTriangle, queryPacked);
+			double tests = (double) RAYS * n;
+			System.out.printf("round %d: test Triangle %6.2f ns, TriangleMesh %6.2f ns; query Bvh %7.1f ns/ray, TriangleMesh %7.1f ns/ray%n",
+					round, (t1 - t0) / tests, (t2 - t1) / tests,
+					(t3 - t2) / (double) QUERY_RAYS, (t4 - t3) / (double) QUERY_RAYS);
+		}
+	}
+
+	private static long usedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++)
+			System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+}
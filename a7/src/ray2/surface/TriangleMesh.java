@@ -0,0 +1,402 @@
+package ray2.surface;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+
+import ray2.IntersectionRecord;
+import ray2.Ray;
+import ray2.accel.SahBvh;
+import ray2.mesh.OBJFace;
+import ray2.mesh.OBJMesh;
+import ray2.shader.Shader;
+import egl.math.Matrix4d;
+import egl.math.Vector2;
+import egl.math.Vector3d;
+
+/**
+ * All the triangles of a mesh packed into flat arrays, with a BVH of its own
+ * whose leaves address triangles by index. Compared with one Triangle object
+ * per face, there is no per-triangle object, Ray or Vector3d: each triangle is
+ * stored as its first vertex and two edge vectors, ready for the
+ * Moller-Trumbore test, and refers to the mesh's shared vertex normals and
+ * texture coordinates by index.
+ *
+ * The vertex data is transformed once when the mesh is packed, so rays are
+ * intersected directly in the space the mesh was packed in.
+ */
+public class TriangleMesh extends Surface {
+
+	/**
+	 * Triangle i is stored in tri[9*i .. 9*i+8] as its first vertex v0, then
+	 * e1 = v1 - v0 and e2 = v2 - v0. Triangles are in BVH leaf order.
+	 */
+	private double[] tri;
+
+	/**
+	 * The transformed vertex normals of the mesh, 3 per normal, and for each
+	 * triangle the offsets into it of the normals at its three vertices, in
+	 * normalIndex[3*i .. 3*i+2]. The offsets are -1 for a face without vertex
+	 * normals. Both are null if no face has them.
+	 */
+	private double[] normals;
+	private int[] normalIndex;
+
+	/**
+	 * The unit normal of triangle i in faceNormals[3*i .. 3*i+2], used for
+	 * faces without vertex normals; null if every face has them.
+	 */
+	private double[] faceNormals;
+
+	/**
+	 * The texture coordinates of the mesh, 2 per coordinate, and the offsets of
+	 * those of triangle i in uvIndex[3*i .. 3*i+2] (-1 if the face has none).
+	 * Both are null if no face has texture coordinates.
+	 */
+	private double[] uvs;
+	private int[] uvIndex;
+
+	/**
+	 * For triangle i, texScales[i] is the square root of the ratio of its area
+	 * in texture space to its area in the packed space, which is how fast its
+	 * texture coordinates change along it (0 if the face has none). Null if
+	 * uvs is.
+	 */
+	private double[] texScales;
+
+	/** The number of triangles. */
+	private final int count;
+
+	/** The BVH over the triangles. */
+	private final TriangleBvh bvh;
+
+	/**
+	 * Pack the faces of mesh, transforming positions with tMat and normals
+	 * with tMatTInv, and build the BVH over them.
+	 *
+	 * @param mesh the mesh to pack
+	 * @param tMat the transformation applied to the vertex positions
+	 * @param tMatTInv the inverse transpose of tMat, applied to the normals
+	 * @param shader the shader of this mesh
+	 */
+	public TriangleMesh(OBJMesh mesh, Matrix4d tMat, Matrix4d tMatTInv, Shader shader) {
+		setShader(shader);
+		this.tMat = tMat;
+		this.tMatTInv = tMatTInv;
+		count = mesh.faces.size();
+		pack(mesh);
+		computeBoundingBox();
+
+		// Build over placeholder surfaces, then put the triangles in leaf order
+		Surface[] placeholders = new Surface[count];
+		for (int i = 0; i < count; i++)
+			placeholders[i] = new Placeholder(i, tri);
+		bvh = new TriangleBvh(this);
+		bvh.build(placeholders);
+		int[] order = new int[count];
+		for (int i = 0; i < count; i++)
+			order[i] = ((Placeholder) placeholders[i]).index;
+		permute(order);
+		bvh.release();
+	}
+
+	private void pack(OBJMesh mesh) {
+		tri = new double[9 * count];
+		boolean anyNormals = false, anyFlat = false, anyUVs = false;
+		for (OBJFace face : mesh.faces) {
+			anyNormals |= face.hasNormals();
+			anyFlat |= !face.hasNormals();
+			anyUVs |= face.hasUVs();
+		}
+
+		Vector3d v0 = new Vector3d(), v1 = new Vector3d(), v2 = new Vector3d(), n = new Vector3d();
+		if (anyNormals) {
+			normals = new double[3 * mesh.normals.size()];
+			normalIndex = new int[3 * count];
+			for (int j = 0; j < mesh.normals.size(); j++) {
+				n.set(mesh.normals.get(j));
+				tMatTInv.mulDir(n);
+				put(normals, 3 * j, n);
+			}
+		}
+		if (anyFlat)
+			faceNormals = new double[3 * count];
+		if (anyUVs) {
+			uvs = new double[2 * mesh.uvs.size()];
+			uvIndex = new int[3 * count];
+			texScales = new double[count];
+			for (int j = 0; j < mesh.uvs.size(); j++) {
+				Vector2 uv = mesh.uvs.get(j);
+				uvs[2 * j] = uv.x;
+				uvs[2 * j + 1] = uv.y;
+			}
+		}
+
+		for (int i = 0; i < count; i++) {
+			OBJFace face = mesh.faces.get(i);
+			v0.set(mesh.getPosition(face, 0));
+			v1.set(mesh.getPosition(face, 1));
+			v2.set(mesh.getPosition(face, 2));
+
+			for (int k = 0; k < 3; k++) {
+				if (normalIndex != null)
+					normalIndex[3 * i + k] = face.hasNormals() ? 3 * (face.normals[k] - OBJFace.indexBase) : -1;
+				if (uvIndex != null)
+					uvIndex[3 * i + k] = face.hasUVs() ? 2 * (face.uvs[k] - OBJFace.indexBase) : -1;
+			}
+
+			if (!face.hasNormals()) {
+				// The same unit normal a Triangle would compute in object space
+				n.set(v1).sub(v0).cross(new Vector3d(v2).sub(v0)).normalize();
+				tMatTInv.mulDir(n);
+				put(faceNormals, 3 * i, n);
+			}
+
+			tMat.mulPos(v0);
+			tMat.mulPos(v1);
+			tMat.mulPos(v2);
+			put(tri, 9 * i, v0);
+			put(tri, 9 * i + 3, v1.sub(v0));
+			put(tri, 9 * i + 6, v2.sub(v0));
+
+			if (uvIndex != null && face.hasUVs()) {
+				int a = uvIndex[3 * i], b = uvIndex[3 * i + 1], c = uvIndex[3 * i + 2];
+				double uvArea = Math.abs((uvs[b] - uvs[a]) * (uvs[c + 1] - uvs[a + 1])
+						- (uvs[c] - uvs[a]) * (uvs[b + 1] - uvs[a + 1]));
+				double area = v1.cross(v2).len();
+				texScales[i] = area > 0 ? Math.sqrt(uvArea / area) : 0;
+			}
+		}
+	}
+
+	private static void put(double[] a, int o, Vector3d v) {
+		a[o] = v.x;
+		a[o + 1] = v.y;
+		a[o + 2] = v.z;
+	}
+
+	/**
+	 * Reorder the per-triangle arrays so that the triangle at order[i] moves to i.
+	 */
+	private void permute(int[] order) {
+		tri = (double[]) permute(tri, order, 9);
+		faceNormals = (double[]) permute(faceNormals, order, 3);
+		normalIndex = (int[]) permute(normalIndex, order, 3);
+		uvIndex = (int[]) permute(uvIndex, order, 3);
+		texScales = (double[]) permute(texScales, order, 1);
+	}
+
+	/**
+	 * @return a copy of the array a of stride elements per triangle, in the
+	 *         given order, or null if a is null
+	 */
+	private static Object permute(Object a, int[] order, int stride) {
+		if (a == null)
+			return null;
+		Object b = Array.newInstance(a.getClass().getComponentType(), Array.getLength(a));
+		for (int i = 0; i < order.length; i++)
+			System.arraycopy(a, stride * order[i], b, stride * i, stride);
+		return b;
+	}
+
+	/**
+	 * @return the number of triangles in this mesh
+	 */
+	public int getTriangleCount() {
+		return count;
+	}
+
+	/**
+	 * Tests this surface for intersection with ray. If an intersection is found
+	 * record is filled out with the information about the intersection and the
+	 * method returns true. It returns false otherwise and the information in
+	 * outRecord is not modified. If outRecord is null, any intersection will
+	 * do, which is cheaper to find than the first one.
+	 *
+	 * @param outRecord the output IntersectionRecord
+	 * @param ray the ray to intersect
+	 * @return true if the surface intersects the ray
+	 */
+	public boolean intersect(IntersectionRecord outRecord, Ray ray) {
+		if (!hit(outRecord, ray))
+			return false;
+		if (outRecord != null)
+			fillRecord(outRecord, ray);
+		return true;
+	}
+
+	/**
+	 * Find the closest triangle hit (or any, if outRecord is null), recording
+	 * its index and barycentric coordinates for fillRecord.
+	 */
+	public boolean hit(IntersectionRecord outRecord, Ray ray) {
+		return bvh.hit(outRecord, ray);
+	}
+
+	/**
+	 * Hit test the ray against triangle i using the Moller-Trumbore test. The
+	 * bounds of the test match those of Triangle: hits on edges count, and t
+	 * must lie in [ray.start, ray.end]. The index goes to outRecord.primitive
+	 * and the barycentric coordinates (beta, gamma) to outRecord.u and v.
+	 */
+	boolean hitTriangle(int i, IntersectionRecord outRecord, Ray ray) {
+		double[] p = tri;
+		int o = 9 * i;
+		double e1x = p[o + 3], e1y = p[o + 4], e1z = p[o + 5];
+		double e2x = p[o + 6], e2y = p[o + 7], e2z = p[o + 8];
+		double dx = ray.direction.x, dy = ray.direction.y, dz = ray.direction.z;
+
+		// P = d x e2, det = e1 . P
+		double px = dy * e2z - dz * e2y;
+		double py = dz * e2x - dx * e2z;
+		double pz = dx * e2y - dy * e2x;
+		double det = e1x * px + e1y * py + e1z * pz;
+		if (det == 0)
+			return false;
+		double invDet = 1 / det;
+
+		double sx = ray.origin.x - p[o], sy = ray.origin.y - p[o + 1], sz = ray.origin.z - p[o + 2];
+		double beta = (sx * px + sy * py + sz * pz) * invDet;
+		if (beta < 0 || beta > 1)
+			return false;
+
+		// Q = s x e1
+		double qx = sy * e1z - sz * e1y;
+		double qy = sz * e1x - sx * e1z;
+		double qz = sx * e1y - sy * e1x;
+		double gamma = (dx * qx + dy * qy + dz * qz) * invDet;
+		if (gamma < 0 || beta + gamma > 1)
+			return false;
+
+		double t = (e2x * qx + e2y * qy + e2z * qz) * invDet;
+		if (t > ray.end || t < ray.start)
+			return false;
+
+		if (outRecord != null) {
+			outRecord.t = t;
+			outRecord.surface = this;
+			outRecord.primitive = i;
+			outRecord.u = beta;
+			outRecord.v = gamma;
+		}
+		return true;
+	}
+
+	/**
+	 * Interpolate the normal and texture coordinates of the triangle recorded
+	 * by hitTriangle.
+	 */
+	public void fillRecord(IntersectionRecord outRecord, Ray ray) {
+		int i = outRecord.primitive;
+		double beta = outRecord.u, gamma = outRecord.v;
+		ray.evaluate(outRecord.location, outRecord.t);
+
+		double alpha = 1 - beta - gamma;
+		int v = 3 * i;
+		if (normalIndex != null && normalIndex[v] >= 0) {
+			double[] n = normals;
+			int a = normalIndex[v], b = normalIndex[v + 1], c = normalIndex[v + 2];
+			outRecord.normal.set(
+					alpha * n[a] + beta * n[b] + gamma * n[c],
+					alpha * n[a + 1] + beta * n[b + 1] + gamma * n[c + 1],
+					alpha * n[a + 2] + beta * n[b + 2] + gamma * n[c + 2]);
+		} else {
+			outRecord.normal.set(faceNormals[v], faceNormals[v + 1], faceNormals[v + 2]);
+		}
+		outRecord.normal.normalize();
+
+		if (uvIndex != null && uvIndex[v] >= 0) {
+			int a = uvIndex[v], b = uvIndex[v + 1], c = uvIndex[v + 2];
+			outRecord.texCoords.set(alpha * uvs[a] + beta * uvs[b] + gamma * uvs[c],
+					alpha * uvs[a + 1] + beta * uvs[b + 1] + gamma * uvs[c + 1]);
+			outRecord.texScale = texScales[i];
+		} else {
+			outRecord.texScale = 0;
+		}
+	}
+
+	/**
+	 * Bound all the packed vertices.
+	 */
+	public void computeBoundingBox() {
+		double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+		double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+		for (int i = 0; i < count; i++)
+			growBounds(tri, 9 * i, lo, hi);
+		minBound = new Vector3d(lo[0], lo[1], lo[2]);
+		maxBound = new Vector3d(hi[0], hi[1], hi[2]);
+		averagePosition = new Vector3d(minBound).add(maxBound).div(2);
+	}
+
+	/**
+	 * Grow lo and hi to include the three vertices of the triangle stored at
+	 * tri[o].
+	 */
+	private static void growBounds(double[] tri, int o, double[] lo, double[] hi) {
+		for (int k = 0; k < 3; k++) {
+			double v = tri[o + k], a = v + tri[o + 3 + k], b = v + tri[o + 6 + k];
+			lo[k] = Math.min(lo[k], Math.min(v, Math.min(a, b)));
+			hi[k] = Math.max(hi[k], Math.max(v, Math.max(a, b)));
+		}
+	}
+
+	/**
+	 * A mesh is already a single renderable surface.
+	 */
+	public void appendRenderableSurfaces(ArrayList<Surface> in) {
+		in.add(this);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	public String toString() {
+		return "TriangleMesh " + count;
+	}
+
+	/**
+	 * The BVH over the triangles of one mesh. Its leaves call back into the
+	 * mesh by triangle index.
+	 */
+	private static class TriangleBvh extends SahBvh {
+		private final TriangleMesh mesh;
+
+		TriangleBvh(TriangleMesh mesh) {
+			this.mesh = mesh;
+		}
+
+		@Override
+		protected boolean hitSurface(int i, IntersectionRecord outRecord, Ray ray) {
+			return mesh.hitTriangle(i, outRecord, ray);
+		}
+
+		/** Drop the placeholders and the node objects once the triangles are in leaf order. */
+		void release() {
+			surfaces = null;
+			releaseTree();
+		}
+	}
+
+	/**
+	 * Stands in for triangle index during the BVH build, providing the bounds
+	 * and centroid the builders sort by.
+	 */
+	private static class Placeholder extends Surface {
+		final int index;
+
+		Placeholder(int index, double[] tri) {
+			this.index = index;
+			int o = 9 * index;
+			double[] lo = { Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY };
+			double[] hi = { Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY, Double.NEGATIVE_INFINITY };
+			growBounds(tri, o, lo, hi);
+			minBound = new Vector3d(lo[0], lo[1], lo[2]);
+			maxBound = new Vector3d(hi[0], hi[1], hi[2]);
+			averagePosition = new Vector3d(tri[o] + (tri[o + 3] + tri[o + 6]) / 3,
+					tri[o + 1] + (tri[o + 4] + tri[o + 7]) / 3,
+					tri[o + 2] + (tri[o + 5] + tri[o + 8]) / 3);
+		}
+
+		public boolean intersect(IntersectionRecord outRecord, Ray ray) { return false; }
+		public void computeBoundingBox() { }
+	}
+}
@@ -9,7 +9,6 @@ import java.io.File;
 import javax.imageio.ImageIO;
 import javax.swing.JPanel;
 
-import egl.math.Colord;
 import ray2.Image;
 
 
@@ -110,13 +109,9 @@ public class PanelDisplay extends JPanel {
 		
 		//int w = image.getWidth();
 		int h = image.getHeight();
-		Colord pixelColor = new Colord();
 		for (int y = h-yh; y < h-yl; y++) {
 			for (int x = xl; x < xh; x++) {
-				image.getPixelColor(pixelColor,x,h-y-1);
-				pixelColor.gammaCorrect(2.2);
-				int rgb = pixelColor.toColor().toIntRGB();
-				bufferedImage.setRGB(x,y,rgb);
+				bufferedImage.setRGB(x,y,image.getRGB(x,h-y-1));
 			}
 		}
 	}
@@ -47,6 +47,18 @@ public class QuickViewer extends JFrame {
 	public void setImage(Image inImage, int xl, int yl, int xh, int yh) {	
 		imageDisplayPanel.setImage(inImage, xl, yl, xh, yh);	
 	}
+
+	/**
+	 * Show the image after a pass of a progressive render, with the pass in
+	 * the title.
+	 * @param inImage
+	 * @param pass the number of passes rendered
+	 * @param passes the most passes that will be rendered
+	 */
+	public void showPass(Image inImage, int pass, int passes) {
+		setTitle("Pass " + pass + " of " + passes);
+		imageDisplayPanel.setImage(inImage);
+	}
 	
 	/**
 	 * Starts the viewing